@@ -0,0 +1,34 @@
+package queue.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Helpers shared by the benchmarks for building payloads and cleaning up scratch directories.
+ */
+public class BenchmarkUtil {
+
+  public static final String QUEUE_URI = "BenchmarkQueue";
+
+  // Visibility timeout which outlives any benchmark iteration, so pulled messages stay in-flight.
+  public static final int LONG_VISIBILITY_TIMEOUT_SEC = 3600;
+
+  public static String payload(int size) {
+    char[] chars = new char[size];
+    Arrays.fill(chars, 'x');
+    return new String(chars);
+  }
+
+  public static void deleteRecursively(Path path) throws IOException {
+    if (path == null || !Files.exists(path)) {
+      return;
+    }
+    try (Stream<Path> paths = Files.walk(path)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+    }
+  }
+}
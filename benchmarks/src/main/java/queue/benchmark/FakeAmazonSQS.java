@@ -0,0 +1,59 @@
+package queue.benchmark;
+
+import com.amazonaws.services.sqs.AbstractAmazonSQS;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * In-process AmazonSQS used to measure the overhead of SqsQueueService without the network.
+ * Received messages are parked until deleted; visibility timeouts are not simulated.
+ */
+public class FakeAmazonSQS extends AbstractAmazonSQS {
+
+  private final Map<String, Queue<Message>> queues = new ConcurrentHashMap<>();
+  private final Map<String, Message> inFlight = new ConcurrentHashMap<>();
+
+  @Override
+  public SendMessageResult sendMessage(SendMessageRequest request) {
+    String messageId = UUID.randomUUID().toString();
+    Message message = new Message()
+        .withMessageId(messageId)
+        .withBody(request.getMessageBody());
+    queues.computeIfAbsent(request.getQueueUrl(), k -> new ConcurrentLinkedQueue<>()).add(message);
+    return new SendMessageResult().withMessageId(messageId);
+  }
+
+  @Override
+  public ReceiveMessageResult receiveMessage(ReceiveMessageRequest request) {
+    Queue<Message> queue = queues.get(request.getQueueUrl());
+    List<Message> messages = new ArrayList<>();
+    int max = request.getMaxNumberOfMessages() == null ? 1 : request.getMaxNumberOfMessages();
+    while (queue != null && messages.size() < max) {
+      Message message = queue.poll();
+      if (message == null) {
+        break;
+      }
+      message.setReceiptHandle(request.getQueueUrl() + "/" + UUID.randomUUID().toString());
+      inFlight.put(message.getReceiptHandle(), message);
+      messages.add(message);
+    }
+    return new ReceiveMessageResult().withMessages(messages);
+  }
+
+  @Override
+  public void deleteMessage(DeleteMessageRequest request) {
+    inFlight.remove(request.getReceiptHandle());
+  }
+}
@@ -0,0 +1,99 @@
+package queue.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import queue.FileQueueService;
+import queue.exception.QueueServiceException;
+import queue.model.Message;
+import queue.model.MessageDeleteRequest;
+import queue.model.MessagePullRequest;
+import queue.model.MessagePushRequest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency of FileQueueService operations. Every iteration starts on a fresh QUEUE
+ * file holding queueDepth pushed and inFlightSize pulled messages. The benchmark is pinned to a
+ * single thread because FileLock is held per JVM and overlapping locks from two threads of the
+ * same process fail; multi-process contention is measured separately.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(1)
+@Fork(1)
+public class FileQueueBenchmark {
+
+  @Param({"0", "1000"})
+  public int queueDepth;
+
+  @Param({"64", "4096"})
+  public int payloadSize;
+
+  @Param({"0", "100"})
+  public int inFlightSize;
+
+  private Path baseDir;
+  private FileQueueService queueService;
+  private MessagePushRequest pushRequest;
+  private MessagePullRequest pullRequest;
+
+  @Setup(Level.Iteration)
+  public void setup() throws IOException, QueueServiceException {
+    baseDir = Files.createTempDirectory("file-queue-benchmark");
+    queueService = new FileQueueService(baseDir.toString());
+    pushRequest = new MessagePushRequest(BenchmarkUtil.payload(payloadSize),
+        BenchmarkUtil.QUEUE_URI);
+    pullRequest = new MessagePullRequest().withUri(BenchmarkUtil.QUEUE_URI);
+    MessagePullRequest inFlightPullRequest = new MessagePullRequest()
+        .withUri(BenchmarkUtil.QUEUE_URI)
+        .withVisibilityTimeout(BenchmarkUtil.LONG_VISIBILITY_TIMEOUT_SEC);
+
+    for (int i = 0; i < inFlightSize; i++) {
+      queueService.push(pushRequest);
+      queueService.pull(inFlightPullRequest);
+    }
+
+    for (int i = 0; i < queueDepth; i++) {
+      queueService.push(pushRequest);
+    }
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown() throws IOException {
+    queueService.close();
+    BenchmarkUtil.deleteRecursively(baseDir);
+  }
+
+  @Benchmark
+  public void push() throws QueueServiceException {
+    queueService.push(pushRequest);
+  }
+
+  @Benchmark
+  public Message pushPullDelete() throws QueueServiceException {
+    queueService.push(pushRequest);
+    Message message = queueService.pull(pullRequest);
+    if (message != null) {
+      queueService.delete(new MessageDeleteRequest(message));
+    }
+    return message;
+  }
+}
@@ -0,0 +1,191 @@
+package queue.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Load generator and soak test for FileQueueService contention. Starts N producer and M consumer
+ * JVMs on one queue directory, waits for them to finish and reports throughput, end-to-end
+ * latency percentiles, lock wait time, duplicate deliveries and lost messages.
+ *
+ * <pre>
+ * java -cp benchmarks.jar queue.benchmark.FileQueueLoadTest --dir /tmp/q --producers 4
+ *     --consumers 4 --duration-sec 60 --messages 100000 --payload-bytes 256
+ * </pre>
+ *
+ * Producers stop at whichever of duration or message count comes first; consumers then drain the
+ * queue and exit.
+ */
+public class FileQueueLoadTest {
+
+  private static final long LONG_UNSET = Long.MAX_VALUE;
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = parseOptions(args);
+    Path queueDir = Paths.get(options.getOrDefault("--dir", "load-test"));
+    int producers = Integer.parseInt(options.getOrDefault("--producers", "2"));
+    int consumers = Integer.parseInt(options.getOrDefault("--consumers", "2"));
+    long durationSec = Long.parseLong(options.getOrDefault("--duration-sec", "60"));
+    long messages = options.containsKey("--messages")
+        ? Long.parseLong(options.get("--messages")) : LONG_UNSET;
+    int payloadBytes = Integer.parseInt(options.getOrDefault("--payload-bytes", "128"));
+
+    BenchmarkUtil.deleteRecursively(queueDir);
+    Path resultDir = queueDir.resolve("results");
+    Files.createDirectories(resultDir);
+
+    long startNanos = System.nanoTime();
+    List<Process> producerProcesses = new ArrayList<>();
+    List<Process> consumerProcesses = new ArrayList<>();
+    for (int i = 0; i < consumers; i++) {
+      consumerProcesses.add(startWorker(FileQueueLoadWorker.CONSUMER, i, queueDir, resultDir,
+          durationSec, messages, payloadBytes));
+    }
+    for (int i = 0; i < producers; i++) {
+      producerProcesses.add(startWorker(FileQueueLoadWorker.PRODUCER, i, queueDir, resultDir,
+          durationSec, messages, payloadBytes));
+    }
+
+    waitFor(producerProcesses);
+    Files.createFile(queueDir.resolve(FileQueueLoadWorker.DONE_MARKER));
+    waitFor(consumerProcesses);
+    long elapsedNanos = System.nanoTime() - startNanos;
+
+    report(resultDir, producers, consumers, elapsedNanos);
+  }
+
+  private static Process startWorker(String role, int workerId, Path queueDir, Path resultDir,
+                                     long durationSec, long messages, int payloadBytes)
+      throws IOException {
+    String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+    ProcessBuilder builder = new ProcessBuilder(java,
+        "-cp", System.getProperty("java.class.path"),
+        FileQueueLoadWorker.class.getName(),
+        role, Integer.toString(workerId), queueDir.toString(), resultDir.toString(),
+        Long.toString(durationSec), Long.toString(messages), Integer.toString(payloadBytes));
+    builder.redirectErrorStream(true);
+    builder.redirectOutput(resultDir.resolve(role + "-" + workerId + ".out").toFile());
+    return builder.start();
+  }
+
+  private static void waitFor(List<Process> processes) throws InterruptedException {
+    for (Process process : processes) {
+      int exitCode = process.waitFor();
+      if (exitCode != 0) {
+        System.err.println("Worker exited with code " + exitCode);
+      }
+    }
+  }
+
+  private static void report(Path resultDir, int producers, int consumers, long elapsedNanos)
+      throws IOException {
+
+    long[] sentPerProducer = new long[producers];
+    long producerLockWaitNanos = 0;
+    for (int i = 0; i < producers; i++) {
+      long[] summary = readSummary(resultDir, FileQueueLoadWorker.PRODUCER, i);
+      sentPerProducer[i] = summary[0];
+      producerLockWaitNanos += summary[1];
+    }
+
+    long consumerLockWaitNanos = 0;
+    for (int i = 0; i < consumers; i++) {
+      consumerLockWaitNanos += readSummary(resultDir, FileQueueLoadWorker.CONSUMER, i)[1];
+    }
+
+    BitSet[] seen = new BitSet[producers];
+    for (int i = 0; i < producers; i++) {
+      seen[i] = new BitSet();
+    }
+
+    long received = 0;
+    long duplicates = 0;
+    long[] latencies = new long[1024];
+    for (int i = 0; i < consumers; i++) {
+      File file = resultDir.resolve(FileQueueLoadWorker.CONSUMER + "-" + i + ".received").toFile();
+      if (!file.exists()) {
+        continue;
+      }
+      try (BufferedReader reader = Files.newBufferedReader(file.toPath(),
+          StandardCharsets.UTF_8)) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          String[] fields = line.split(" ");
+          int producer = Integer.parseInt(fields[0]);
+          int sequence = Integer.parseInt(fields[1]);
+          if (seen[producer].get(sequence)) {
+            duplicates++;
+          }
+          seen[producer].set(sequence);
+
+          if (received == latencies.length) {
+            latencies = Arrays.copyOf(latencies, latencies.length * 2);
+          }
+          latencies[(int) received++] = Long.parseLong(fields[2]);
+        }
+      }
+    }
+
+    long sent = 0;
+    long lost = 0;
+    for (int i = 0; i < producers; i++) {
+      sent += sentPerProducer[i];
+      lost += sentPerProducer[i] - seen[i].cardinality();
+    }
+
+    latencies = Arrays.copyOf(latencies, (int) received);
+    Arrays.sort(latencies);
+    double elapsedSec = elapsedNanos / 1e9;
+
+    System.out.println("elapsed.sec=" + elapsedSec);
+    System.out.println("sent=" + sent);
+    System.out.println("received=" + received);
+    System.out.println("throughput.msgPerSec=" + (received / elapsedSec));
+    System.out.println("latency.p50.us=" + percentile(latencies, 0.50) / 1000);
+    System.out.println("latency.p99.us=" + percentile(latencies, 0.99) / 1000);
+    System.out.println("latency.p999.us=" + percentile(latencies, 0.999) / 1000);
+    System.out.println("lockWait.producers.ms=" + producerLockWaitNanos / 1_000_000);
+    System.out.println("lockWait.consumers.ms=" + consumerLockWaitNanos / 1_000_000);
+    System.out.println("duplicates=" + duplicates);
+    System.out.println("lost=" + lost);
+  }
+
+  private static long percentile(long[] sorted, double quantile) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int index = (int) Math.ceil(quantile * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+  }
+
+  private static long[] readSummary(Path resultDir, String role, int workerId)
+      throws IOException {
+    Path path = resultDir.resolve(role + "-" + workerId + ".summary");
+    if (!Files.exists(path)) {
+      return new long[3];
+    }
+    String[] fields = new String(Files.readAllBytes(path), StandardCharsets.UTF_8).trim()
+        .split(" ");
+    return new long[]{Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+        Long.parseLong(fields[2])};
+  }
+
+  private static Map<String, String> parseOptions(String[] args) {
+    Map<String, String> options = new HashMap<>();
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      options.put(args[i], args[i + 1]);
+    }
+    return options;
+  }
+}
@@ -0,0 +1,129 @@
+package queue.benchmark;
+
+import queue.FileQueueService;
+import queue.exception.QueueServiceException;
+import queue.model.Message;
+import queue.model.MessageDeleteRequest;
+import queue.model.MessagePullRequest;
+import queue.model.MessagePushRequest;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * A single producer or consumer process started by FileQueueLoadTest. Producers push
+ * "producerId:sequence:sendNanos:padding" messages; consumers pull and delete them and record
+ * what they received. Both write a summary file for the coordinator once done.
+ *
+ * <p>Latency is computed from System.nanoTime, which is backed by the host-wide monotonic clock
+ * on Linux and therefore comparable between processes on the same machine.
+ */
+public class FileQueueLoadWorker {
+
+  static final String PRODUCER = "producer";
+  static final String CONSUMER = "consumer";
+  static final String DONE_MARKER = "PRODUCERS_DONE";
+  static final String FIELD_SEP = ":";
+
+  private static final long IDLE_SLEEP_MS = 1;
+
+  public static void main(String[] args) throws Exception {
+    String role = args[0];
+    int workerId = Integer.parseInt(args[1]);
+    Path queueDir = Paths.get(args[2]);
+    Path resultDir = Paths.get(args[3]);
+    long deadlineMs = System.currentTimeMillis() + Long.parseLong(args[4]) * 1000;
+    long messageCount = Long.parseLong(args[5]);
+    int payloadBytes = Integer.parseInt(args[6]);
+
+    FileQueueService queueService = new FileQueueService(queueDir.toString());
+    if (PRODUCER.equals(role)) {
+      produce(queueService, workerId, resultDir, deadlineMs, messageCount, payloadBytes);
+    } else {
+      consume(queueService, workerId, queueDir, resultDir);
+    }
+  }
+
+  private static void produce(FileQueueService queueService, int workerId, Path resultDir,
+                              long deadlineMs, long messageCount, int payloadBytes)
+      throws QueueServiceException, IOException {
+
+    String padding = BenchmarkUtil.payload(payloadBytes);
+    long startNanos = System.nanoTime();
+    long sent = 0;
+    while (sent < messageCount && System.currentTimeMillis() < deadlineMs) {
+      String content = workerId + FIELD_SEP + sent + FIELD_SEP + System.nanoTime() + FIELD_SEP
+          + padding;
+      queueService.push(new MessagePushRequest(content, BenchmarkUtil.QUEUE_URI));
+      sent++;
+    }
+
+    writeSummary(resultDir, PRODUCER, workerId, sent, queueService.getLockWaitNanos(),
+        System.nanoTime() - startNanos);
+  }
+
+  private static void consume(FileQueueService queueService, int workerId, Path queueDir,
+                              Path resultDir)
+      throws QueueServiceException, IOException, InterruptedException {
+
+    MessagePullRequest pullRequest = new MessagePullRequest().withUri(BenchmarkUtil.QUEUE_URI);
+    Path doneMarker = queueDir.resolve(DONE_MARKER);
+    long startNanos = System.nanoTime();
+    long received = 0;
+
+    try (BufferedWriter writer = Files.newBufferedWriter(
+        resultDir.resolve(CONSUMER + "-" + workerId + ".received"), StandardCharsets.UTF_8)) {
+
+      while (true) {
+        Message message = pullOrNull(queueService, pullRequest);
+        if (message == null) {
+          // Keep polling until the producers are done and the queue has drained.
+          if (Files.exists(doneMarker)) {
+            break;
+          }
+          Thread.sleep(IDLE_SLEEP_MS);
+          continue;
+        }
+
+        long latencyNanos = System.nanoTime() - sendNanos(message.getContent());
+        queueService.delete(new MessageDeleteRequest(message));
+        received++;
+
+        String[] fields = message.getContent().split(FIELD_SEP, 3);
+        writer.write(fields[0] + " " + fields[1] + " " + latencyNanos);
+        writer.newLine();
+      }
+    }
+
+    writeSummary(resultDir, CONSUMER, workerId, received, queueService.getLockWaitNanos(),
+        System.nanoTime() - startNanos);
+  }
+
+  private static Message pullOrNull(FileQueueService queueService, MessagePullRequest request)
+      throws QueueServiceException {
+    try {
+      return queueService.pull(request);
+    } catch (QueueServiceException e) {
+      // The queue does not exist until the first producer push has been replayed.
+      if (e.getMessage() != null && e.getMessage().contains("does not exist")) {
+        return null;
+      }
+      throw e;
+    }
+  }
+
+  private static long sendNanos(String content) {
+    return Long.parseLong(content.split(FIELD_SEP, 4)[2]);
+  }
+
+  private static void writeSummary(Path resultDir, String role, int workerId, long count,
+                                   long lockWaitNanos, long elapsedNanos) throws IOException {
+    String summary = count + " " + lockWaitNanos + " " + elapsedNanos;
+    Files.write(resultDir.resolve(role + "-" + workerId + ".summary"),
+        summary.getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,110 @@
+package queue.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import queue.InMemoryQueueService;
+import queue.exception.QueueServiceException;
+import queue.model.Message;
+import queue.model.MessageDeleteRequest;
+import queue.model.MessagePullRequest;
+import queue.model.MessagePushRequest;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency of InMemoryQueueService operations. The queue is rebuilt before every
+ * iteration with queueDepth visible messages and inFlightSize in-flight messages, so that each
+ * iteration starts from the same shape. Thread count is controlled with the JMH -t option, the
+ * producer/consumer group with -tg.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InMemoryQueueBenchmark {
+
+  @Param({"0", "1000", "100000"})
+  public int queueDepth;
+
+  @Param({"64", "4096"})
+  public int payloadSize;
+
+  @Param({"0", "1000"})
+  public int inFlightSize;
+
+  private InMemoryQueueService queueService;
+  private MessagePushRequest pushRequest;
+  private MessagePullRequest pullRequest;
+  private MessagePullRequest inFlightPullRequest;
+
+  @Setup(Level.Iteration)
+  public void setup() throws QueueServiceException {
+    queueService = new InMemoryQueueService();
+    pushRequest = new MessagePushRequest(BenchmarkUtil.payload(payloadSize),
+        BenchmarkUtil.QUEUE_URI);
+    pullRequest = new MessagePullRequest().withUri(BenchmarkUtil.QUEUE_URI);
+    inFlightPullRequest = new MessagePullRequest()
+        .withUri(BenchmarkUtil.QUEUE_URI)
+        .withVisibilityTimeout(BenchmarkUtil.LONG_VISIBILITY_TIMEOUT_SEC);
+
+    // Make sure the queue exists even when it starts empty.
+    queueService.createQueue(BenchmarkUtil.QUEUE_URI);
+
+    // Messages pulled with a long visibility timeout stay in-flight for the whole iteration.
+    for (int i = 0; i < inFlightSize; i++) {
+      queueService.push(pushRequest);
+      queueService.pull(inFlightPullRequest);
+    }
+
+    for (int i = 0; i < queueDepth; i++) {
+      queueService.push(pushRequest);
+    }
+  }
+
+  @Benchmark
+  public void push() throws QueueServiceException {
+    queueService.push(pushRequest);
+  }
+
+  @Benchmark
+  public Message pushPullDelete() throws QueueServiceException {
+    queueService.push(pushRequest);
+    return pullAndDelete();
+  }
+
+  @Benchmark
+  @Group("producerConsumer")
+  @GroupThreads(1)
+  public void producer() throws QueueServiceException {
+    queueService.push(pushRequest);
+  }
+
+  @Benchmark
+  @Group("producerConsumer")
+  @GroupThreads(1)
+  public Message consumer() throws QueueServiceException {
+    return pullAndDelete();
+  }
+
+  private Message pullAndDelete() throws QueueServiceException {
+    Message message = queueService.pull(pullRequest);
+    if (message != null) {
+      queueService.delete(new MessageDeleteRequest(message));
+    }
+    return message;
+  }
+}
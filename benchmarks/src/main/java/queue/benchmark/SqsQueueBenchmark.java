@@ -0,0 +1,71 @@
+package queue.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import queue.SqsQueueService;
+import queue.exception.QueueServiceException;
+import queue.model.Message;
+import queue.model.MessageDeleteRequest;
+import queue.model.MessagePullRequest;
+import queue.model.MessagePushRequest;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client-side cost of SqsQueueService request mapping, measured against FakeAmazonSQS.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SqsQueueBenchmark {
+
+  @Param({"0", "1000"})
+  public int queueDepth;
+
+  @Param({"64", "4096"})
+  public int payloadSize;
+
+  private SqsQueueService queueService;
+  private MessagePushRequest pushRequest;
+  private MessagePullRequest pullRequest;
+
+  @Setup(Level.Iteration)
+  public void setup() throws QueueServiceException {
+    queueService = new SqsQueueService(new FakeAmazonSQS());
+    pushRequest = new MessagePushRequest(BenchmarkUtil.payload(payloadSize),
+        BenchmarkUtil.QUEUE_URI);
+    pullRequest = new MessagePullRequest().withUri(BenchmarkUtil.QUEUE_URI);
+
+    for (int i = 0; i < queueDepth; i++) {
+      queueService.push(pushRequest);
+    }
+  }
+
+  @Benchmark
+  public void push() throws QueueServiceException {
+    queueService.push(pushRequest);
+  }
+
+  @Benchmark
+  public Message pushPullDelete() throws QueueServiceException {
+    queueService.push(pushRequest);
+    Message message = queueService.pull(pullRequest);
+    if (message != null) {
+      queueService.delete(new MessageDeleteRequest(message));
+    }
+    return message;
+  }
+}
@@ -0,0 +1,142 @@
+package queue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * BlobStore keeps payloads in a directory, each in a file named by the SHA-256 of the payload, so
+ * equal payloads are stored once. Next to every blob, a reference count file counts the messages
+ * referring to it; the blob is deleted once the count drops to zero. Counts are updated under a
+ * lock on a control file, so processes sharing the directory do not lose updates. There is one
+ * instance per directory in a JVM, see {@link #forDirectory(File)}.
+ */
+class BlobStore {
+  private static final String LOCK_FILE_NAME = "BLOBS.lock";
+  private static final String REFS_SUFFIX = ".refs";
+  private static final Map<String, BlobStore> STORES = new ConcurrentHashMap<>();
+
+  private final File directory;
+  // Kept open for the lifetime of the instance, the channel is needed to lock the directory.
+  private final RandomAccessFile lockFile;
+  private final FileChannel lockChannel;
+
+  private BlobStore(File directory) throws IOException {
+    directory.mkdirs();
+    this.directory = directory;
+    this.lockFile = new RandomAccessFile(new File(directory, LOCK_FILE_NAME), "rw");
+    this.lockChannel = lockFile.getChannel();
+  }
+
+  /**
+   * Returns the store of given directory shared within this JVM, since a process can hold only
+   * one lock on the control file.
+   */
+  public static BlobStore forDirectory(File directory) throws IOException {
+    String path = directory.getCanonicalPath();
+    BlobStore store = STORES.get(path);
+    if (store == null) {
+      synchronized (STORES) {
+        store = STORES.get(path);
+        if (store == null) {
+          store = new BlobStore(directory);
+          STORES.put(path, store);
+        }
+      }
+    }
+    return store;
+  }
+
+  /**
+   * Stores the payload, if not stored yet, and adds a reference to it.
+   *
+   * @return key of the payload.
+   */
+  public synchronized String put(String payload) throws IOException {
+    String key = keyOf(payload);
+    try (FileLock fileLock = lockChannel.lock()) {
+      Path blob = blobFile(key);
+      if (!Files.exists(blob)) {
+        // Readers never see a partially written blob.
+        Path temp = Files.createTempFile(directory.toPath(), key, ".tmp");
+        Files.write(temp, payload.getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, blob, StandardCopyOption.ATOMIC_MOVE);
+      }
+      writeReferences(key, readReferences(key) + 1);
+    }
+    return key;
+  }
+
+  /**
+   * Returns the payload with given key, or null if it is not stored.
+   */
+  public String get(String key) throws IOException {
+    try {
+      return new String(Files.readAllBytes(blobFile(key)), StandardCharsets.UTF_8);
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Drops a reference to the payload with given key, and the payload with its last reference.
+   */
+  public synchronized void release(String key) throws IOException {
+    try (FileLock fileLock = lockChannel.lock()) {
+      long references = readReferences(key) - 1;
+      if (references > 0) {
+        writeReferences(key, references);
+      } else {
+        Files.deleteIfExists(blobFile(key));
+        Files.deleteIfExists(referencesFile(key));
+      }
+    }
+  }
+
+  private long readReferences(String key) throws IOException {
+    try {
+      return Long.parseLong(
+          new String(Files.readAllBytes(referencesFile(key)), StandardCharsets.UTF_8).trim());
+    } catch (NoSuchFileException e) {
+      return 0;
+    }
+  }
+
+  private void writeReferences(String key, long references) throws IOException {
+    Files.write(referencesFile(key), Long.toString(references).getBytes(StandardCharsets.UTF_8));
+  }
+
+  private Path blobFile(String key) {
+    return new File(directory, key).toPath();
+  }
+
+  private Path referencesFile(String key) {
+    return new File(directory, key + REFS_SUFFIX).toPath();
+  }
+
+  private static String keyOf(String payload) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256")
+          .digest(payload.getBytes(StandardCharsets.UTF_8));
+      StringBuilder key = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return key.toString();
+    } catch (NoSuchAlgorithmException e) {
+      // every JVM supports SHA-256.
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,234 @@
+package queue;
+
+import queue.clock.IClock;
+import queue.clock.SystemClock;
+import queue.exception.QueueServiceException;
+import queue.model.Message;
+import queue.model.MessageChangeVisibilityRequest;
+import queue.model.MessageDeleteRequest;
+import queue.model.MessagePullRequest;
+import queue.model.MessagePushRequest;
+import queue.model.QueueAttributes;
+import queue.model.RedrivePolicy;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * ClaimCheckQueueService wraps any QueueService and keeps payloads of at least thresholdBytes
+ * out of it: such a payload is written once to a {@link BlobStore} and the wrapped queue carries
+ * only a reference, which pull replaces with the payload. Deleting a pulled message drops its
+ * reference, and the blob goes with its last reference.
+ *
+ * <p>A pulled message carries its reference as stored content, so delete and changeVisibility
+ * pass the wrapped queue the message as it knows it, from any instance and after a restart. A
+ * message deleted after its visibility timeout is over keeps its blob, since it may have been
+ * delivered again. Blobs of messages dropped otherwise, e.g. expired, purged or deduplicated on
+ * push, are not collected.
+ */
+public class ClaimCheckQueueService implements QueueService {
+  private static final String REFERENCE_PREFIX = PayloadCodec.MARKER + "c";
+
+  private final QueueService queueService;
+  private final BlobStore blobStore;
+  private final int thresholdBytes;
+  private final IClock clock;
+
+  public ClaimCheckQueueService(QueueService queueService, String blobDirectory,
+      int thresholdBytes) throws QueueServiceException {
+    this(queueService, blobDirectory, thresholdBytes, new SystemClock());
+  }
+
+  public ClaimCheckQueueService(QueueService queueService, String blobDirectory,
+      int thresholdBytes, IClock clock) throws QueueServiceException {
+    if (queueService == null) {
+      throw new QueueServiceException("Queue service is null");
+    }
+    if (thresholdBytes <= 0) {
+      throw new QueueServiceException("Claim check threshold must be positive");
+    }
+    try {
+      this.blobStore = BlobStore.forDirectory(new File(blobDirectory));
+    } catch (IOException e) {
+      throw new QueueServiceException("Blob store could not be opened due to IO error, ", e);
+    }
+    this.queueService = queueService;
+    this.thresholdBytes = thresholdBytes;
+    this.clock = clock;
+  }
+
+  @Override
+  public void push(MessagePushRequest request) throws QueueServiceException {
+    tryPush(request);
+  }
+
+  @Override
+  public boolean tryPush(MessagePushRequest request) throws QueueServiceException {
+    MessagePushRequest.validate(request);
+
+    String payload = request.getMessage();
+    // Small payloads which look like a reference are stored too, not to be mistaken for one.
+    if (payload.length() < thresholdBytes && !payload.startsWith(REFERENCE_PREFIX)) {
+      return queueService.tryPush(request);
+    }
+
+    String key;
+    try {
+      key = blobStore.put(payload);
+    } catch (IOException e) {
+      throw new QueueServiceException("Payload could not be stored due to IO error, ", e);
+    }
+
+    MessagePushRequest referenceRequest = new MessagePushRequest(REFERENCE_PREFIX + key,
+        request.getUri())
+        .withHandle(request.getHandle())
+        .withDeduplicationId(request.getDeduplicationId())
+        .withGroupId(request.getGroupId())
+        .withPriority(request.getPriority());
+    if (request.getDelaySeconds() != null) {
+      referenceRequest.withDelaySeconds(request.getDelaySeconds());
+    }
+
+    boolean pushed;
+    try {
+      pushed = queueService.tryPush(referenceRequest);
+    } catch (QueueServiceException e) {
+      release(key);
+      throw e;
+    }
+    // A duplicate is never pulled and deleted, so nothing else would release its reference.
+    if (!pushed) {
+      release(key);
+    }
+    return pushed;
+  }
+
+  @Override
+  public Message pull(MessagePullRequest request) throws QueueServiceException {
+    Message message = queueService.pull(request);
+    if (message == null || !message.getContent().startsWith(REFERENCE_PREFIX)) {
+      return message;
+    }
+
+    String reference = message.getContent();
+    String payload;
+    try {
+      payload = blobStore.get(reference.substring(REFERENCE_PREFIX.length()));
+    } catch (IOException e) {
+      throw new QueueServiceException("Payload could not be read due to IO error, ", e);
+    }
+    if (payload == null) {
+      throw new QueueServiceException("Payload of message with handle " + message.getHandle()
+          + " is missing from the blob store");
+    }
+
+    return withContent(message, payload).withStoredContent(reference);
+  }
+
+  @Override
+  public void delete(MessageDeleteRequest request) throws QueueServiceException {
+    MessageDeleteRequest.validate(request);
+
+    Message message = request.getMessage();
+    String reference = referenceOf(message);
+    if (reference == null) {
+      queueService.delete(request);
+      return;
+    }
+
+    queueService.delete(new MessageDeleteRequest(withContent(message, reference)));
+    // Deleting the same message again must not drop another reference to the payload.
+    message.withStoredContent(null);
+    // A message whose visibility timeout is over may be in flight again, keep its payload.
+    boolean inFlight = message.getVisibilityTimestamp() == 0
+        || message.getVisibilityTimestamp() > clock.getCurrentTimestampMs();
+    if (inFlight) {
+      release(reference.substring(REFERENCE_PREFIX.length()));
+    }
+  }
+
+  @Override
+  public void changeVisibility(MessageChangeVisibilityRequest request)
+      throws QueueServiceException {
+    MessageChangeVisibilityRequest.validate(request);
+
+    Message message = request.getMessage();
+    String reference = referenceOf(message);
+    if (reference == null) {
+      queueService.changeVisibility(request);
+      return;
+    }
+
+    Message referenceMessage = withContent(message, reference);
+    queueService.changeVisibility(
+        new MessageChangeVisibilityRequest(referenceMessage, request.getVisibilityTimeout()));
+    // Keep the caller's copy in sync, as the wrapped queue does.
+    message.setVisibilityTimestamp(referenceMessage.getVisibilityTimestamp());
+  }
+
+  @Override
+  public void setRedrivePolicy(String uri, RedrivePolicy redrivePolicy)
+      throws QueueServiceException {
+    queueService.setRedrivePolicy(uri, redrivePolicy);
+  }
+
+  @Override
+  public int redrive(String deadLetterUri, String targetUri) throws QueueServiceException {
+    return queueService.redrive(deadLetterUri, targetUri);
+  }
+
+  @Override
+  public void setRetentionPeriod(String uri, int retentionPeriodSec)
+      throws QueueServiceException {
+    queueService.setRetentionPeriod(uri, retentionPeriodSec);
+  }
+
+  @Override
+  public QueueAttributes getQueueAttributes(String uri) throws QueueServiceException {
+    return queueService.getQueueAttributes(uri);
+  }
+
+  @Override
+  public void createQueue(String uri) throws QueueServiceException {
+    queueService.createQueue(uri);
+  }
+
+  @Override
+  public void purgeQueue(String uri) throws QueueServiceException {
+    queueService.purgeQueue(uri);
+  }
+
+  @Override
+  public void deleteQueue(String uri) throws QueueServiceException {
+    queueService.deleteQueue(uri);
+  }
+
+  @Override
+  public void setDeliveryDelay(String uri, int delaySec) throws QueueServiceException {
+    queueService.setDeliveryDelay(uri, delaySec);
+  }
+
+  private void release(String key) throws QueueServiceException {
+    try {
+      blobStore.release(key);
+    } catch (IOException e) {
+      throw new QueueServiceException("Payload could not be released due to IO error, ", e);
+    }
+  }
+
+  private static String referenceOf(Message message) {
+    String storedContent = message.getStoredContent();
+    return storedContent != null && storedContent.startsWith(REFERENCE_PREFIX)
+        ? storedContent : null;
+  }
+
+  private static Message withContent(Message message, String content) {
+    return new Message(message.getUri(), message.getHandle(), content,
+        message.getVisibilityTimestamp())
+        .withReceiveCount(message.getReceiveCount())
+        .withDeduplicationId(message.getDeduplicationId())
+        .withGroupId(message.getGroupId())
+        .withPriority(message.getPriority())
+        .withSentTimestamp(message.getSentTimestamp());
+  }
+}
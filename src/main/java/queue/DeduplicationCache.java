@@ -0,0 +1,79 @@
+package queue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * DeduplicationCache remembers keys seen within a time window. The window is split into a ring of
+ * buckets by timestamp; a bucket is cleared when the ring wraps around to it, so keys expire a
+ * bucket at a time and memory is bounded by the number of keys added within one window.
+ * Timestamps are supplied by the caller, which lets replay feed logged timestamps.
+ */
+class DeduplicationCache {
+  private static final int BUCKET_COUNT = 16;
+
+  private final long bucketWidthMs;
+  private final long[] bucketNumbers = new long[BUCKET_COUNT];
+  private final List<Set<String>> buckets = new ArrayList<>(BUCKET_COUNT);
+
+  public DeduplicationCache(long windowMs) {
+    this.bucketWidthMs = Math.max(1, windowMs / BUCKET_COUNT);
+    Arrays.fill(bucketNumbers, Long.MIN_VALUE);
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      buckets.add(new HashSet<>());
+    }
+  }
+
+  /**
+   * Records key as seen at timestamp.
+   *
+   * @return false if key has already been seen within the window, true otherwise.
+   */
+  public synchronized boolean add(String key, long timestamp) {
+    if (contains(key, timestamp)) {
+      return false;
+    }
+
+    long bucketNumber = timestamp / bucketWidthMs;
+
+    int slot = (int) Math.floorMod(bucketNumber, (long) BUCKET_COUNT);
+    if (bucketNumbers[slot] < bucketNumber) {
+      // bucket belongs to an older window, expire all of its keys.
+      buckets.get(slot).clear();
+      bucketNumbers[slot] = bucketNumber;
+    } else if (bucketNumbers[slot] > bucketNumber) {
+      // timestamp is already out of the window.
+      return true;
+    }
+
+    buckets.get(slot).add(key);
+    return true;
+  }
+
+  /**
+   * Checks whether key has been seen within the window ending at timestamp, without recording it.
+   */
+  public synchronized boolean contains(String key, long timestamp) {
+    long bucketNumber = timestamp / bucketWidthMs;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      if (bucketNumbers[i] > bucketNumber - BUCKET_COUNT && buckets.get(i).contains(key)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Forgets key as seen at timestamp, e.g. when the push which added it failed.
+   */
+  public synchronized void remove(String key, long timestamp) {
+    long bucketNumber = timestamp / bucketWidthMs;
+    int slot = (int) Math.floorMod(bucketNumber, (long) BUCKET_COUNT);
+    if (bucketNumbers[slot] == bucketNumber) {
+      buckets.get(slot).remove(key);
+    }
+  }
+}
@@ -3,25 +3,42 @@ package queue;
 import queue.clock.IClock;
 import queue.clock.SystemClock;
 import queue.exception.QueueServiceException;
+import queue.model.AdaptiveVisibility;
 import queue.model.Message;
+import queue.model.MessageChangeVisibilityRequest;
 import queue.model.MessageDeleteRequest;
 import queue.model.MessageFileDto;
 import queue.model.MessagePullRequest;
 import queue.model.MessagePushRequest;
+import queue.model.QueueAttributes;
+import queue.model.QueueTransaction;
+import queue.model.RedrivePolicy;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.LineNumberReader;
 import java.io.OutputStreamWriter;
 import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
 
 
 
@@ -30,77 +47,303 @@ import java.nio.file.Paths;
  * FileLock is obtained on the file before performing any operation, hence all operations are
  * blocking, synchronous and protects against each other within the same JVM or among different
  * JVMs.
+ *
+ * <p>Each record is a line of SERDE_SEP separated fields: operation, timestamp, uri, handle,
+ * content, visibilityTimestamp, receiveCount, followed by optional fields which are left empty
+ * when absent: the target uri of MOVE records, the deduplication id of PUSH records, the group
+ * id, the priority and the sent timestamp of the message, and the transaction id of records
+ * written by {@link #commit(QueueTransaction)}. Records written before receiveCount was
+ * introduced are read with a receive count of zero.
+ *
+ * <p>With a {@link PayloadCodec} set, large content is written compressed and decoded on replay,
+ * so the in-memory queue holds plain content.
+ *
+ * <p>Messages which the in-memory queue moves or expires on its own while serving a request are
+ * logged as MOVE and EXPIRE records, so every reader replays the same decisions. CREATE_QUEUE,
+ * PURGE and DELETE_QUEUE records carry only the uri; a PURGE or DELETE_QUEUE record is a tombstone
+ * before which the records of its queue need not be applied. The records of a transaction are
+ * appended together and followed by a COMMIT record carrying the transaction id as handle; replay
+ * holds them back until the COMMIT record, so a transaction torn by a crash is never applied.
+ *
+ * <p>Every append increments the sequence of a {@link QueueSignal} next to the QUEUE file. Replay
+ * is skipped while the sequence is the one replayed up to last time, and consumers can block in
+ * {@link #awaitMessages(long)} until another process appends. A file truncated by
+ * {@link #truncateIfDrained()} increments the generation of the signal, from which readers replay
+ * it from the start.
+ *
+ * <p>Instances on the same directory in a JVM share one replayed {@link FileQueueState}, and
+ * their operations are serialized on it. The state is held until every instance on the directory
+ * has been closed.
  */
-public class FileQueueService implements QueueService {
+public class FileQueueService implements QueueService, Closeable {
   public static final String QUEUE_FILE_NAME = "QUEUE";
   private static final String SERDE_SEP = "#$";
   private static final String SERDE_SEP_PATTERN = "\\#\\$";
+  private static final Pattern SERDE_SEP_REGEX = Pattern.compile(SERDE_SEP_PATTERN);
+  // Files from which a cold start decodes records in parallel, see ParallelLogDecoder.
+  static final long PARALLEL_REPLAY_MIN_BYTES = 4L << 20;
+  private static final int BROWSE_BUFFER_SIZE = 1 << 16;
+
+  private static final IClock SYSTEM_CLOCK = new SystemClock();
 
-  private final String baseFilePath;
   private final IClock clock;
-  private final File queueFile;
+  private final LongAdder lockWaitNanos = new LongAdder();
 
-  private int currentReadLine = 0;
-  private InMemoryQueueService inMemoryQueueService;
+  // Replayed state shared with other instances on the same directory in this JVM.
+  private final FileQueueState state;
+  private final File queueFile;
+  private final InMemoryQueueService inMemoryQueueService;
+  private final List<MessageFileDto> pendingOperations;
+  private final AtomicBoolean closed = new AtomicBoolean();
 
   public FileQueueService() {
-    this.baseFilePath = ".";
-    this.clock = new SystemClock();
-    this.queueFile = getQueueFile();
-    this.inMemoryQueueService = new InMemoryQueueService(clock);
+    this(".", SYSTEM_CLOCK);
   }
 
   public FileQueueService(String baseFilePath) {
-    this.baseFilePath = baseFilePath;
-    this.clock = new SystemClock();
-    this.queueFile = getQueueFile();
-    this.inMemoryQueueService = new InMemoryQueueService(clock);
+    this(baseFilePath, SYSTEM_CLOCK);
   }
 
+  /**
+   * The clock applies if this is the first open instance on the directory in this JVM, later
+   * instances share its clock with its replayed state.
+   */
   public FileQueueService(String baseFilePath, IClock clock) {
-    this.baseFilePath = baseFilePath;
-    this.clock = clock;
-    this.queueFile = getQueueFile();
-    this.inMemoryQueueService = new InMemoryQueueService(clock);
+    this(FileQueueState.forDirectory(baseFilePath, clock));
+  }
+
+  /**
+   * @param shareState false for an instance with its own replayed state, like one in another
+   *     process.
+   */
+  FileQueueService(String baseFilePath, IClock clock, boolean shareState) {
+    this(shareState ? FileQueueState.forDirectory(baseFilePath, clock)
+        : FileQueueState.unshared(baseFilePath, clock));
+  }
+
+  private FileQueueService(FileQueueState state) {
+    this.state = state;
+    this.clock = state.clock;
+    this.queueFile = state.queueFile;
+    this.inMemoryQueueService = state.inMemoryQueueService;
+    this.pendingOperations = state.pendingOperations;
+  }
+
+  /**
+   * Releases the replayed state held for this instance, after which it must not be used.
+   */
+  @Override
+  public void close() {
+    if (closed.compareAndSet(false, true)) {
+      state.release();
+    }
+  }
+
+  /**
+   * Blocks until the QUEUE file has been appended to since it was last replayed, or the timeout
+   * is over. Appends by instances sharing the replayed state which have already been
+   * applied do not count.
+   *
+   * @return true if there is something new to replay.
+   */
+  public boolean awaitMessages(long timeoutMs) throws QueueServiceException {
+    try {
+      long replayedSequence = state.replayedSequence;
+      return state.signal().await(replayedSequence, timeoutMs) != replayedSequence;
+    } catch (IOException e) {
+      throw new QueueServiceException("Await messages failed due to IO error, ", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new QueueServiceException("Interrupted while waiting for messages", e);
+    }
+  }
+
+  /**
+   * Returns the messages of a queue, waiting or in flight, as of the end of the QUEUE file when
+   * called. The file is walked once, without a lock and without replaying it into the in-memory
+   * queue: only records of the queue are decoded and only its messages are kept, so browsing a
+   * large queue does not block producers and consumers. Delayed messages are included, and a
+   * queue which does not exist has no messages.
+   */
+  public Iterator<Message> browse(String uri) throws QueueServiceException {
+    long length = queueFile.length();
+    Map<String, Message> messages = new LinkedHashMap<>();
+    List<MessageFileDto> transaction = new ArrayList<>();
+    try (FileInputStream in = new FileInputStream(queueFile)) {
+      byte[] buffer = new byte[BROWSE_BUFFER_SIZE];
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      long remaining = length;
+      while (remaining > 0) {
+        int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (read < 0) {
+          break;
+        }
+        remaining -= read;
+        int lineStart = 0;
+        for (int i = 0; i < read; i++) {
+          if (buffer[i] == '\n') {
+            line.write(buffer, lineStart, i - lineStart);
+            browseRecord(uri, new String(line.toByteArray(), StandardCharsets.UTF_8).trim(),
+                transaction, messages);
+            line.reset();
+            lineStart = i + 1;
+          }
+        }
+        // A record being appended past the last line break is left out.
+        line.write(buffer, lineStart, read - lineStart);
+      }
+    } catch (FileNotFoundException e) {
+      return messages.values().iterator();
+    } catch (IOException e) {
+      throw new QueueServiceException("Browse failed due to IO error, ", e);
+    }
+    return messages.values().iterator();
+  }
+
+  private void browseRecord(String uri, String serMessage, List<MessageFileDto> transaction,
+      Map<String, Message> messages) {
+    // Cheap filter, most records of a shared file belong to other queues.
+    if (serMessage.isEmpty() || !serMessage.contains(uri)
+        && !serMessage.startsWith(Operation.COMMIT.name())) {
+      return;
+    }
+
+    MessageFileDto record = deserializeCSV(serMessage);
+    if (bufferTransactionRecord(record, transaction)) {
+      return;
+    }
+    for (MessageFileDto transactionRecord : transaction) {
+      browseOperation(uri, transactionRecord, messages);
+    }
+    transaction.clear();
+    if (record.getTransactionId() == null) {
+      browseOperation(uri, record, messages);
+    }
+  }
+
+  private static void browseOperation(String uri, MessageFileDto record,
+      Map<String, Message> messages) {
+    Operation operation = Operation.valueOf(record.getOperation());
+    long operationTs = record.getCurrentTimestamp();
+    Message message = record.getMessage();
+    if (operation.equals(Operation.MOVE) && uri.equals(record.getTargetUri())) {
+      messages.put(message.getHandle(), new Message(uri, message.getHandle(),
+          message.getContent(), operationTs).withGroupId(message.getGroupId())
+          .withPriority(message.getPriority()).withSentTimestamp(message.getSentTimestamp()));
+      return;
+    }
+    if (!uri.equals(message.getUri())) {
+      return;
+    }
+
+    Message current = messages.get(message.getHandle());
+    if (operation.equals(Operation.PUSH) || operation.equals(Operation.PULL)) {
+      messages.put(message.getHandle(), message);
+    } else if (operation.equals(Operation.CHANGE_VISIBILITY)) {
+      if (current != null && operationTs <= current.getVisibilityTimestamp()) {
+        current.setVisibilityTimestamp(message.getVisibilityTimestamp());
+      }
+    } else if (operation.equals(Operation.DELETE)) {
+      if (current != null && operationTs <= current.getVisibilityTimestamp()) {
+        messages.remove(message.getHandle());
+      }
+    } else if (operation.equals(Operation.MOVE) || operation.equals(Operation.EXPIRE)) {
+      messages.remove(message.getHandle());
+    } else if (operation.equals(Operation.PURGE) || operation.equals(Operation.DELETE_QUEUE)) {
+      messages.clear();
+    }
+  }
+
+  /**
+   * Returns a reader of the records of the QUEUE file from given byte offset, 0 for the first
+   * record, see {@link LogTailer}. Records of a transaction only take effect once its COMMIT
+   * record follows, see {@link MessageFileDto#getTransactionId()}.
+   */
+  public LogTailer tail(long offset) throws QueueServiceException {
+    if (offset < 0) {
+      throw new QueueServiceException("Offset cannot be negative");
+    }
+    try {
+      if (!queueFile.exists()) {
+        queueFile.createNewFile();
+      }
+      return new LogTailer(queueFile, state.signal(), this::deserializeCSV, offset);
+    } catch (IOException e) {
+      throw new QueueServiceException("Tail failed due to IO error, ", e);
+    }
+  }
+
+  /**
+   * Sets the codec with which content of records written from now on is compressed, shared by
+   * all instances on the directory in this JVM. Other processes reading the file need a codec
+   * with the same dictionary, if any.
+   */
+  public void setPayloadCodec(PayloadCodec payloadCodec) throws QueueServiceException {
+    if (payloadCodec == null) {
+      throw new QueueServiceException("Payload codec is null");
+    }
+    state.payloadCodec = payloadCodec;
   }
 
-  private File getQueueFile() {
-    Path path = Paths.get(baseFilePath, QUEUE_FILE_NAME);
-    return path.toFile();
+  public PayloadCodec getPayloadCodec() {
+    return state.payloadCodec;
   }
 
   @Override
   public void push(MessagePushRequest messagePushRequest) throws QueueServiceException {
+    tryPush(messagePushRequest);
+  }
+
+  @Override
+  public boolean tryPush(MessagePushRequest messagePushRequest) throws QueueServiceException {
 
     MessagePushRequest.validate(messagePushRequest);
 
     try {
 
-      Message message = new Message()
-          .withContent(messagePushRequest.getMessage())
-          .withHandle(messagePushRequest.getHandle())
-          .withUri(messagePushRequest.getUri())
-          .withVisibilityTimestamp(clock.getCurrentTimestampMs());
+      Message message = newMessage(messagePushRequest, clock.getCurrentTimestampMs());
 
-      if (message.getHandle() == null || message.getHandle().isEmpty()) {
-        message.withHandle(CommonHelperUtil.getRandomHandle());
+      synchronized (state) {
+        if (message.getDeduplicationId() == null) {
+          safePushOperation(message);
+          return true;
+        }
+        return safeDeduplicatedPushOperation(message);
       }
 
-      safePushOperation(message);
-
     } catch (IOException e) {
       throw new QueueServiceException("Push message failed due to IO error, ", e);
     }
 
   }
 
+  private Message newMessage(MessagePushRequest pushRequest, long currentTs) {
+    Message message = new Message()
+        .withContent(pushRequest.getMessage())
+        .withHandle(pushRequest.getHandle())
+        .withUri(pushRequest.getUri())
+        .withVisibilityTimestamp(
+            currentTs + inMemoryQueueService.getDelaySeconds(pushRequest) * 1000L)
+        .withSentTimestamp(currentTs)
+        .withDeduplicationId(pushRequest.getDeduplicationId())
+        .withGroupId(pushRequest.getGroupId())
+        .withPriority(pushRequest.getPriority());
+
+    if (message.getHandle() == null || message.getHandle().isEmpty()) {
+      message.withHandle(CommonHelperUtil.getRandomHandle());
+    }
+    return message;
+  }
+
   @Override
   public Message pull(MessagePullRequest messagePullRequest) throws QueueServiceException {
 
     MessagePullRequest.validate(messagePullRequest);
 
     try {
-      return safePullOperation(messagePullRequest);
+      synchronized (state) {
+        return safePullOperation(messagePullRequest);
+      }
 
     } catch (IOException e) {
       throw new QueueServiceException("Push message failed due to IO error, ", e);
@@ -114,7 +357,9 @@ public class FileQueueService implements QueueService {
 
     try {
 
-      safeDeleteOperation(messageDeleteRequest.getMessage());
+      synchronized (state) {
+        safeDeleteOperation(messageDeleteRequest.getMessage());
+      }
 
     } catch (IOException e) {
       throw new QueueServiceException("Push message failed due to IO error, ", e);
@@ -122,6 +367,226 @@ public class FileQueueService implements QueueService {
 
   }
 
+  /**
+   * Applies the pushes and deletes of a transaction atomically, with one locked append: their
+   * records and a COMMIT record are written in one flush, after checking under the lock that every
+   * deleted message is still in flight as pulled. Pushes with a deduplication id already seen are
+   * dropped, as by {@link #push(MessagePushRequest)}.
+   *
+   * @throws QueueServiceException if a deleted message is no longer in flight, in which case
+   *     nothing is written.
+   */
+  public void commit(QueueTransaction transaction) throws QueueServiceException {
+
+    QueueTransaction.validate(transaction);
+
+    try {
+
+      long currentTs = clock.getCurrentTimestampMs();
+      List<Message> pushes = new ArrayList<>(transaction.getPushes().size());
+      for (MessagePushRequest pushRequest : transaction.getPushes()) {
+        pushes.add(newMessage(pushRequest, currentTs));
+      }
+
+      synchronized (state) {
+        safeCommitOperation(pushes, transaction.getDeletes());
+      }
+
+    } catch (IOException e) {
+      throw new QueueServiceException("Commit transaction failed due to IO error, ", e);
+    }
+  }
+
+  /**
+   * Makes every operation force its records to disk before it returns, so that they survive a
+   * crash of the machine and not only of the process, at the cost of a disk sync per operation.
+   * Shared by all instances on the directory in this JVM.
+   */
+  public void setSyncWrites(boolean syncWrites) {
+    state.syncWrites = syncWrites;
+  }
+
+  /**
+   * Sets the deduplication window of the replayed state, see
+   * {@link InMemoryQueueService#setDeduplicationWindowMs(long)}.
+   */
+  public void setDeduplicationWindowMs(long deduplicationWindowMs) {
+    inMemoryQueueService.setDeduplicationWindowMs(deduplicationWindowMs);
+  }
+
+  /**
+   * Redrive policies are kept in the replayed state shared within a JVM, so every process writing
+   * to the same file should be configured alike. Messages moved to dead-letter queue are logged,
+   * hence replay does not depend on the policy.
+   */
+  @Override
+  public void setRedrivePolicy(String uri, RedrivePolicy redrivePolicy)
+      throws QueueServiceException {
+    inMemoryQueueService.setRedrivePolicy(uri, redrivePolicy);
+  }
+
+  @Override
+  public int redrive(String deadLetterUri, String targetUri) throws QueueServiceException {
+    try {
+      synchronized (state) {
+        return safeRedriveOperation(deadLetterUri, targetUri);
+      }
+
+    } catch (IOException e) {
+      throw new QueueServiceException("Redrive failed due to IO error, ", e);
+    }
+  }
+
+  /**
+   * Retention periods are kept in the replayed state like redrive policies; expired messages are
+   * logged. A push does not replay the file, so queues which are only pushed to are swept by
+   * {@link #sweepExpiredMessages()}.
+   */
+  @Override
+  public void setRetentionPeriod(String uri, int retentionPeriodSec)
+      throws QueueServiceException {
+    inMemoryQueueService.setRetentionPeriod(uri, retentionPeriodSec);
+  }
+
+  /**
+   * Delivery delays are kept in the replayed state like redrive policies. A delayed push is
+   * logged with its future visibilityTimestamp, hence replay does not depend on the delay.
+   */
+  @Override
+  public void setDeliveryDelay(String uri, int delaySec) throws QueueServiceException {
+    inMemoryQueueService.setDeliveryDelay(uri, delaySec);
+  }
+
+  /**
+   * Adaptive visibility is kept in the replayed state like redrive policies. Every instance
+   * measures processing times from the PULL and DELETE records it replays, and a pull logs the
+   * visibilityTimestamp it assigned, hence replay does not depend on the measurements.
+   */
+  public void setAdaptiveVisibility(String uri, AdaptiveVisibility adaptiveVisibility)
+      throws QueueServiceException {
+    inMemoryQueueService.setAdaptiveVisibility(uri, adaptiveVisibility);
+  }
+
+  /**
+   * Drops a bounded batch of expired messages from every queue with a retention period and logs
+   * them. Meant to be called periodically.
+   *
+   * @return number of messages dropped.
+   */
+  public int sweepExpiredMessages() throws QueueServiceException {
+    try {
+      synchronized (state) {
+        return safeSweepOperation();
+      }
+
+    } catch (IOException e) {
+      throw new QueueServiceException("Sweep failed due to IO error, ", e);
+    }
+  }
+
+  public long getExpiredMessageCount() {
+    return inMemoryQueueService.getExpiredMessageCount();
+  }
+
+  /**
+   * Replays anything new in the file without performing an operation, e.g. to keep the state of
+   * a standby warm, see {@link LogShipper}.
+   */
+  public void refresh() throws QueueServiceException {
+    try {
+      synchronized (state) {
+        safeRefreshOperation();
+      }
+
+    } catch (IOException e) {
+      throw new QueueServiceException("Refresh failed due to IO error, ", e);
+    }
+  }
+
+  /**
+   * Truncates the QUEUE file if none of its queues holds a message any more, so the file of
+   * queues which are drained regularly, like an outbox, does not grow forever. Queues and
+   * deduplication ids known from the truncated records are forgotten by a later cold start, and
+   * readers tailing the file by offset, like a {@link LogShipper}, do not support truncation.
+   *
+   * @return true if the file was truncated.
+   */
+  public boolean truncateIfDrained() throws QueueServiceException {
+    try {
+      synchronized (state) {
+        return safeTruncateOperation();
+      }
+
+    } catch (IOException e) {
+      throw new QueueServiceException("Truncate failed due to IO error, ", e);
+    }
+  }
+
+  /**
+   * Attributes of the replayed in-memory queue, after replaying anything new in the file.
+   */
+  @Override
+  public QueueAttributes getQueueAttributes(String uri) throws QueueServiceException {
+    try {
+      synchronized (state) {
+        return safeQueueAttributesOperation(uri);
+      }
+
+    } catch (IOException e) {
+      throw new QueueServiceException("Get queue attributes failed due to IO error, ", e);
+    }
+  }
+
+  @Override
+  public void createQueue(String uri) throws QueueServiceException {
+    queueOperation(Operation.CREATE_QUEUE, uri);
+  }
+
+  /**
+   * Purges the queue with a single PURGE record, whatever the number of messages.
+   */
+  @Override
+  public void purgeQueue(String uri) throws QueueServiceException {
+    queueOperation(Operation.PURGE, uri);
+  }
+
+  @Override
+  public void deleteQueue(String uri) throws QueueServiceException {
+    queueOperation(Operation.DELETE_QUEUE, uri);
+  }
+
+  private void queueOperation(Operation operation, String uri) throws QueueServiceException {
+    if (uri == null || uri.isEmpty()) {
+      throw new QueueServiceException("Queue name is null or empty");
+    }
+
+    try {
+      synchronized (state) {
+        safeQueueOperation(operation, uri);
+      }
+
+    } catch (IOException e) {
+      throw new QueueServiceException(operation + " failed due to IO error, ", e);
+    }
+  }
+
+  @Override
+  public void changeVisibility(MessageChangeVisibilityRequest changeVisibilityRequest)
+      throws QueueServiceException {
+
+    MessageChangeVisibilityRequest.validate(changeVisibilityRequest);
+
+    try {
+
+      synchronized (state) {
+        safeChangeVisibilityOperation(changeVisibilityRequest);
+      }
+
+    } catch (IOException e) {
+      throw new QueueServiceException("Change visibility failed due to IO error, ", e);
+    }
+  }
+
   private Message safePullOperation(MessagePullRequest pullRequest)
       throws IOException, QueueServiceException {
 
@@ -131,14 +596,21 @@ public class FileQueueService implements QueueService {
          BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fos, "UTF-8"));
          BufferedReader br = new BufferedReader(new InputStreamReader(fis, "UTF-8"));
          LineNumberReader lineReader = new LineNumberReader(br);
-         FileLock fileLock = raf.getChannel().lock(0L, Long.MAX_VALUE, true)) {
+         FileLock fileLock = acquireLock(raf.getChannel(), true)) {
 
       // Replay the file logs to update in-memory queue. There might be multiple processes or
       // threads which could have updated the queue file.
       refreshQueue(lineReader);
 
+      // Messages moved to dead-letter queue or expired while pulling are logged before the pull.
+      pendingOperations.clear();
       Message message = inMemoryQueueService.pull(pullRequest);
+      boolean written = writePendingOperations(bw);
+
       if (message == null) {
+        if (written) {
+          signalAppend(bw, fos, true);
+        }
         return null;
       }
 
@@ -149,12 +621,202 @@ public class FileQueueService implements QueueService {
       bw.write(serializedMessage);
       bw.newLine();
 
-      currentReadLine++;
+      state.currentReadLine++;
+      signalAppend(bw, fos, true);
 
       return message;
     }
   }
 
+  private void safeRefreshOperation() throws IOException, QueueServiceException {
+
+    try (RandomAccessFile raf = new RandomAccessFile(queueFile, "rw");
+         FileInputStream fis = new FileInputStream(queueFile);
+         BufferedReader br = new BufferedReader(new InputStreamReader(fis, "UTF-8"));
+         LineNumberReader lineReader = new LineNumberReader(br);
+         FileLock fileLock = acquireLock(raf.getChannel(), true)) {
+
+      refreshQueue(lineReader);
+    }
+  }
+
+  private boolean safeTruncateOperation() throws IOException, QueueServiceException {
+
+    try (RandomAccessFile raf = new RandomAccessFile(queueFile, "rw");
+         FileInputStream fis = new FileInputStream(queueFile);
+         BufferedReader br = new BufferedReader(new InputStreamReader(fis, "UTF-8"));
+         LineNumberReader lineReader = new LineNumberReader(br);
+         FileLock fileLock = acquireLock(raf.getChannel(), false)) {
+
+      // Every message must be gone as per the latest file logs, including open transactions.
+      refreshQueue(lineReader);
+      if (!inMemoryQueueService.isEmpty() || !state.transactionRecords.isEmpty()) {
+        return false;
+      }
+
+      raf.getChannel().truncate(0);
+      if (state.syncWrites) {
+        raf.getChannel().force(false);
+      }
+      state.currentReadLine = 0;
+      state.replayedSequence = state.signal().incrementGeneration();
+      state.replayedGeneration = state.signal().getGeneration();
+      return true;
+    }
+  }
+
+  private QueueAttributes safeQueueAttributesOperation(String uri)
+      throws IOException, QueueServiceException {
+
+    try (RandomAccessFile raf = new RandomAccessFile(queueFile, "rw");
+         FileInputStream fis = new FileInputStream(queueFile);
+         BufferedReader br = new BufferedReader(new InputStreamReader(fis, "UTF-8"));
+         LineNumberReader lineReader = new LineNumberReader(br);
+         FileLock fileLock = acquireLock(raf.getChannel(), true)) {
+
+      // Nothing is written, so a shared lock suffices.
+      refreshQueue(lineReader);
+
+      return inMemoryQueueService.getQueueAttributes(uri);
+    }
+  }
+
+  private void safeQueueOperation(Operation operation, String uri)
+      throws IOException, QueueServiceException {
+
+    try (RandomAccessFile raf = new RandomAccessFile(queueFile, "rw");
+         FileOutputStream fos = new FileOutputStream(queueFile, true);
+         FileInputStream fis = new FileInputStream(queueFile);
+         BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fos, "UTF-8"));
+         BufferedReader br = new BufferedReader(new InputStreamReader(fis, "UTF-8"));
+         LineNumberReader lineReader = new LineNumberReader(br);
+         FileLock fileLock = acquireLock(raf.getChannel(), false)) {
+
+      // The queue must exist as per the latest file logs to be purged or deleted, applying the
+      // operation fails before anything is written otherwise.
+      refreshQueue(lineReader);
+
+      Message message = new Message(uri, "", "", 0);
+      applyOperation(new MessageFileDto(operation.name(), clock.getCurrentTimestampMs(),
+          message));
+
+      bw.write(serializeCSV(operation.name(), message));
+      bw.newLine();
+
+      state.currentReadLine++;
+      signalAppend(bw, fos, true);
+    }
+  }
+
+  private void safeChangeVisibilityOperation(MessageChangeVisibilityRequest request)
+      throws IOException, QueueServiceException {
+
+    try (RandomAccessFile raf = new RandomAccessFile(queueFile, "rw");
+         FileOutputStream fos = new FileOutputStream(queueFile, true);
+         FileInputStream fis = new FileInputStream(queueFile);
+         BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fos, "UTF-8"));
+         BufferedReader br = new BufferedReader(new InputStreamReader(fis, "UTF-8"));
+         LineNumberReader lineReader = new LineNumberReader(br);
+         FileLock fileLock = acquireLock(raf.getChannel(), false)) {
+
+      // The message must still be in flight as per the latest file logs.
+      refreshQueue(lineReader);
+
+      inMemoryQueueService.changeVisibility(request);
+
+      // Write the new visibilityTimestamp of the message, which is repositioned during replay.
+      String serializedMessage = serializeCSV(Operation.CHANGE_VISIBILITY.name(),
+          request.getMessage());
+
+      bw.write(serializedMessage);
+      bw.newLine();
+
+      state.currentReadLine++;
+      signalAppend(bw, fos, true);
+    }
+  }
+
+  private int safeRedriveOperation(String deadLetterUri, String targetUri)
+      throws IOException, QueueServiceException {
+
+    try (RandomAccessFile raf = new RandomAccessFile(queueFile, "rw");
+         FileOutputStream fos = new FileOutputStream(queueFile, true);
+         FileInputStream fis = new FileInputStream(queueFile);
+         BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fos, "UTF-8"));
+         BufferedReader br = new BufferedReader(new InputStreamReader(fis, "UTF-8"));
+         LineNumberReader lineReader = new LineNumberReader(br);
+         FileLock fileLock = acquireLock(raf.getChannel(), false)) {
+
+      refreshQueue(lineReader);
+
+      // Write a move operation for every message drained from the dead-letter queue.
+      pendingOperations.clear();
+      int moved = inMemoryQueueService.redrive(deadLetterUri, targetUri);
+      if (writePendingOperations(bw)) {
+        signalAppend(bw, fos, true);
+      }
+      return moved;
+    }
+  }
+
+  private int safeSweepOperation() throws IOException, QueueServiceException {
+
+    try (RandomAccessFile raf = new RandomAccessFile(queueFile, "rw");
+         FileOutputStream fos = new FileOutputStream(queueFile, true);
+         FileInputStream fis = new FileInputStream(queueFile);
+         BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fos, "UTF-8"));
+         BufferedReader br = new BufferedReader(new InputStreamReader(fis, "UTF-8"));
+         LineNumberReader lineReader = new LineNumberReader(br);
+         FileLock fileLock = acquireLock(raf.getChannel(), false)) {
+
+      refreshQueue(lineReader);
+
+      pendingOperations.clear();
+      int expired = inMemoryQueueService.sweepExpiredMessages(
+          InMemoryQueueService.EXPIRY_SWEEP_BATCH_SIZE);
+      if (writePendingOperations(bw)) {
+        signalAppend(bw, fos, true);
+      }
+      return expired;
+    }
+  }
+
+  /**
+   * @return false if there was nothing to write.
+   */
+  private boolean writePendingOperations(BufferedWriter bw) throws IOException {
+    // These operations have already been applied to in-memory queue, hence skipped on replay.
+    boolean written = !pendingOperations.isEmpty();
+    for (MessageFileDto operation : pendingOperations) {
+      bw.write(serializeCSV(operation.getOperation(), operation.getMessage(),
+          operation.getTargetUri()));
+      bw.newLine();
+      state.currentReadLine++;
+    }
+    pendingOperations.clear();
+    return written;
+  }
+
+  /**
+   * Flushes the appended records and increments the signal sequence, while still holding the
+   * file lock.
+   *
+   * @param applied whether the records have already been applied to in-memory queue.
+   */
+  private void signalAppend(BufferedWriter bw, FileOutputStream fos, boolean applied)
+      throws IOException {
+    bw.flush();
+    if (state.syncWrites) {
+      fos.getChannel().force(false);
+    }
+    long sequence = state.signal().increment();
+
+    // Nothing else was appended since the last replay, so the next one can be skipped.
+    if (applied && sequence - 1 == state.replayedSequence) {
+      state.replayedSequence = sequence;
+    }
+  }
+
   private void safePushOperation(Message message) throws IOException {
 
     /*
@@ -164,7 +826,7 @@ public class FileQueueService implements QueueService {
 
     try (FileOutputStream fos = new FileOutputStream(queueFile, true);
          BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fos, "UTF-8"));
-         FileLock fileLock = fos.getChannel().lock()) {
+         FileLock fileLock = acquireLock(fos.getChannel(), false)) {
 
       // Construct a serialized message.
       String serializedMessage = serializeCSV(Operation.PUSH.name(), message);
@@ -172,6 +834,41 @@ public class FileQueueService implements QueueService {
       // Write message in a separate line in file queue.
       bw.write(serializedMessage);
       bw.newLine();
+      signalAppend(bw, fos, false);
+    }
+  }
+
+  /**
+   * @return false if the push was dropped as a duplicate.
+   */
+  private boolean safeDeduplicatedPushOperation(Message message)
+      throws IOException, QueueServiceException {
+
+    /*
+     * A push with deduplication id has to see all the earlier pushes, hence it replays the file
+     * logs under an exclusive lock before writing the push operation log.
+     */
+
+    try (RandomAccessFile raf = new RandomAccessFile(queueFile, "rw");
+         FileOutputStream fos = new FileOutputStream(queueFile, true);
+         FileInputStream fis = new FileInputStream(queueFile);
+         BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fos, "UTF-8"));
+         BufferedReader br = new BufferedReader(new InputStreamReader(fis, "UTF-8"));
+         LineNumberReader lineReader = new LineNumberReader(br);
+         FileLock fileLock = acquireLock(raf.getChannel(), false)) {
+
+      refreshQueue(lineReader);
+
+      if (!inMemoryQueueService.recordDeduplicationId(message.getUri(),
+          message.getDeduplicationId(), clock.getCurrentTimestampMs())) {
+        return false;
+      }
+
+      // The push is applied to in-memory queue when this line is replayed.
+      bw.write(serializeCSV(Operation.PUSH.name(), message));
+      bw.newLine();
+      signalAppend(bw, fos, false);
+      return true;
     }
   }
 
@@ -184,7 +881,7 @@ public class FileQueueService implements QueueService {
 
     try (FileOutputStream fos = new FileOutputStream(queueFile, true);
          BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fos, "UTF-8"));
-         FileLock fileLock = fos.getChannel().lock()) {
+         FileLock fileLock = acquireLock(fos.getChannel(), false)) {
 
       // Construct a serialized delete message.
       String serializedMessage = serializeCSV(Operation.DELETE.name(), message);
@@ -192,15 +889,136 @@ public class FileQueueService implements QueueService {
       // Write message in a separate line in file queue.
       bw.write(serializedMessage);
       bw.newLine();
+      signalAppend(bw, fos, false);
+
+    }
+  }
+
+  private void safeCommitOperation(List<Message> pushes, List<Message> deletes)
+      throws IOException, QueueServiceException {
 
+    /*
+     * A transaction has to see whether its deleted messages are still in flight, hence it replays
+     * the file logs under an exclusive lock before writing its operation logs.
+     */
+
+    try (RandomAccessFile raf = new RandomAccessFile(queueFile, "rw");
+         FileOutputStream fos = new FileOutputStream(queueFile, true);
+         FileInputStream fis = new FileInputStream(queueFile);
+         BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fos, "UTF-8"));
+         BufferedReader br = new BufferedReader(new InputStreamReader(fis, "UTF-8"));
+         LineNumberReader lineReader = new LineNumberReader(br);
+         FileLock fileLock = acquireLock(raf.getChannel(), false)) {
+
+      refreshQueue(lineReader);
+
+      long currentTs = clock.getCurrentTimestampMs();
+      for (Message message : deletes) {
+        if (!inMemoryQueueService.isInFlight(message, currentTs)) {
+          throw new QueueServiceException("Message with handle " + message.getHandle()
+              + " is not in flight in queue " + message.getUri());
+        }
+      }
+
+      // All records of the transaction carry its timestamp, so replay deletes as checked above.
+      String transactionId = CommonHelperUtil.getRandomHandle();
+      boolean written = false;
+      for (Message message : pushes) {
+        if (message.getDeduplicationId() != null && !inMemoryQueueService.recordDeduplicationId(
+            message.getUri(), message.getDeduplicationId(), currentTs)) {
+          continue;
+        }
+        bw.write(serializeCSV(Operation.PUSH.name(), currentTs, message, null, transactionId));
+        bw.newLine();
+        written = true;
+      }
+      for (Message message : deletes) {
+        bw.write(serializeCSV(Operation.DELETE.name(), currentTs, message, null, transactionId));
+        bw.newLine();
+        written = true;
+      }
+      if (!written) {
+        return;
+      }
+
+      // The transaction is applied to in-memory queue when its COMMIT line is replayed.
+      bw.write(serializeCSV(Operation.COMMIT.name(), currentTs,
+          new Message("", transactionId, "", 0), null, transactionId));
+      bw.newLine();
+      signalAppend(bw, fos, false);
     }
   }
 
+  private FileLock acquireLock(FileChannel channel, boolean shared) throws IOException {
+    long startNanos = System.nanoTime();
+    FileLock fileLock = channel.lock(0L, Long.MAX_VALUE, shared);
+    lockWaitNanos.add(System.nanoTime() - startNanos);
+    return fileLock;
+  }
+
+  /**
+   * Total time spent by this instance waiting to acquire the QUEUE file lock, useful to measure
+   * contention among processes sharing the same file.
+   */
+  public long getLockWaitNanos() {
+    return lockWaitNanos.sum();
+  }
+
   public void refreshQueue(LineNumberReader lineReader) throws IOException, QueueServiceException {
 
+    // Nothing has been appended since the last replay.
+    long sequence = state.signal().getSequence();
+    if (sequence == state.replayedSequence) {
+      inMemoryQueueService.processAllInFlightQueues();
+      return;
+    }
+
+    // The file has been truncated since the last replay, when all of its messages were gone.
+    long generation = state.signal().getGeneration();
+    if (generation != state.replayedGeneration) {
+      if (state.currentReadLine > 0) {
+        inMemoryQueueService.purgeAllQueues();
+        state.transactionRecords.clear();
+        state.currentReadLine = 0;
+      }
+      state.replayedGeneration = generation;
+    }
+
+    // On cold start, a large file is decoded in parallel and applied in log order.
+    long fileLength = queueFile.length();
+    if (state.currentReadLine == 0 && fileLength >= PARALLEL_REPLAY_MIN_BYTES
+        && fileLength <= Integer.MAX_VALUE) {
+      List<MessageFileDto> records = new ParallelLogDecoder(this::deserializeCSV)
+          .decode(queueFile, fileLength);
+      Map<String, Integer> tombstones = lastTombstones(records);
+      for (int i = 0; i < records.size(); i++) {
+        MessageFileDto record = records.get(i);
+        Integer tombstone = tombstones.get(record.getMessage().getUri());
+        if (tombstone != null && i == tombstone) {
+          // the records creating the queue have been skipped.
+          inMemoryQueueService.createQueue(record.getMessage().getUri());
+        }
+        // Messages of a queue are dropped by its tombstone anyway, unless moved elsewhere. Pushes
+        // with a deduplication id are kept, which outlives the tombstone.
+        if (tombstone == null || i >= tombstone
+            || record.getOperation().equals(Operation.MOVE.name())
+            || record.getMessage().getDeduplicationId() != null) {
+          replayOperation(record);
+        }
+      }
+      state.currentReadLine = records.size();
+
+      // Lines appended meanwhile are read below, which has to skip the decoded ones first.
+      if (queueFile.length() == fileLength) {
+        inMemoryQueueService.processAllInFlightQueues();
+        state.replayedSequence = sequence;
+        return;
+      }
+    }
+
     // Skip all the lines upto current read line.
     int lineNumber = 0;
-    while (lineNumber < currentReadLine) {
+    while (lineNumber < state.currentReadLine) {
       lineReader.readLine();
       lineNumber++;
     }
@@ -209,53 +1027,176 @@ public class FileQueueService implements QueueService {
     String serMessage = lineReader.readLine();
     while (serMessage != null) {
       lineNumber++;
-      MessageFileDto messageFileDto = deserializeCSV(serMessage);
-
-      Operation operation = Operation.valueOf(messageFileDto.getOperation());
-      long operationTs = messageFileDto.getCurrentTimestamp();
-      Message message = messageFileDto.getMessage();
-
-      if (operation.equals(Operation.PUSH)) {
-        // add message to main queue.
-        inMemoryQueueService.addMessageToMainQueue(message);
-      } else if (operation.equals(Operation.PULL)) {
-        // remove message if present in main queue.
-        inMemoryQueueService.removeMessageFromMainQueue(message);
-        // remove message if present in in-flight queue.
-        inMemoryQueueService.removeMessageFromInFlightQueue(message);
-        // add message to in-flight queue.
-        inMemoryQueueService.addMessageToInFlightQueue(message);
-      } else {
-        inMemoryQueueService.deleteFromInFlightQueue(message, operationTs);
-      }
-
+      replayOperation(deserializeCSV(serMessage));
       serMessage = lineReader.readLine();
     }
 
     inMemoryQueueService.processAllInFlightQueues();
 
-    currentReadLine = lineNumber;
+    state.currentReadLine = lineNumber;
+    state.replayedSequence = sequence;
+  }
+
+  private static Map<String, Integer> lastTombstones(List<MessageFileDto> records) {
+    Map<String, Integer> tombstones = new HashMap<>();
+    for (int i = 0; i < records.size(); i++) {
+      String operation = records.get(i).getOperation();
+      if (operation.equals(Operation.PURGE.name())
+          || operation.equals(Operation.DELETE_QUEUE.name())) {
+        tombstones.put(records.get(i).getMessage().getUri(), i);
+      }
+    }
+    return tombstones;
+  }
+
+  private void replayOperation(MessageFileDto record) throws QueueServiceException {
+    List<MessageFileDto> transaction = state.transactionRecords;
+    if (bufferTransactionRecord(record, transaction)) {
+      return;
+    }
+    for (MessageFileDto transactionRecord : transaction) {
+      applyOperation(transactionRecord);
+    }
+    transaction.clear();
+    if (record.getTransactionId() == null) {
+      applyOperation(record);
+    }
+  }
+
+  /**
+   * Holds back the records of a transaction until its COMMIT record. Records of a transaction are
+   * contiguous, so any other record drops those of a transaction left open by a crashed writer.
+   *
+   * @return false if record is a COMMIT record, after which the held records are to be applied,
+   *     or a record outside of transactions, which is to be applied.
+   */
+  private static boolean bufferTransactionRecord(MessageFileDto record,
+      List<MessageFileDto> transaction) {
+    String transactionId = record.getTransactionId();
+    if (!transaction.isEmpty()
+        && !transaction.get(0).getTransactionId().equals(transactionId)) {
+      transaction.clear();
+    }
+    if (record.getOperation().equals(Operation.COMMIT.name()) || transactionId == null) {
+      return false;
+    }
+    transaction.add(record);
+    return true;
+  }
+
+  private void applyOperation(MessageFileDto messageFileDto) throws QueueServiceException {
+    Operation operation = Operation.valueOf(messageFileDto.getOperation());
+    long operationTs = messageFileDto.getCurrentTimestamp();
+    Message message = messageFileDto.getMessage();
+    if (message.getSentTimestamp() == 0) {
+      // written before sent timestamp was logged.
+      message.withSentTimestamp(operationTs);
+    }
+
+    if (operation.equals(Operation.PUSH)) {
+      // remember deduplication id of the push.
+      if (message.getDeduplicationId() != null) {
+        inMemoryQueueService.recordDeduplicationId(message.getUri(),
+            message.getDeduplicationId(), operationTs);
+      }
+      // add message to main queue.
+      inMemoryQueueService.addMessageToMainQueue(message);
+    } else if (operation.equals(Operation.PULL)) {
+      // remove message if present in main queue.
+      inMemoryQueueService.removeMessageFromMainQueue(message);
+      // remove message if present in in-flight queue.
+      inMemoryQueueService.removeMessageFromInFlightQueue(message);
+      // add message to in-flight queue, from which its processing time is measured.
+      message.setReceivedTimestamp(operationTs);
+      inMemoryQueueService.addMessageToInFlightQueue(message);
+    } else if (operation.equals(Operation.CHANGE_VISIBILITY)) {
+      // reposition message in in-flight queue as per new visibilityTimestamp.
+      inMemoryQueueService.changeInFlightVisibility(message, operationTs);
+    } else if (operation.equals(Operation.MOVE)) {
+      // move message to target queue, e.g. dead-letter queue.
+      inMemoryQueueService.moveMessage(message, messageFileDto.getTargetUri(), operationTs);
+    } else if (operation.equals(Operation.EXPIRE)) {
+      // drop message whose retention period is over.
+      inMemoryQueueService.expireMessage(message);
+    } else if (operation.equals(Operation.CREATE_QUEUE)) {
+      inMemoryQueueService.createQueue(message.getUri());
+    } else if (operation.equals(Operation.PURGE)) {
+      inMemoryQueueService.purgeQueue(message.getUri());
+    } else if (operation.equals(Operation.DELETE_QUEUE)) {
+      inMemoryQueueService.deleteQueue(message.getUri());
+    } else {
+      inMemoryQueueService.deleteFromInFlightQueue(message, operationTs);
+    }
   }
 
   private String serializeCSV(String operation, Message message) {
-    return operation + SERDE_SEP + clock.getCurrentTimestampMs() + SERDE_SEP + message.getUri()
-        + SERDE_SEP + message.getHandle() + SERDE_SEP + message.getContent() + SERDE_SEP
-        + Long.toString(message.getVisibilityTimestamp());
+    return serializeCSV(operation, message, null);
+  }
+
+  private String serializeCSV(String operation, Message message, String targetUri) {
+    return serializeCSV(operation, clock.getCurrentTimestampMs(), message, targetUri, null);
+  }
+
+  private String serializeCSV(String operation, long currentTs, Message message,
+      String targetUri, String transactionId) {
+    StringBuilder serMessage = new StringBuilder()
+        .append(operation).append(SERDE_SEP)
+        .append(currentTs).append(SERDE_SEP)
+        .append(message.getUri()).append(SERDE_SEP)
+        .append(message.getHandle()).append(SERDE_SEP)
+        .append(state.payloadCodec.encode(message.getContent())).append(SERDE_SEP)
+        .append(message.getVisibilityTimestamp()).append(SERDE_SEP)
+        .append(message.getReceiveCount());
+    appendOptionalFields(serMessage, targetUri, message.getDeduplicationId(),
+        message.getGroupId(),
+        message.getPriority() == 0 ? null : Integer.toString(message.getPriority()),
+        Long.toString(message.getSentTimestamp()), transactionId);
+    return serMessage.toString();
   }
 
-  private MessageFileDto deserializeCSV(String serMessage) {
-    String[] tokens = serMessage.split(SERDE_SEP_PATTERN);
+  private void appendOptionalFields(StringBuilder serMessage, String... fields) {
+    // Trailing absent fields are not written at all.
+    int lastPresent = fields.length - 1;
+    while (lastPresent >= 0 && fields[lastPresent] == null) {
+      lastPresent--;
+    }
+    for (int i = 0; i <= lastPresent; i++) {
+      serMessage.append(SERDE_SEP).append(fields[i] == null ? "" : fields[i]);
+    }
+  }
+
+  private static String optionalToken(String[] tokens, int index) {
+    return tokens.length > index && !tokens[index].isEmpty() ? tokens[index] : null;
+  }
+
+  MessageFileDto deserializeCSV(String serMessage) {
+    String[] tokens = SERDE_SEP_REGEX.split(serMessage);
     String operation = tokens[0];
     long currentTs = Long.valueOf(tokens[1]);
     String uri = tokens[2];
     String handle = tokens[3];
-    String content = tokens[4];
+    String content = state.payloadCodec.decode(tokens[4]);
     long visibilityTimestamp = Long.valueOf(tokens[5]);
-    Message message = new Message(uri, handle, content, visibilityTimestamp);
-    return new MessageFileDto(operation, currentTs, message);
+    int receiveCount = tokens.length > 6 ? Integer.valueOf(tokens[6]) : 0;
+    String targetUri = optionalToken(tokens, 7);
+    Message message = new Message(uri, handle, content, visibilityTimestamp)
+        .withReceiveCount(receiveCount)
+        .withDeduplicationId(optionalToken(tokens, 8))
+        .withGroupId(optionalToken(tokens, 9));
+    String priority = optionalToken(tokens, 10);
+    if (priority != null) {
+      message.withPriority(Integer.valueOf(priority));
+    }
+    String sentTimestamp = optionalToken(tokens, 11);
+    if (sentTimestamp != null) {
+      message.withSentTimestamp(Long.valueOf(sentTimestamp));
+    }
+    return new MessageFileDto(operation, currentTs, message, targetUri,
+        optionalToken(tokens, 12));
   }
 
   enum Operation {
-    PUSH, PULL, DELETE
+    PUSH, PULL, DELETE, CHANGE_VISIBILITY, MOVE, EXPIRE, CREATE_QUEUE, PURGE, DELETE_QUEUE,
+    COMMIT
   }
 }
@@ -0,0 +1,142 @@
+package queue;
+
+import queue.clock.IClock;
+import queue.model.Message;
+import queue.model.MessageFileDto;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * FileQueueState is the replayed state of one QUEUE file: the in-memory queue and how far the
+ * file has been replayed into it. There is one state per directory in a JVM, shared by all
+ * FileQueueService instances on that directory, so the file is parsed and its messages are held
+ * only once however many instances there are. Operations on a shared state are serialized by
+ * synchronizing on it. A state is released once every instance using it has been closed.
+ */
+class FileQueueState {
+  private static final Map<String, FileQueueState> STATES = new ConcurrentHashMap<>();
+
+  final IClock clock;
+  final File queueFile;
+  final InMemoryQueueService inMemoryQueueService;
+  final List<MessageFileDto> pendingOperations = new ArrayList<>();
+  // Replayed records of a transaction whose COMMIT record has not been replayed yet.
+  final List<MessageFileDto> transactionRecords = new ArrayList<>();
+  int currentReadLine = 0;
+  volatile long replayedSequence = -1;
+  // Generation of the file replayed into the in-memory queue, see QueueSignal.
+  long replayedGeneration = -1;
+  // Codec of the content field of records, decodes compressed content even if not configured.
+  volatile PayloadCodec payloadCodec = new PayloadCodec();
+  volatile boolean syncWrites;
+
+  private final String baseFilePath;
+  // Registry key of a shared state, null for an unshared one.
+  private final String key;
+  private int references;
+  private QueueSignal signal;
+
+  private FileQueueState(String baseFilePath, IClock clock, String key) {
+    this.baseFilePath = baseFilePath;
+    this.key = key;
+    this.clock = clock;
+    this.queueFile = Paths.get(baseFilePath, FileQueueService.QUEUE_FILE_NAME).toFile();
+    this.inMemoryQueueService = new InMemoryQueueService(clock);
+    this.inMemoryQueueService.setOperationListener(new PendingOperationLogger());
+  }
+
+  /**
+   * Returns the state of the QUEUE file in given directory, shared with other instances on it.
+   * A new state is created with the given clock, an existing one keeps its own clock. Every call
+   * must be matched by a {@link #release()}.
+   */
+  public static FileQueueState forDirectory(String baseFilePath, IClock clock) {
+    return STATES.compute(canonicalPath(baseFilePath), (path, state) -> {
+      FileQueueState shared = state != null ? state : new FileQueueState(baseFilePath, clock, path);
+      shared.references++;
+      return shared;
+    });
+  }
+
+  /**
+   * Returns a state of the QUEUE file in given directory which is not shared, like the state of
+   * another process.
+   */
+  static FileQueueState unshared(String baseFilePath, IClock clock) {
+    return new FileQueueState(baseFilePath, clock, null);
+  }
+
+  /**
+   * Drops a reference to a shared state, which is forgotten with its messages and releases its
+   * signal once the last reference is dropped. An unshared state has a single reference.
+   */
+  public void release() {
+    if (key != null) {
+      AtomicBoolean last = new AtomicBoolean();
+      STATES.computeIfPresent(key, (path, state) -> {
+        if (state != this || --references > 0) {
+          return state;
+        }
+        last.set(true);
+        return null;
+      });
+      if (!last.get()) {
+        return;
+      }
+    }
+    releaseSignal();
+  }
+
+  private synchronized void releaseSignal() {
+    if (signal == null) {
+      return;
+    }
+    try {
+      signal.release();
+    } catch (IOException e) {
+      // The counters live in the mapping, closing the file loses nothing.
+    }
+    signal = null;
+  }
+
+  public synchronized QueueSignal signal() throws IOException {
+    if (signal == null) {
+      signal = QueueSignal.forFile(Paths.get(baseFilePath, QueueSignal.SIGNAL_FILE_NAME).toFile());
+    }
+    return signal;
+  }
+
+  private static String canonicalPath(String baseFilePath) {
+    File directory = new File(baseFilePath);
+    try {
+      return directory.getCanonicalPath();
+    } catch (IOException e) {
+      return directory.getAbsolutePath();
+    }
+  }
+
+  /**
+   * Collects operations decided by in-memory queue, to be written by the running operation.
+   */
+  private class PendingOperationLogger implements QueueOperationListener {
+
+    @Override
+    public void onMove(Message message, String targetUri) {
+      pendingOperations.add(new MessageFileDto(FileQueueService.Operation.MOVE.name(), 0, message,
+          targetUri));
+    }
+
+    @Override
+    public void onExpire(Message message) {
+      pendingOperations.add(new MessageFileDto(FileQueueService.Operation.EXPIRE.name(), 0,
+          message));
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package queue;
+
+import queue.model.Message;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * InFlightQueue holds the pulled but not yet deleted messages of one queue, sorted in the order of
+ * visibilityTimestamp. Messages are also indexed by handle, so that delete and visibility changes
+ * find and reposition a message in O(log n) instead of scanning the whole queue. A message must
+ * not have its visibilityTimestamp changed while it is held here except through this class.
+ */
+class InFlightQueue {
+
+  private final ConcurrentSkipListSet<Message> messages =
+      new ConcurrentSkipListSet<>(inFlightComparator());
+  private final Map<String, Message> messagesByHandle = new ConcurrentHashMap<>();
+
+  public synchronized void add(Message message) {
+    Message previous = messagesByHandle.put(message.getHandle(), message);
+    if (previous != null) {
+      messages.remove(previous);
+    }
+    messages.add(message);
+  }
+
+  public Message get(String handle) {
+    return messagesByHandle.get(handle);
+  }
+
+  public synchronized Message remove(String handle) {
+    return remove(handle, message -> true);
+  }
+
+  /**
+   * Removes the message with given handle only if it satisfies the condition.
+   *
+   * @return removed message, or null if nothing was removed.
+   */
+  public synchronized Message remove(String handle, Predicate<Message> condition) {
+    Message message = messagesByHandle.get(handle);
+    if (message == null || !condition.test(message)) {
+      return null;
+    }
+    messagesByHandle.remove(handle);
+    messages.remove(message);
+    return message;
+  }
+
+  /**
+   * Moves a message which is still in flight at currentTs to a new visibilityTimestamp.
+   *
+   * @return false if the message is not in flight anymore.
+   */
+  public synchronized boolean changeVisibility(String handle, long currentTs,
+                                               long visibilityTimestamp) {
+    Message message = messagesByHandle.get(handle);
+    if (message == null || message.getVisibilityTimestamp() <= currentTs) {
+      return false;
+    }
+    messages.remove(message);
+    message.setVisibilityTimestamp(visibilityTimestamp);
+    messages.add(message);
+    return true;
+  }
+
+  /**
+   * Removes and returns the message with least visibilityTimestamp if it is not after currentTs.
+   */
+  public synchronized Message pollExpired(long currentTs) {
+    if (messages.isEmpty() || messages.first().getVisibilityTimestamp() > currentTs) {
+      return null;
+    }
+    Message message = messages.pollFirst();
+    messagesByHandle.remove(message.getHandle());
+    return message;
+  }
+
+  /**
+   * Weakly consistent iteration over all messages, which does not block other operations.
+   */
+  public void forEach(Consumer<Message> action) {
+    messagesByHandle.values().forEach(action);
+  }
+
+  /**
+   * Weakly consistent iterator over all messages, which does not block other operations.
+   */
+  public Iterator<Message> iterator() {
+    return messagesByHandle.values().iterator();
+  }
+
+  public boolean isEmpty() {
+    return messagesByHandle.isEmpty();
+  }
+
+  public int size() {
+    return messagesByHandle.size();
+  }
+
+  private static Comparator<Message> inFlightComparator() {
+    return Comparator.comparingLong(Message::getVisibilityTimestamp)
+        .thenComparing(Message::getHandle);
+  }
+}
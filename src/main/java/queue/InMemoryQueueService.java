@@ -4,31 +4,104 @@ package queue;
 import queue.clock.IClock;
 import queue.clock.SystemClock;
 import queue.exception.QueueServiceException;
+import queue.model.AdaptiveVisibility;
 import queue.model.Message;
+import queue.model.MessageChangeVisibilityRequest;
 import queue.model.MessageDeleteRequest;
 import queue.model.MessagePullRequest;
 import queue.model.MessagePushRequest;
+import queue.model.OverflowPolicy;
+import queue.model.QueueAttributes;
+import queue.model.QueueLimits;
+import queue.model.QueueTransaction;
+import queue.model.RedrivePolicy;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 
 /**
  * InMemoryQueueService maintains collection of main queues and corresponding in-flight queues
  * for each of these queues. When a message is pushed, it goes into one of the main queues
- * sorted in the order of visibilityTimestamp. When a message is pulled, the message with least
- * visibilityTimestamp is obtained from the main queue, its visibilityTimestamp is increased
- * by visibilityTimeout period and then it is moved to in-flight queue. A message is deleted
- * from in-flight queue if its visibilityTimestamp is more than current timestamp, otherwise it
- * is moved to main queue by a scheduler thread.
+ * sorted by priority and then in the order of visibilityTimestamp, see {@link ReadyQueue}. When a
+ * message is pulled, the next visible message is obtained from the main queue, its
+ * visibilityTimestamp is increased by visibilityTimeout period and then it is moved to in-flight
+ * queue. A message is deleted from in-flight queue if its visibilityTimestamp is more than current
+ * timestamp, otherwise it is moved to main queue by a scheduler thread.
+ *
+ * <p>A queue with a redrive policy moves a message to its dead-letter queue instead of delivering
+ * it once it has been received maxReceiveCount times.
+ *
+ * <p>Pushes carrying a deduplication id already seen for the queue within the deduplication
+ * window are dropped.
+ *
+ * <p>Messages with a group id are kept in {@link MessageGroups} instead of the main queue, which
+ * delivers at most one message per group at a time.
+ *
+ * <p>A queue with a retention period keeps an index of its messages by sent timestamp, from which
+ * push and pull drop a bounded batch of expired messages; {@link #sweepExpiredMessages(int)} can
+ * be scheduled for idle queues.
+ *
+ * <p>Occupancy of every queue is tracked in {@link QueueCounters}, against which push enforces
+ * the {@link QueueLimits} of the queue, if set.
+ *
+ * <p>A queue with tiering enabled keeps at most a fixed number of ungrouped messages in its main
+ * queue and appends later pushes to a {@link SpillQueue} on disk, from which pull refills the
+ * main queue in chunks as it drains. Spilled messages are delivered after the messages in memory
+ * regardless of their priority, and are indexed for retention once they are read back.
+ *
+ * <p>Messages pushed with a delay wait in {@link ScheduledMessages} until they are due, and are
+ * moved to the main queue, or their group, by pull.
+ *
+ * <p>With a {@link PayloadCodec} set, messages are held with compressed content, which counts
+ * against the payload limits, and pull returns a copy with the plain content.
+ *
+ * <p>A {@link QueueTransaction} is checked in full before it is applied, in one critical section
+ * shared by all transactions.
  */
 public class InMemoryQueueService implements QueueService {
+  public static final long DEFAULT_DEDUPLICATION_WINDOW_MS = 5 * 60 * 1000;
+  public static final int EXPIRY_SWEEP_BATCH_SIZE = 32;
+  private static final String DEDUPLICATION_KEY_SEP = "\u0000";
+  private static final PayloadCodec PLAIN_CODEC = new PayloadCodec();
 
   private final IClock clock;
-  private Map<String, PriorityBlockingQueue<Message>> queues = new ConcurrentHashMap<>();
-  private Map<String, PriorityBlockingQueue<Message>> inFlightQueues = new ConcurrentHashMap<>();
+  private volatile DeduplicationCache deduplicationCache =
+      new DeduplicationCache(DEFAULT_DEDUPLICATION_WINDOW_MS);
+  private Map<String, ReadyQueue> queues = new ConcurrentHashMap<>();
+  private Map<String, InFlightQueue> inFlightQueues = new ConcurrentHashMap<>();
+  private Map<String, MessageGroups> messageGroups = new ConcurrentHashMap<>();
+  private Map<String, RedrivePolicy> redrivePolicies = new ConcurrentHashMap<>();
+  private Map<String, Long> retentionPeriodsMs = new ConcurrentHashMap<>();
+  private Map<String, ConcurrentSkipListSet<Message>> retentionIndexes = new ConcurrentHashMap<>();
+  private Map<String, QueueCounters> queueCounters = new ConcurrentHashMap<>();
+  private Map<String, QueueLimits> queueLimits = new ConcurrentHashMap<>();
+  private Map<String, SpillQueue> spillQueues = new ConcurrentHashMap<>();
+  private Map<String, Integer> maxInMemoryMessages = new ConcurrentHashMap<>();
+  private Map<String, ScheduledMessages> scheduledMessages = new ConcurrentHashMap<>();
+  private Map<String, Integer> deliveryDelaysSec = new ConcurrentHashMap<>();
+  private Map<String, AdaptiveVisibility> adaptiveVisibilities = new ConcurrentHashMap<>();
+  private Map<String, LatencyHistogram> processingTimes = new ConcurrentHashMap<>();
+  private final LongAdder expiredMessageCount = new LongAdder();
+  private final LongAdder droppedMessageCount = new LongAdder();
+  private final Object transactionLock = new Object();
+  private volatile PayloadCodec payloadCodec;
+  private volatile QueueOperationListener operationListener = QueueOperationListener.NONE;
 
   public InMemoryQueueService() {
     this.clock = new SystemClock();
@@ -40,32 +113,41 @@ public class InMemoryQueueService implements QueueService {
 
   public void processInFlightQueue(String uri) {
 
-    PriorityBlockingQueue<Message> inFlightQueue = inFlightQueues.get(uri);
+    InFlightQueue inFlightQueue = inFlightQueues.get(uri);
 
     if (inFlightQueue == null || inFlightQueue.isEmpty()) {
       return;
     }
 
-    PriorityBlockingQueue<Message> queue = queues.get(uri);
-
     // If visibility time of in-flight queue is over, remove and push it to main queue.
-    for (Message message : inFlightQueue) {
-      if (message.getVisibilityTimestamp() > clock.getCurrentTimestampMs()) {
-        break;
-      }
-      if (inFlightQueue.remove(message)) {
-        queue.add(message);
+    long currentTs = clock.getCurrentTimestampMs();
+    Message message = inFlightQueue.pollExpired(currentTs);
+    while (message != null) {
+      // Processing took at least the timeout, leaving it out would keep a short timeout short.
+      recordProcessingTime(message, message.getVisibilityTimestamp());
+      if (message.getGroupId() == null) {
+        // message is still accounted to the queue, it only changes place.
+        queues.computeIfAbsent(uri, k -> new ReadyQueue()).add(message);
+      } else {
+        // message goes back to the head of its group.
+        messageGroups.computeIfAbsent(uri, k -> new MessageGroups()).requeue(message);
       }
+      message = inFlightQueue.pollExpired(currentTs);
     }
 
+    // Release memory of a drained in-flight queue. It is removed only inside compute, like adds
+    // to it, so it cannot race with them.
+    inFlightQueues.computeIfPresent(uri, (k, queue) -> queue.isEmpty() ? null : queue);
+
+  }
+
+  void setOperationListener(QueueOperationListener operationListener) {
+    this.operationListener = operationListener;
   }
 
   public void processAllInFlightQueues() {
     // move the messages from in-flight queue to main queue whose visibilityTs is expired.
-    for (Map.Entry<String, PriorityBlockingQueue<Message>> inFlightQueueEntry :
-        inFlightQueues.entrySet()) {
-
-      String queue = inFlightQueueEntry.getKey();
+    for (String queue : inFlightQueues.keySet()) {
       processInFlightQueue(queue);
     }
   }
@@ -73,22 +155,324 @@ public class InMemoryQueueService implements QueueService {
   @Override
   public void push(MessagePushRequest request) throws QueueServiceException {
     MessagePushRequest.validate(request);
+    pushMessage(request);
+  }
+
+  @Override
+  public boolean tryPush(MessagePushRequest request) throws QueueServiceException {
+    MessagePushRequest.validate(request);
+    return pushMessage(request) != null;
+  }
+
+  /**
+   * @return the pushed message, or null if it was dropped as a duplicate.
+   */
+  private Message pushMessage(MessagePushRequest request) throws QueueServiceException {
+    long currentTs = clock.getCurrentTimestampMs();
+
+    if (request.getDeduplicationId() != null
+        && !recordDeduplicationId(request.getUri(), request.getDeduplicationId(), currentTs)) {
+      return null;
+    }
+
+    sweepExpiredMessages(request.getUri(), EXPIRY_SWEEP_BATCH_SIZE);
 
-    // Delay feature can be easily added by adding the delay time to visibleAtTs.
-    long visibleAtTs = clock.getCurrentTimestampMs();
+    Message message = newMessage(request, currentTs);
+    try {
+      ensureCapacity(message);
+      if (!spillMessage(message)) {
+        addMessageToMainQueue(message);
+      }
+    } catch (QueueServiceException e) {
+      // A rejected push is not a duplicate of its retry.
+      if (request.getDeduplicationId() != null) {
+        forgetDeduplicationId(request.getUri(), request.getDeduplicationId(), currentTs);
+      }
+      throw e;
+    }
+    return message;
+  }
 
+  private Message newMessage(MessagePushRequest request, long currentTs) {
+    PayloadCodec codec = payloadCodec;
     Message message = new Message()
-        .withContent(request.getMessage())
+        .withContent(codec == null ? request.getMessage() : codec.encode(request.getMessage()))
         .withUri(request.getUri())
-        .withVisibilityTimestamp(visibleAtTs);
+        .withVisibilityTimestamp(currentTs + getDelaySeconds(request) * 1000L)
+        .withSentTimestamp(currentTs)
+        .withGroupId(request.getGroupId())
+        .withPriority(request.getPriority());
 
     if (request.getHandle() == null || request.getHandle().isEmpty()) {
       message.withHandle(CommonHelperUtil.getRandomHandle());
     } else {
       message.withHandle(request.getHandle());
     }
+    return message;
+  }
+
+  /**
+   * Applies the pushes and deletes of a transaction atomically. The deleted messages are taken
+   * out of their in-flight queues first, then every push is checked against deduplication and
+   * the queue limits before any of them is applied, so a failed transaction leaves no trace but
+   * the deleted messages put back in flight. A transaction does not wait for room in a queue nor
+   * drop its oldest messages, whatever the overflow policy, and cannot push to a queue with
+   * tiering enabled.
+   *
+   * @throws QueueServiceException if a deleted message is no longer in flight or a push does not
+   *     fit in its queue.
+   */
+  public void commit(QueueTransaction transaction) throws QueueServiceException {
+    QueueTransaction.validate(transaction);
+    for (MessagePushRequest request : transaction.getPushes()) {
+      if (spillQueues.containsKey(request.getUri())) {
+        throw new QueueServiceException("Transaction cannot push to queue " + request.getUri()
+            + " with tiering enabled");
+      }
+    }
+
+    synchronized (transactionLock) {
+      long currentTs = clock.getCurrentTimestampMs();
+      List<Message> deleted = new ArrayList<>(transaction.getDeletes().size());
+      List<Message> pushes;
+      try {
+        for (Message message : transaction.getDeletes()) {
+          InFlightQueue queue = inFlightQueues.get(message.getUri());
+          Message removed = queue == null ? null : queue.remove(message.getHandle(),
+              m -> isLeaseOf(m, message, currentTs));
+          if (removed == null) {
+            throw new QueueServiceException("Message with handle " + message.getHandle()
+                + " is not in flight in queue " + message.getUri());
+          }
+          // Room freed by the deletes is available to the pushes.
+          removeFromRetentionIndex(removed);
+          countersOf(removed.getUri()).remove(removed);
+          deleted.add(removed);
+        }
+        pushes = stagePushes(transaction.getPushes(), currentTs);
+      } catch (QueueServiceException e) {
+        for (Message message : deleted) {
+          countersOf(message.getUri()).add(message);
+          addToRetentionIndex(message);
+          addToInFlightQueue(message);
+        }
+        throw e;
+      }
+
+      for (Message message : pushes) {
+        if (message.getDeduplicationId() != null) {
+          recordDeduplicationId(message.getUri(), message.getDeduplicationId(), currentTs);
+        }
+        addMessageToMainQueue(message);
+      }
+      for (Message message : deleted) {
+        releaseGroup(message);
+        recordProcessingTime(message, currentTs);
+      }
+    }
+  }
+
+  /**
+   * Builds the messages of the pushes of a transaction which are not duplicates, after checking
+   * that they all fit in their queues.
+   */
+  private List<Message> stagePushes(List<MessagePushRequest> requests, long currentTs)
+      throws QueueServiceException {
+    List<Message> pushes = new ArrayList<>(requests.size());
+    Map<String, long[]> sizes = new HashMap<>();
+    Set<String> deduplicationKeys = new HashSet<>();
+    for (MessagePushRequest request : requests) {
+      String deduplicationId = request.getDeduplicationId();
+      if (deduplicationId != null && (!deduplicationKeys.add(request.getUri()
+          + DEDUPLICATION_KEY_SEP + deduplicationId)
+          || isDuplicate(request.getUri(), deduplicationId, currentTs))) {
+        continue;
+      }
+
+      Message message = newMessage(request, currentTs).withDeduplicationId(deduplicationId);
+      long[] size = sizes.computeIfAbsent(message.getUri(), k -> new long[2]);
+      size[0]++;
+      size[1] += QueueCounters.sizeOf(message);
+      pushes.add(message);
+    }
+
+    for (Map.Entry<String, long[]> entry : sizes.entrySet()) {
+      QueueLimits limits = queueLimits.get(entry.getKey());
+      if (limits != null
+          && !countersOf(entry.getKey()).hasRoom(limits, entry.getValue()[0],
+          entry.getValue()[1])) {
+        throw new QueueServiceException("Queue " + entry.getKey() + " is full");
+      }
+    }
+    return pushes;
+  }
+
+  /**
+   * Checks whether a message is still in flight as pulled, i.e. it has not been pulled again
+   * since and its visibility timeout is not over at currentTs.
+   */
+  public boolean isInFlight(Message message, long currentTs) {
+    InFlightQueue queue = inFlightQueues.get(message.getUri());
+    Message inFlight = queue == null ? null : queue.get(message.getHandle());
+    return inFlight != null && isLeaseOf(inFlight, message, currentTs);
+  }
 
-    addMessageToMainQueue(message);
+  private static boolean isLeaseOf(Message inFlight, Message pulled, long currentTs) {
+    return inFlight.getVisibilityTimestamp() == pulled.getVisibilityTimestamp()
+        && inFlight.getVisibilityTimestamp() > currentTs;
+  }
+
+  @Override
+  public void setDeliveryDelay(String uri, int delaySec) throws QueueServiceException {
+    if (uri == null || uri.isEmpty()) {
+      throw new QueueServiceException("Queue name is null or empty");
+    }
+    MessagePushRequest.validateDelaySeconds(delaySec);
+
+    deliveryDelaysSec.put(uri, delaySec);
+  }
+
+  /**
+   * Delay of a push, its own or else the delivery delay of its queue.
+   */
+  public int getDelaySeconds(MessagePushRequest request) {
+    if (request.getDelaySeconds() != null) {
+      return request.getDelaySeconds();
+    }
+    return deliveryDelaysSec.getOrDefault(request.getUri(), 0);
+  }
+
+  private void promoteScheduledMessages(String uri, ReadyQueue queue, long currentTs) {
+    ScheduledMessages scheduled = scheduledMessages.get(uri);
+    if (scheduled == null) {
+      return;
+    }
+    for (Message message : scheduled.pollDue(currentTs)) {
+      if (message.getGroupId() == null) {
+        queue.add(message);
+      } else {
+        messageGroups.computeIfAbsent(uri, k -> new MessageGroups()).add(message);
+      }
+    }
+  }
+
+  /**
+   * Enables tiering of a queue: beyond maxInMemoryMessages, pushed messages without a group id
+   * are kept in segment files under directory, which must not be shared with other queues.
+   */
+  public void enableTiering(String uri, File directory, int maxInMemoryMessages)
+      throws QueueServiceException {
+    if (uri == null || uri.isEmpty()) {
+      throw new QueueServiceException("Queue name is null or empty");
+    }
+    if (directory == null) {
+      throw new QueueServiceException("Tiering directory is null");
+    }
+    if (maxInMemoryMessages < 1) {
+      throw new QueueServiceException("Max in-memory messages cannot be less than 1");
+    }
+
+    this.maxInMemoryMessages.put(uri, maxInMemoryMessages);
+    spillQueues.putIfAbsent(uri, new SpillQueue(directory));
+  }
+
+  /**
+   * Number of messages of the queue which are currently kept on disk.
+   */
+  public long getSpilledMessageCount(String uri) {
+    SpillQueue spillQueue = spillQueues.get(uri);
+    return spillQueue == null ? 0 : spillQueue.size();
+  }
+
+  private boolean spillMessage(Message message) throws QueueServiceException {
+    SpillQueue spillQueue = spillQueues.get(message.getUri());
+    if (spillQueue == null || message.getGroupId() != null
+        || message.getVisibilityTimestamp() > message.getSentTimestamp()) {
+      return false;
+    }
+
+    // Once anything is spilled, later pushes are spilled too so that FIFO order is kept.
+    ReadyQueue queue = queues.computeIfAbsent(message.getUri(), k -> new ReadyQueue());
+    if (spillQueue.size() == 0 && queue.size() < maxInMemoryMessages.get(message.getUri())) {
+      return false;
+    }
+
+    try {
+      spillQueue.append(message);
+    } catch (IOException e) {
+      throw new QueueServiceException("Failed to spill message to disk for queue "
+          + message.getUri(), e);
+    }
+    countersOf(message.getUri()).add(message);
+    return true;
+  }
+
+  private void refillFromSpill(String uri, ReadyQueue queue) throws QueueServiceException {
+    SpillQueue spillQueue = spillQueues.get(uri);
+    if (spillQueue == null || spillQueue.size() == 0) {
+      return;
+    }
+
+    // Read back only once the head has half drained, so that reads happen in large chunks.
+    int maxMessages = maxInMemoryMessages.get(uri);
+    if (queue.size() > maxMessages / 2) {
+      return;
+    }
+
+    List<Message> messages;
+    try {
+      messages = spillQueue.poll(uri, maxMessages - queue.size());
+    } catch (IOException e) {
+      throw new QueueServiceException("Failed to read spilled messages of queue " + uri, e);
+    }
+    for (Message message : messages) {
+      // spilled messages are already accounted to the queue.
+      addToRetentionIndex(message);
+      queue.add(message);
+    }
+  }
+
+  private void ensureCapacity(Message message) throws QueueServiceException {
+    QueueLimits limits = queueLimits.get(message.getUri());
+    if (limits == null) {
+      return;
+    }
+
+    String uri = message.getUri();
+    QueueCounters counters = countersOf(uri);
+    long size = QueueCounters.sizeOf(message);
+    if (counters.hasRoom(limits, size)) {
+      return;
+    }
+
+    switch (limits.getOverflowPolicy()) {
+      case BLOCK:
+        try {
+          if (counters.awaitRoom(limits, size, limits.getBlockTimeoutMs())) {
+            return;
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new QueueServiceException("Interrupted while waiting for space in queue " + uri);
+        }
+        break;
+      case DROP_OLDEST:
+        ReadyQueue queue = queues.get(uri);
+        Message oldest = queue == null ? null : queue.pollOldest();
+        while (oldest != null) {
+          removeFromRetentionIndex(oldest);
+          counters.remove(oldest);
+          droppedMessageCount.increment();
+          if (counters.hasRoom(limits, size)) {
+            return;
+          }
+          oldest = queue.pollOldest();
+        }
+        break;
+      default:
+        break;
+    }
+    throw new QueueServiceException("Queue " + uri + " is full");
   }
 
   @Override
@@ -98,27 +482,123 @@ public class InMemoryQueueService implements QueueService {
     String uri = request.getUri();
 
     // check if queue exists.
-    PriorityBlockingQueue<Message> queue = queues.get(uri);
+    ReadyQueue queue = queues.get(uri);
     if (queue == null) {
       throw new QueueServiceException("Queue " + uri + " does not exist");
     }
 
     processInFlightQueue(uri);
+    sweepExpiredMessages(uri, EXPIRY_SWEEP_BATCH_SIZE);
+    refillFromSpill(uri, queue);
+    promoteScheduledMessages(uri, queue, clock.getCurrentTimestampMs());
 
-    // If queue is empty or any message has not yet reached visibility timestamp, return null.
     long currentTime = clock.getCurrentTimestampMs();
-    if (queue.isEmpty() || currentTime < queue.peek().getVisibilityTimestamp()) {
+    Message message = pollVisibleMessage(uri, queue, currentTime);
+
+    // Messages which reached max receive count are moved to dead-letter queue, not delivered.
+    RedrivePolicy redrivePolicy = redrivePolicies.get(uri);
+    while (message != null && redrivePolicy != null
+        && message.getReceiveCount() >= redrivePolicy.getMaxReceiveCount()) {
+      operationListener.onMove(message, redrivePolicy.getDeadLetterUri());
+      movePolledMessage(message, redrivePolicy.getDeadLetterUri(), currentTime);
+      releaseGroup(message);
+      message = pollVisibleMessage(uri, queue, currentTime);
+    }
+
+    if (message == null) {
       return null;
     }
 
-    int visibilityTimeout = request.getVisibilityTimeout();
-    Message message = queue.poll();
-    message.setVisibilityTimestamp(visibilityTimeout * 1000 + clock.getCurrentTimestampMs());
+    int visibilityTimeout = getVisibilityTimeoutSec(uri, request.getVisibilityTimeout());
+    message.setVisibilityTimestamp(visibilityTimeout * 1000L + clock.getCurrentTimestampMs());
+    message.setReceiveCount(message.getReceiveCount() + 1);
+    message.setReceivedTimestamp(currentTime);
 
-    // Put the message to in-flight queue, which will be cleared by the worker.
-    addMessageToInFlightQueue(message);
+    // Put the message to in-flight queue, which will be cleared by the worker. Its group, if any,
+    // has already been marked in flight when the message was polled.
+    addToInFlightQueue(message);
 
-    return message;
+    return PayloadCodec.isEncoded(message.getContent()) ? copyOf(message) : message;
+  }
+
+  /**
+   * Returns a weakly consistent iterator over copies of the messages of a queue, waiting or in
+   * flight. It streams over the live queues without blocking other operations, so it may or may
+   * not see changes made while iterating. Messages of a group are copied when iteration starts,
+   * and delayed and spilled messages are not included.
+   */
+  public Iterator<Message> browse(String uri) throws QueueServiceException {
+    ReadyQueue queue = queues.get(uri);
+    InFlightQueue inFlightQueue = inFlightQueues.get(uri);
+    if (queue == null && inFlightQueue == null) {
+      throw new QueueServiceException("Queue " + uri + " does not exist");
+    }
+
+    List<Message> groupedMessages = new ArrayList<>();
+    MessageGroups groups = messageGroups.get(uri);
+    if (groups != null) {
+      groups.forEach(groupedMessages::add);
+    }
+
+    Stream<Message> messages = Stream.concat(
+        Stream.concat(queue == null ? Stream.empty() : stream(queue.iterator()),
+            groupedMessages.stream()),
+        inFlightQueue == null ? Stream.empty() : stream(inFlightQueue.iterator()));
+    return messages.map(this::copyOf).iterator();
+  }
+
+  private static Stream<Message> stream(Iterator<Message> iterator) {
+    return StreamSupport.stream(
+        Spliterators.spliteratorUnknownSize(iterator, Spliterator.NONNULL), false);
+  }
+
+  private Message copyOf(Message message) {
+    // Without a codec, e.g. after it was unset, only content compressed without dictionary
+    // can be decoded.
+    PayloadCodec codec = payloadCodec == null ? PLAIN_CODEC : payloadCodec;
+    return new Message(message.getUri(), message.getHandle(), codec.decode(message.getContent()),
+        message.getVisibilityTimestamp())
+        .withReceiveCount(message.getReceiveCount())
+        .withDeduplicationId(message.getDeduplicationId())
+        .withGroupId(message.getGroupId())
+        .withPriority(message.getPriority())
+        .withSentTimestamp(message.getSentTimestamp());
+  }
+
+  /**
+   * Sets the codec with which content of messages pushed from now on is held in memory, or null
+   * to hold it plain.
+   */
+  public void setPayloadCodec(PayloadCodec payloadCodec) {
+    this.payloadCodec = payloadCodec;
+  }
+
+  public PayloadCodec getPayloadCodec() {
+    return payloadCodec;
+  }
+
+  private Message pollVisibleMessage(String uri, ReadyQueue queue, long currentTime) {
+    // Head of the first ready group competes with head of main queue by visibilityTimestamp.
+    Message head = queue.peek(currentTime);
+    MessageGroups groups = messageGroups.get(uri);
+    Message groupHead = groups == null ? null : groups.peekReady(currentTime);
+    if (groupHead != null
+        && (head == null || groupHead.getVisibilityTimestamp() <= head.getVisibilityTimestamp())) {
+      Message message = groups.pollReady(currentTime);
+      if (message != null) {
+        return message;
+      }
+    }
+
+    // If queue is empty or any message has not yet reached visibility timestamp, return null.
+    return queue.poll(currentTime);
+  }
+
+  private void releaseGroup(Message message) {
+    if (message.getGroupId() != null) {
+      messageGroups.computeIfAbsent(message.getUri(), k -> new MessageGroups())
+          .release(message.getGroupId());
+    }
   }
 
   @Override
@@ -130,7 +610,7 @@ public class InMemoryQueueService implements QueueService {
     String uri = message.getUri();
 
     // Check if queue exists.
-    PriorityBlockingQueue<Message> queue = inFlightQueues.get(uri);
+    InFlightQueue queue = inFlightQueues.get(uri);
 
     // Check if queue is invalid.
     if (queue == null && queues.get(uri) == null) {
@@ -141,80 +621,533 @@ public class InMemoryQueueService implements QueueService {
 
     // Delete the message only if it exists in in-flight queue.
     // If the message has been moved to main queue, this consumer should not delete it.
-    for (Message messageItem : queue) {
-      if (messageItem.getHandle().equals(handle)) {
-        if (messageItem.getVisibilityTimestamp() > clock.getCurrentTimestampMs()) {
-          queue.remove(messageItem);
+    long currentTs = clock.getCurrentTimestampMs();
+    Message deleted = queue.remove(handle, m -> m.getVisibilityTimestamp() > currentTs);
+    if (deleted != null) {
+      releaseGroup(deleted);
+      removeFromRetentionIndex(deleted);
+      countersOf(uri).remove(deleted);
+      recordProcessingTime(deleted, currentTs);
+    }
+  }
 
-          System.out.println("Message with handle " + handle + " has been deleted successfully from"
-              + " queue " + uri);
-        }
-        return;
-      }
+  @Override
+  public void changeVisibility(MessageChangeVisibilityRequest request)
+      throws QueueServiceException {
+    MessageChangeVisibilityRequest.validate(request);
+
+    Message message = request.getMessage();
+    String handle = message.getHandle();
+    String uri = message.getUri();
+
+    InFlightQueue queue = inFlightQueues.get(uri);
+    if (queue == null && queues.get(uri) == null) {
+      throw new QueueServiceException("Queue " + uri + " does not exist");
+    }
+
+    // Only a message which is still in flight can be repositioned, otherwise it may already have
+    // been handed to another consumer.
+    long currentTs = clock.getCurrentTimestampMs();
+    long visibleAtTs = currentTs + request.getVisibilityTimeout() * 1000L;
+    if (queue == null || !queue.changeVisibility(handle, currentTs, visibleAtTs)) {
+      throw new QueueServiceException("Message with handle " + handle + " is not in flight in"
+          + " queue " + uri);
     }
 
-    System.out.println("Message with handle " + handle + " not found in queue " + uri);
+    // Keep the caller's copy in sync, so that a later delete matches the in-flight message.
+    message.setVisibilityTimestamp(visibleAtTs);
   }
 
-  public void addMessageToMainQueue(Message message) {
-    addMessageToQueue(queues, message);
+  /**
+   * Sets the window within which pushes with the same deduplication id are dropped. Deduplication
+   * ids recorded so far are forgotten.
+   */
+  public void setDeduplicationWindowMs(long deduplicationWindowMs) {
+    this.deduplicationCache = new DeduplicationCache(deduplicationWindowMs);
   }
 
-  public void addMessageToInFlightQueue(Message message) {
-    addMessageToQueue(inFlightQueues, message);
+  /**
+   * Records the deduplication id of a push to the given queue at timestamp.
+   *
+   * @return false if the same id has already been pushed to the queue within the window.
+   */
+  public boolean recordDeduplicationId(String uri, String deduplicationId, long timestamp) {
+    return deduplicationCache.add(uri + DEDUPLICATION_KEY_SEP + deduplicationId, timestamp);
   }
 
-  public void addMessageToQueue(Map<String, PriorityBlockingQueue<Message>> queues,
-                                Message message) {
-    queues.computeIfAbsent(message.getUri(), k ->
-        new PriorityBlockingQueue<>(10, messagePriorityComparator()))
-        .add(message);
+  private boolean isDuplicate(String uri, String deduplicationId, long timestamp) {
+    return deduplicationCache.contains(uri + DEDUPLICATION_KEY_SEP + deduplicationId, timestamp);
   }
 
-  public void removeMessageFromMainQueue(Message message) {
-    removeMessageFromQueue(queues, message);
+  private void forgetDeduplicationId(String uri, String deduplicationId, long timestamp) {
+    deduplicationCache.remove(uri + DEDUPLICATION_KEY_SEP + deduplicationId, timestamp);
+  }
+
+  @Override
+  public void setRedrivePolicy(String uri, RedrivePolicy redrivePolicy)
+      throws QueueServiceException {
+    if (uri == null || uri.isEmpty()) {
+      throw new QueueServiceException("Queue name is null or empty");
+    }
+    RedrivePolicy.validate(redrivePolicy);
+
+    redrivePolicies.put(uri, redrivePolicy);
   }
 
-  public void removeMessageFromInFlightQueue(Message message) {
-    removeMessageFromQueue(inFlightQueues, message);
+  public RedrivePolicy getRedrivePolicy(String uri) {
+    return redrivePolicies.get(uri);
   }
 
-  public void removeMessageFromQueue(Map<String, PriorityBlockingQueue<Message>> queues,
-                                     Message message) {
-    PriorityBlockingQueue<Message> queue = queues.get(message.getUri());
+  @Override
+  public int redrive(String deadLetterUri, String targetUri) throws QueueServiceException {
+    if (deadLetterUri == null || deadLetterUri.isEmpty() || targetUri == null
+        || targetUri.isEmpty()) {
+      throw new QueueServiceException("Queue name is null or empty");
+    }
+
+    ReadyQueue queue = queues.get(deadLetterUri);
     if (queue == null) {
-      // ignore the message.
+      throw new QueueServiceException("Queue " + deadLetterUri + " does not exist");
+    }
+
+    processInFlightQueue(deadLetterUri);
+    promoteScheduledMessages(deadLetterUri, queue, clock.getCurrentTimestampMs());
+
+    long currentTime = clock.getCurrentTimestampMs();
+    int moved = 0;
+    Message message = pollVisibleMessage(deadLetterUri, queue, currentTime);
+    while (message != null) {
+      operationListener.onMove(message, targetUri);
+      movePolledMessage(message, targetUri, currentTime);
+      releaseGroup(message);
+      moved++;
+      message = pollVisibleMessage(deadLetterUri, queue, currentTime);
+    }
+    return moved;
+  }
+
+  /**
+   * Moves a message from its queue to the main queue of targetUri with a fresh receive count. The
+   * message is removed from both main and in-flight queue of its own uri, if present.
+   */
+  public void moveMessage(Message message, String targetUri, long visibleAtTs) {
+    removeMessage(message);
+    addMovedMessage(message, targetUri, visibleAtTs);
+  }
+
+  /**
+   * Moves a message which has already been polled from its queue, see
+   * {@link #moveMessage(Message, String, long)}.
+   */
+  private void movePolledMessage(Message message, String targetUri, long visibleAtTs) {
+    removeFromRetentionIndex(message);
+    countersOf(message.getUri()).remove(message);
+    addMovedMessage(message, targetUri, visibleAtTs);
+  }
+
+  private void addMovedMessage(Message message, String targetUri, long visibleAtTs) {
+    addMessageToMainQueue(new Message(targetUri, message.getHandle(), message.getContent(),
+        visibleAtTs).withGroupId(message.getGroupId()).withPriority(message.getPriority())
+        .withSentTimestamp(message.getSentTimestamp()));
+  }
+
+  @Override
+  public void setRetentionPeriod(String uri, int retentionPeriodSec)
+      throws QueueServiceException {
+    if (uri == null || uri.isEmpty()) {
+      throw new QueueServiceException("Queue name is null or empty");
+    }
+    if (retentionPeriodSec < 1) {
+      throw new QueueServiceException("Retention period cannot be less than 1 second");
+    }
+
+    retentionPeriodsMs.put(uri, retentionPeriodSec * 1000L);
+
+    // Index the messages already in the queue once, later messages are indexed as they arrive.
+    ConcurrentSkipListSet<Message> index = new ConcurrentSkipListSet<>(sentTimestampComparator());
+    if (retentionIndexes.putIfAbsent(uri, index) == null) {
+      ReadyQueue queue = queues.get(uri);
+      if (queue != null) {
+        queue.forEach(index::add);
+      }
+      MessageGroups groups = messageGroups.get(uri);
+      if (groups != null) {
+        groups.forEach(index::add);
+      }
+      InFlightQueue inFlightQueue = inFlightQueues.get(uri);
+      if (inFlightQueue != null) {
+        inFlightQueue.forEach(index::add);
+      }
+    }
+  }
+
+  /**
+   * Drops up to maxMessagesPerQueue expired messages from every queue with a retention period.
+   *
+   * @return number of messages dropped.
+   */
+  public int sweepExpiredMessages(int maxMessagesPerQueue) {
+    int expired = 0;
+    for (String uri : retentionIndexes.keySet()) {
+      expired += sweepExpiredMessages(uri, maxMessagesPerQueue);
+    }
+    return expired;
+  }
+
+  private int sweepExpiredMessages(String uri, int maxMessages) {
+    ConcurrentSkipListSet<Message> index = retentionIndexes.get(uri);
+    Long retentionPeriodMs = retentionPeriodsMs.get(uri);
+    if (index == null || retentionPeriodMs == null) {
+      return 0;
+    }
+
+    // Oldest messages come first in the index, so the sweep stops at the first live message.
+    long expiredBeforeTs = clock.getCurrentTimestampMs() - retentionPeriodMs;
+    int expired = 0;
+    while (expired < maxMessages) {
+      Iterator<Message> iterator = index.iterator();
+      if (!iterator.hasNext()) {
+        break;
+      }
+      Message oldest = iterator.next();
+      if (oldest.getSentTimestamp() > expiredBeforeTs) {
+        break;
+      }
+      if (index.contains(oldest)) {
+        operationListener.onExpire(oldest);
+        expireMessage(oldest);
+        expired++;
+      }
+    }
+    return expired;
+  }
+
+  /**
+   * Drops a message from main, in-flight and retention index of its queue.
+   */
+  public void expireMessage(Message message) {
+    removeMessage(message);
+    expiredMessageCount.increment();
+  }
+
+  /**
+   * Number of messages dropped because their retention period was over.
+   */
+  public long getExpiredMessageCount() {
+    return expiredMessageCount.sum();
+  }
+
+  /**
+   * Makes pulls from a queue derive the visibility timeout from the observed pull-to-delete
+   * times of its messages, see {@link AdaptiveVisibility}, or restores the timeout of the pull
+   * request if null. A message whose visibility timeout runs out counts as processed in its
+   * timeout, so redeliveries raise the estimate.
+   */
+  public void setAdaptiveVisibility(String uri, AdaptiveVisibility adaptiveVisibility)
+      throws QueueServiceException {
+    if (uri == null || uri.isEmpty()) {
+      throw new QueueServiceException("Queue name is null or empty");
+    }
+    if (adaptiveVisibility == null) {
+      adaptiveVisibilities.remove(uri);
       return;
     }
+    AdaptiveVisibility.validate(adaptiveVisibility);
+
+    adaptiveVisibilities.put(uri, adaptiveVisibility);
+  }
+
+  /**
+   * Visibility timeout which a pull from the queue requesting requestedTimeoutSec gets.
+   */
+  public int getVisibilityTimeoutSec(String uri, int requestedTimeoutSec) {
+    AdaptiveVisibility adaptiveVisibility = adaptiveVisibilities.get(uri);
+    LatencyHistogram histogram = processingTimes.get(uri);
+    if (adaptiveVisibility == null || histogram == null
+        || histogram.getSamples() < adaptiveVisibility.getMinSamples()) {
+      return requestedTimeoutSec;
+    }
+
+    double timeoutMs = histogram.quantile(adaptiveVisibility.getQuantile())
+        * adaptiveVisibility.getMultiplier();
+    long timeoutSec = (long) Math.ceil(timeoutMs / 1000);
+    return (int) Math.max(adaptiveVisibility.getMinTimeoutSec(),
+        Math.min(adaptiveVisibility.getMaxTimeoutSec(), timeoutSec));
+  }
+
+  private void recordProcessingTime(Message message, long deletedAtTs) {
+    if (message.getReceivedTimestamp() >= 0 && adaptiveVisibilities.containsKey(message.getUri())) {
+      processingTimes.computeIfAbsent(message.getUri(), k -> new LatencyHistogram())
+          .record(deletedAtTs - message.getReceivedTimestamp());
+    }
+  }
+
+  /**
+   * Sets the capacity limits of a queue, which apply to later pushes.
+   */
+  public void setQueueLimits(String uri, QueueLimits limits) throws QueueServiceException {
+    if (uri == null || uri.isEmpty()) {
+      throw new QueueServiceException("Queue name is null or empty");
+    }
+    QueueLimits.validate(limits);
+
+    queueLimits.put(uri, limits);
+  }
+
+  public QueueLimits getQueueLimits(String uri) {
+    return queueLimits.get(uri);
+  }
+
+  /**
+   * Number of messages, waiting or in flight, in the queue.
+   */
+  public long getMessageCount(String uri) {
+    QueueCounters counters = queueCounters.get(uri);
+    return counters == null ? 0 : counters.getMessages();
+  }
+
+  /**
+   * Drops the messages of every queue, see {@link #purgeQueue(String)}.
+   */
+  public void purgeAllQueues() throws QueueServiceException {
+    for (String uri : queues.keySet()) {
+      purgeQueue(uri);
+    }
+  }
 
-    // remove if handle matches with provided message.
-    Message foundMsg = null;
-    for (Message msg : queue) {
-      if (msg.getHandle().equals(message.getHandle())) {
-        foundMsg = msg;
+  /**
+   * Whether no queue holds a message, waiting or in flight.
+   */
+  public boolean isEmpty() {
+    for (QueueCounters counters : queueCounters.values()) {
+      if (counters.getMessages() > 0) {
+        return false;
       }
     }
-    if (foundMsg != null) {
-      queue.remove(foundMsg);
+    return true;
+  }
+
+  /**
+   * Total payload size of messages, waiting or in flight, in the queue.
+   */
+  public long getPayloadBytes(String uri) {
+    QueueCounters counters = queueCounters.get(uri);
+    return counters == null ? 0 : counters.getPayloadBytes();
+  }
+
+  /**
+   * Number of messages dropped by the {@link OverflowPolicy#DROP_OLDEST} policy.
+   */
+  public long getDroppedMessageCount() {
+    return droppedMessageCount.sum();
+  }
+
+  /**
+   * Attributes are read from the maintained counters and the heads of the queue, without
+   * scanning it. The oldest message age only considers the head of the main queue and of the
+   * first ready group.
+   */
+  @Override
+  public QueueAttributes getQueueAttributes(String uri) throws QueueServiceException {
+    ReadyQueue queue = queues.get(uri);
+    if (queue == null) {
+      throw new QueueServiceException("Queue " + uri + " does not exist");
+    }
+
+    long currentTs = clock.getCurrentTimestampMs();
+    promoteScheduledMessages(uri, queue, currentTs);
+    QueueCounters counters = countersOf(uri);
+    InFlightQueue inFlightQueue = inFlightQueues.get(uri);
+    long inFlight = inFlightQueue == null ? 0 : inFlightQueue.size();
+    ScheduledMessages scheduled = scheduledMessages.get(uri);
+    long delayed = scheduled == null ? 0 : scheduled.size();
+
+    long oldestSentTs = Long.MAX_VALUE;
+    Message oldest = queue.peekOldest();
+    if (oldest != null) {
+      oldestSentTs = oldest.getSentTimestamp();
+    }
+    MessageGroups groups = messageGroups.get(uri);
+    Message groupHead = groups == null ? null : groups.peekReady(currentTs);
+    if (groupHead != null) {
+      oldestSentTs = Math.min(oldestSentTs, groupHead.getSentTimestamp());
+    }
+
+    return new QueueAttributes()
+        .withVisibleMessages(Math.max(0, counters.getMessages() - inFlight - delayed))
+        .withInFlightMessages(inFlight)
+        .withDelayedMessages(delayed)
+        .withPayloadBytes(counters.getPayloadBytes())
+        .withOldestMessageAgeMs(oldestSentTs == Long.MAX_VALUE
+            ? 0 : Math.max(0, currentTs - oldestSentTs));
+  }
+
+  @Override
+  public void createQueue(String uri) throws QueueServiceException {
+    if (uri == null || uri.isEmpty()) {
+      throw new QueueServiceException("Queue name is null or empty");
+    }
+
+    queues.putIfAbsent(uri, new ReadyQueue());
+  }
+
+  /**
+   * Drops all the messages of a queue by swapping in empty structures, so the cost does not depend
+   * on the number of messages. Operations racing with the purge may still act on the old ones.
+   */
+  @Override
+  public void purgeQueue(String uri) throws QueueServiceException {
+    if (queues.replace(uri, new ReadyQueue()) == null) {
+      throw new QueueServiceException("Queue " + uri + " does not exist");
+    }
+
+    inFlightQueues.remove(uri);
+    messageGroups.remove(uri);
+    scheduledMessages.remove(uri);
+    retentionIndexes.replace(uri, new ConcurrentSkipListSet<>(sentTimestampComparator()));
+    SpillQueue spillQueue = spillQueues.get(uri);
+    if (spillQueue != null) {
+      spillQueue.clear();
+    }
+    QueueCounters counters = queueCounters.get(uri);
+    if (counters != null) {
+      counters.reset();
     }
   }
 
+  /**
+   * Drops a queue with all its messages and settings.
+   */
+  @Override
+  public void deleteQueue(String uri) throws QueueServiceException {
+    purgeQueue(uri);
+
+    queues.remove(uri);
+    redrivePolicies.remove(uri);
+    deliveryDelaysSec.remove(uri);
+    retentionPeriodsMs.remove(uri);
+    retentionIndexes.remove(uri);
+    queueLimits.remove(uri);
+    spillQueues.remove(uri);
+    maxInMemoryMessages.remove(uri);
+    queueCounters.remove(uri);
+    adaptiveVisibilities.remove(uri);
+    processingTimes.remove(uri);
+  }
+
+  private QueueCounters countersOf(String uri) {
+    return queueCounters.computeIfAbsent(uri, k -> new QueueCounters());
+  }
+
+  private void removeMessage(Message message) {
+    // main and in-flight queue are checked both, a message is in at most one of them.
+    boolean removed = removeMessageFromMainQueue(message)
+        | removeMessageFromInFlightQueue(message);
+    removeFromRetentionIndex(message);
+    if (removed) {
+      countersOf(message.getUri()).remove(message);
+    }
+  }
+
+  private void addToRetentionIndex(Message message) {
+    ConcurrentSkipListSet<Message> index = retentionIndexes.get(message.getUri());
+    if (index != null) {
+      index.add(message);
+    }
+  }
+
+  private boolean removeFromRetentionIndex(Message message) {
+    ConcurrentSkipListSet<Message> index = retentionIndexes.get(message.getUri());
+    return index != null && index.remove(message);
+  }
+
+  private static Comparator<Message> sentTimestampComparator() {
+    return Comparator.comparingLong(Message::getSentTimestamp)
+        .thenComparing(Message::getHandle);
+  }
+
+  public void addMessageToMainQueue(Message message) {
+    addToRetentionIndex(message);
+    countersOf(message.getUri()).add(message);
+    ReadyQueue queue = queues.computeIfAbsent(message.getUri(), k -> new ReadyQueue());
+    long currentTs = clock.getCurrentTimestampMs();
+    if (message.getVisibilityTimestamp() > currentTs) {
+      // grouped messages too, so that a delayed message does not hold back its group.
+      scheduledMessages.computeIfAbsent(message.getUri(), k -> new ScheduledMessages())
+          .add(message);
+      return;
+    }
+    if (message.getGroupId() == null) {
+      queue.add(message);
+      return;
+    }
+
+    // Grouped messages live in message groups, but the main queue marks that the queue exists.
+    // Delayed messages already due join their group first, so that it stays in push order.
+    promoteScheduledMessages(message.getUri(), queue, currentTs);
+    messageGroups.computeIfAbsent(message.getUri(), k -> new MessageGroups()).add(message);
+  }
+
+  private void addToInFlightQueue(Message message) {
+    inFlightQueues.compute(message.getUri(), (k, queue) -> {
+      InFlightQueue inFlightQueue = queue == null ? new InFlightQueue() : queue;
+      inFlightQueue.add(message);
+      return inFlightQueue;
+    });
+  }
+
+  public void addMessageToInFlightQueue(Message message) {
+    addToRetentionIndex(message);
+    addToInFlightQueue(message);
+    if (message.getGroupId() != null) {
+      messageGroups.computeIfAbsent(message.getUri(), k -> new MessageGroups())
+          .markInFlight(message.getGroupId());
+    }
+  }
+
+  public boolean removeMessageFromMainQueue(Message message) {
+    ScheduledMessages scheduled = scheduledMessages.get(message.getUri());
+    if (scheduled != null && scheduled.remove(message.getHandle()) != null) {
+      return true;
+    }
+    if (message.getGroupId() == null) {
+      ReadyQueue queue = queues.get(message.getUri());
+      return queue != null && queue.remove(message.getHandle()) != null;
+    }
+
+    MessageGroups groups = messageGroups.get(message.getUri());
+    return groups != null && groups.remove(message);
+  }
+
+  public boolean removeMessageFromInFlightQueue(Message message) {
+    InFlightQueue inFlightQueue = inFlightQueues.get(message.getUri());
+    if (inFlightQueue != null && inFlightQueue.remove(message.getHandle()) != null) {
+      releaseGroup(message);
+      return true;
+    }
+    return false;
+  }
+
   public void deleteFromInFlightQueue(Message message, Long currentTs) {
     // delete message from in-flight queue if visibilityTimestamp criteria satisfies.
-    PriorityBlockingQueue<Message> inFlightQueue = inFlightQueues.get(message.getUri());
-    if (inFlightQueue.contains(message)
-        && currentTs <= message.getVisibilityTimestamp()) {
-
-      inFlightQueue.remove(message);
+    InFlightQueue inFlightQueue = inFlightQueues.get(message.getUri());
+    Message deleted = inFlightQueue == null ? null : inFlightQueue.remove(message.getHandle(),
+        m -> m.equals(message) && currentTs <= m.getVisibilityTimestamp());
+    if (deleted != null) {
+      releaseGroup(message);
+      removeFromRetentionIndex(message);
+      countersOf(message.getUri()).remove(message);
+      recordProcessingTime(deleted, currentTs);
     }
   }
 
-  private Comparator<Message> messagePriorityComparator() {
-    return (m1, m2) -> {
-      Long ts1 = m1.getVisibilityTimestamp();
-      Long ts2 = m2.getVisibilityTimestamp();
-      return Long.compare(ts1, ts2);
-    };
+  public void changeInFlightVisibility(Message message, long currentTs) {
+    // reposition message in in-flight queue if it was still in flight at currentTs.
+    InFlightQueue inFlightQueue = inFlightQueues.get(message.getUri());
+    if (inFlightQueue != null) {
+      inFlightQueue.changeVisibility(message.getHandle(), currentTs,
+          message.getVisibilityTimestamp());
+    }
   }
 
 }
@@ -0,0 +1,98 @@
+package queue;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram estimates quantiles of a stream of latencies in milliseconds in constant
+ * space. Buckets are log-linear: every power of two is split in {@link #SUB_BUCKETS} equal
+ * buckets, so a quantile is off by at most 1/SUB_BUCKETS of its value. Recording is a single
+ * atomic increment. To follow changes in the stream, samples are kept in two windows of
+ * {@link #WINDOW_SAMPLES}: quantiles are read over both, and the older one is dropped once the
+ * newer one is full.
+ */
+class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int MAX_EXPONENT = 40;
+  private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+  static final long WINDOW_SAMPLES = 1024;
+
+  private volatile AtomicLongArray current = new AtomicLongArray(BUCKETS);
+  private volatile AtomicLongArray previous = new AtomicLongArray(BUCKETS);
+  private final AtomicLong currentSamples = new AtomicLong();
+  private volatile long previousSamples;
+
+  public void record(long latencyMs) {
+    current.incrementAndGet(bucketOf(latencyMs));
+    if (currentSamples.incrementAndGet() >= WINDOW_SAMPLES) {
+      rotate();
+    }
+  }
+
+  /**
+   * Number of samples the quantiles are read over.
+   */
+  public long getSamples() {
+    return previousSamples + currentSamples.get();
+  }
+
+  /**
+   * Returns an upper bound of the latency below which given fraction of the samples are, or 0
+   * without samples.
+   */
+  public long quantile(double fraction) {
+    AtomicLongArray newer = current;
+    AtomicLongArray older = previous;
+    long[] counts = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = newer.get(i) + older.get(i);
+      total += counts[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+
+    long rank = Math.max(1, (long) Math.ceil(fraction * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return upperBoundOf(i);
+      }
+    }
+    return upperBoundOf(BUCKETS - 1);
+  }
+
+  private synchronized void rotate() {
+    // Another recorder may have rotated already.
+    long samples = currentSamples.get();
+    if (samples < WINDOW_SAMPLES) {
+      return;
+    }
+    previous = current;
+    previousSamples = samples;
+    current = new AtomicLongArray(BUCKETS);
+    currentSamples.set(0);
+  }
+
+  private static int bucketOf(long latencyMs) {
+    long value = Math.max(0, Math.min(latencyMs, (1L << (MAX_EXPONENT + 1)) - 1));
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  private static long upperBoundOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    int subBucket = bucket % SUB_BUCKETS;
+    return ((SUB_BUCKETS + subBucket + 1L) << (exponent - SUB_BUCKET_BITS)) - 1;
+  }
+}
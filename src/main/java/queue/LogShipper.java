@@ -0,0 +1,189 @@
+package queue;
+
+import queue.clock.IClock;
+import queue.clock.SystemClock;
+import queue.exception.QueueServiceException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * LogShipper keeps a warm standby of a QUEUE file in another directory, e.g. on another disk.
+ * Records appended to the primary file since the last shipment are copied to the standby file
+ * with {@link FileChannel#transferTo}, which does not copy them through the heap, and forced to
+ * disk. Only whole records are shipped, a record being appended is left for the next shipment.
+ * The standby {@link FileQueueService} replays every shipment, so on failover it serves requests
+ * at once instead of replaying the whole file.
+ *
+ * <p>Shipping is driven by the caller, like sweeping: {@link #ship()} periodically, or
+ * {@link #awaitAndShip(long)} in a loop to ship as soon as the primary is appended to. A standby
+ * file left by an earlier shipper is resumed where it ends.
+ */
+public class LogShipper implements Closeable {
+  private static final int SCAN_BUFFER_SIZE = 4096;
+
+  private final FileChannel primaryChannel;
+  private final FileChannel standbyChannel;
+  private final QueueSignal primarySignal;
+  private final QueueSignal standbySignal;
+  private final FileQueueService standby;
+  private long shippedBytes;
+  private long shippedSequence = -1;
+  private boolean stopped;
+
+  public LogShipper(String primaryDirectory, String standbyDirectory)
+      throws QueueServiceException {
+    this(primaryDirectory, standbyDirectory, new SystemClock());
+  }
+
+  public LogShipper(String primaryDirectory, String standbyDirectory, IClock clock)
+      throws QueueServiceException {
+    File primaryFile = new File(primaryDirectory, FileQueueService.QUEUE_FILE_NAME);
+    File standbyFile = new File(standbyDirectory, FileQueueService.QUEUE_FILE_NAME);
+    try {
+      if (primaryFile.getCanonicalPath().equals(standbyFile.getCanonicalPath())) {
+        throw new QueueServiceException("Standby directory is the primary directory");
+      }
+      new File(standbyDirectory).mkdirs();
+      // The primary is only read, but may not have been written to yet.
+      primaryFile.createNewFile();
+      this.primaryChannel = FileChannel.open(primaryFile.toPath(), StandardOpenOption.READ);
+      this.standbyChannel = FileChannel.open(standbyFile.toPath(), StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE);
+      this.shippedBytes = standbyChannel.size();
+      if (shippedBytes > primaryChannel.size()) {
+        stopShipping();
+        throw new QueueServiceException("Standby file is longer than the primary file");
+      }
+      this.primarySignal = QueueSignal.forFile(
+          new File(primaryDirectory, QueueSignal.SIGNAL_FILE_NAME));
+      this.standbySignal = QueueSignal.forFile(
+          new File(standbyDirectory, QueueSignal.SIGNAL_FILE_NAME));
+    } catch (IOException e) {
+      throw new QueueServiceException("Log shipper could not be opened due to IO error, ", e);
+    }
+    this.standby = new FileQueueService(standbyDirectory, clock);
+  }
+
+  /**
+   * Ships the records appended to the primary file since the last shipment and replays them in
+   * the standby.
+   *
+   * @return number of bytes shipped.
+   */
+  public synchronized long ship() throws QueueServiceException {
+    long shipped;
+    try {
+      long end = lastRecordEnd(primaryChannel.size());
+      shipped = end - shippedBytes;
+      while (shippedBytes < end) {
+        shippedBytes += primaryChannel.transferTo(shippedBytes, end - shippedBytes,
+            standbyChannel.position(shippedBytes));
+      }
+      if (shipped == 0) {
+        return 0;
+      }
+      standbyChannel.force(false);
+      standbySignal.increment();
+    } catch (IOException e) {
+      throw new QueueServiceException("Log shipping failed due to IO error, ", e);
+    }
+
+    standby.refresh();
+    return shipped;
+  }
+
+  /**
+   * Waits until the primary file is appended to since the last call or the timeout is over, then
+   * ships.
+   *
+   * @return number of bytes shipped.
+   */
+  public long awaitAndShip(long timeoutMs) throws QueueServiceException {
+    try {
+      shippedSequence = primarySignal.await(shippedSequence, timeoutMs);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new QueueServiceException("Interrupted while waiting for records to ship", e);
+    }
+    return ship();
+  }
+
+  /**
+   * Number of bytes of the primary file shipped to the standby so far.
+   */
+  public synchronized long getShippedBytes() {
+    return shippedBytes;
+  }
+
+  /**
+   * The standby, replayed up to the last shipment. It must not be written to before failover.
+   */
+  public FileQueueService getStandby() {
+    return standby;
+  }
+
+  /**
+   * Ships what can still be read from the primary file and stops shipping.
+   *
+   * @return the standby, to be used in place of the primary and closed by the caller.
+   */
+  public FileQueueService failover() throws QueueServiceException {
+    try {
+      ship();
+    } finally {
+      stopShipping();
+    }
+    return standby;
+  }
+
+  /**
+   * Stops shipping and closes the standby.
+   */
+  @Override
+  public synchronized void close() {
+    stopShipping();
+    standby.close();
+  }
+
+  private synchronized void stopShipping() {
+    if (stopped) {
+      return;
+    }
+    stopped = true;
+    try {
+      primaryChannel.close();
+      standbyChannel.close();
+      if (primarySignal != null) {
+        primarySignal.release();
+        standbySignal.release();
+      }
+    } catch (IOException e) {
+      // nothing is left to ship through them.
+    }
+  }
+
+  private long lastRecordEnd(long size) throws IOException {
+    // Scan back from the end of the primary file for the last line break not yet shipped.
+    ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+    long end = size;
+    while (end > shippedBytes) {
+      long start = Math.max(shippedBytes, end - SCAN_BUFFER_SIZE);
+      buffer.clear().limit((int) (end - start));
+      while (buffer.hasRemaining() && primaryChannel.read(buffer, start + buffer.position()) > 0) {
+        // read the whole range.
+      }
+      for (int i = buffer.position() - 1; i >= 0; i--) {
+        if (buffer.get(i) == '\n') {
+          return start + i + 1;
+        }
+      }
+      end = start;
+    }
+    return shippedBytes;
+  }
+}
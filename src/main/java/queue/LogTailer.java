@@ -0,0 +1,120 @@
+package queue;
+
+import queue.exception.QueueServiceException;
+import queue.model.MessageFileDto;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * LogTailer reads the records of a QUEUE file in log order from a byte offset, for consumers
+ * such as auditing or secondary indexes, without replaying them into a queue. Records are read
+ * in batches through a large buffer and only whole records are returned. The consumer pulls the
+ * next batch when it is ready for it, so a slow consumer holds back its own tailer only, never
+ * the writers. {@link #getOffset()} after a batch is the offset from which a new tailer resumes
+ * after it. Obtained from {@link FileQueueService#tail(long)}.
+ */
+public class LogTailer implements Closeable {
+  private static final int READ_BUFFER_SIZE = 1 << 16;
+
+  private final FileChannel channel;
+  private final QueueSignal signal;
+  private final Function<String, MessageFileDto> decoder;
+  private ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+  private long offset;
+
+  LogTailer(File queueFile, QueueSignal signal, Function<String, MessageFileDto> decoder,
+      long offset) throws IOException {
+    this.channel = FileChannel.open(queueFile.toPath(), StandardOpenOption.READ);
+    this.signal = signal;
+    this.decoder = decoder;
+    this.offset = offset;
+  }
+
+  /**
+   * Returns up to maxRecords records following the offset, waiting up to timeoutMs for records
+   * to be appended if there are none yet.
+   *
+   * @return records in log order, empty if none were appended within the timeout.
+   */
+  public synchronized List<MessageFileDto> poll(int maxRecords, long timeoutMs)
+      throws QueueServiceException {
+    if (maxRecords < 1) {
+      throw new QueueServiceException("Max records must be at least 1");
+    }
+
+    long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    try {
+      while (true) {
+        // Read the sequence first, so an append after the read below wakes the wait.
+        long sequence = signal.getSequence();
+        List<MessageFileDto> records = read(maxRecords);
+        long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+        if (!records.isEmpty() || remainingMs <= 0) {
+          return records;
+        }
+        signal.await(sequence, remainingMs);
+      }
+    } catch (IOException e) {
+      throw new QueueServiceException("Tail failed due to IO error, ", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new QueueServiceException("Interrupted while waiting for records", e);
+    }
+  }
+
+  /**
+   * Offset just after the last record returned.
+   */
+  public synchronized long getOffset() {
+    return offset;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  private List<MessageFileDto> read(int maxRecords) throws IOException {
+    List<MessageFileDto> records = new ArrayList<>();
+    while (records.size() < maxRecords) {
+      buffer.clear();
+      int read = channel.read(buffer, offset);
+      if (read <= 0) {
+        return records;
+      }
+
+      int lineStart = 0;
+      for (int i = 0; i < read && records.size() < maxRecords; i++) {
+        if (buffer.get(i) == '\n') {
+          int lineEnd = i > lineStart && buffer.get(i - 1) == '\r' ? i - 1 : i;
+          if (lineEnd > lineStart) {
+            records.add(decoder.apply(new String(buffer.array(), lineStart, lineEnd - lineStart,
+                StandardCharsets.UTF_8)));
+          }
+          lineStart = i + 1;
+        }
+      }
+      offset += lineStart;
+
+      if (lineStart == 0) {
+        if (read < buffer.capacity()) {
+          // a record is being appended.
+          return records;
+        }
+        // a record longer than the buffer.
+        buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+      }
+    }
+    return records;
+  }
+}
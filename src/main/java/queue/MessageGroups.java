@@ -0,0 +1,144 @@
+package queue;
+
+import queue.model.Message;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * MessageGroups holds the messages of one queue which carry a group id. Messages of a group are
+ * kept in FIFO order and at most one of them is in flight at a time, while different groups are
+ * consumed in parallel. Groups which have messages and nothing in flight are kept in insertion
+ * order in a ready set, so that the next ready group is found in O(1) without scanning groups
+ * which are blocked by an in-flight message.
+ */
+class MessageGroups {
+
+  private final Map<String, Deque<Message>> groups = new HashMap<>();
+  private final Map<String, Integer> inFlightCounts = new HashMap<>();
+  private final LinkedHashSet<String> readyGroups = new LinkedHashSet<>();
+  private int size = 0;
+
+  /**
+   * Appends a newly pushed message to the tail of its group.
+   */
+  public synchronized void add(Message message) {
+    groups.computeIfAbsent(message.getGroupId(), k -> new ArrayDeque<>()).addLast(message);
+    size++;
+    updateReadiness(message.getGroupId());
+  }
+
+  /**
+   * Puts back a message whose visibility timeout expired at the head of its group, so that
+   * ordering within the group is kept on redelivery.
+   */
+  public synchronized void requeue(Message message) {
+    groups.computeIfAbsent(message.getGroupId(), k -> new ArrayDeque<>()).addFirst(message);
+    size++;
+    release(message.getGroupId());
+  }
+
+  /**
+   * Returns the head message of the first ready group whose head is visible at currentTs without
+   * removing it, or null.
+   */
+  public synchronized Message peekReady(long currentTs) {
+    String groupId = firstVisibleGroup(currentTs);
+    return groupId == null ? null : groups.get(groupId).peekFirst();
+  }
+
+  /**
+   * Removes the head message of the first ready group whose head is visible at currentTs, and
+   * marks the group as in flight.
+   */
+  public synchronized Message pollReady(long currentTs) {
+    String groupId = firstVisibleGroup(currentTs);
+    if (groupId == null) {
+      return null;
+    }
+
+    readyGroups.remove(groupId);
+    Message message = groups.get(groupId).pollFirst();
+    size--;
+    markInFlight(groupId);
+    return message;
+  }
+
+  private String firstVisibleGroup(long currentTs) {
+    // Heads are visible unless redelivered with a visibility timeout, delayed pushes are
+    // scheduled apart, so the first ready group is nearly always the one.
+    for (String groupId : readyGroups) {
+      if (groups.get(groupId).peekFirst().getVisibilityTimestamp() <= currentTs) {
+        return groupId;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Removes the message with the same handle from its group, if present.
+   */
+  public synchronized boolean remove(Message message) {
+    Deque<Message> group = groups.get(message.getGroupId());
+    if (group == null) {
+      return false;
+    }
+    Iterator<Message> iterator = group.iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().getHandle().equals(message.getHandle())) {
+        iterator.remove();
+        size--;
+        updateReadiness(message.getGroupId());
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public synchronized void markInFlight(String groupId) {
+    inFlightCounts.merge(groupId, 1, Integer::sum);
+    updateReadiness(groupId);
+  }
+
+  /**
+   * Marks that an in-flight message of the group has been deleted or returned.
+   */
+  public synchronized void release(String groupId) {
+    Integer count = inFlightCounts.get(groupId);
+    if (count != null && count > 1) {
+      inFlightCounts.put(groupId, count - 1);
+    } else {
+      inFlightCounts.remove(groupId);
+    }
+    updateReadiness(groupId);
+  }
+
+  public synchronized void forEach(Consumer<Message> action) {
+    groups.values().forEach(group -> group.forEach(action));
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  private void updateReadiness(String groupId) {
+    Deque<Message> group = groups.get(groupId);
+    boolean hasMessages = group != null && !group.isEmpty();
+
+    if (hasMessages && !inFlightCounts.containsKey(groupId)) {
+      readyGroups.add(groupId);
+    } else {
+      readyGroups.remove(groupId);
+    }
+
+    // Release memory of idle groups.
+    if (group != null && !hasMessages) {
+      groups.remove(groupId);
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package queue;
+
+import queue.model.MessageFileDto;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+
+/**
+ * ParallelLogDecoder decodes the records of a QUEUE file on a ForkJoinPool. The file is mapped
+ * and split in halves at the first line break after the middle until ranges are smaller than
+ * {@link #CHUNK_SIZE}, so every range holds whole records. Ranges are decoded in parallel and
+ * their records joined back in log order.
+ */
+class ParallelLogDecoder {
+  private static final int CHUNK_SIZE = 1 << 20;
+
+  private final Function<String, MessageFileDto> decoder;
+
+  public ParallelLogDecoder(Function<String, MessageFileDto> decoder) {
+    this.decoder = decoder;
+  }
+
+  /**
+   * Decodes the records in the first length bytes of file, in log order.
+   */
+  public List<MessageFileDto> decode(File file, long length) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+      return ForkJoinPool.commonPool().invoke(new DecodeTask(buffer, 0, (int) length));
+    }
+  }
+
+  private class DecodeTask extends RecursiveTask<List<MessageFileDto>> {
+    private static final long serialVersionUID = 1L;
+
+    private final ByteBuffer buffer;
+    private final int start;
+    private final int end;
+
+    private DecodeTask(ByteBuffer buffer, int start, int end) {
+      this.buffer = buffer;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected List<MessageFileDto> compute() {
+      if (end - start > CHUNK_SIZE) {
+        int split = nextLineStart(start + (end - start) / 2);
+        if (split < end) {
+          DecodeTask head = new DecodeTask(buffer, start, split);
+          DecodeTask tail = new DecodeTask(buffer, split, end);
+          tail.fork();
+          List<MessageFileDto> records = head.compute();
+          records.addAll(tail.join());
+          return records;
+        }
+      }
+      return decodeRange();
+    }
+
+    private int nextLineStart(int position) {
+      while (position < end && buffer.get(position) != '\n') {
+        position++;
+      }
+      return position + 1;
+    }
+
+    private List<MessageFileDto> decodeRange() {
+      // Absolute reads only, the buffer is shared by all tasks.
+      byte[] bytes = new byte[end - start];
+      ByteBuffer range = buffer.duplicate();
+      range.position(start);
+      range.get(bytes);
+
+      List<MessageFileDto> records = new ArrayList<>();
+      int lineStart = 0;
+      for (int i = 0; i <= bytes.length; i++) {
+        if (i < bytes.length && bytes[i] != '\n') {
+          continue;
+        }
+        int lineEnd = i > lineStart && bytes[i - 1] == '\r' ? i - 1 : i;
+        if (lineEnd > lineStart || i < bytes.length) {
+          records.add(decoder.apply(
+              new String(bytes, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8)));
+        }
+        lineStart = i + 1;
+      }
+      return records;
+    }
+  }
+}
@@ -0,0 +1,156 @@
+package queue;
+
+import queue.exception.QueueServiceException;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * PayloadCodec compresses message payloads of at least minSizeBytes with deflate, optionally with
+ * a preset dictionary which lets small, repetitive payloads such as JSON with the same keys
+ * compress well too. A compressed payload is kept as text: a marker followed by the base64 of the
+ * deflated bytes, and is only used if it is smaller than the payload. Payloads starting with
+ * {@link #MARKER} are reserved, a codec always encodes them so they are not mistaken for
+ * compressed ones.
+ *
+ * <p>Every process decoding payloads compressed with a dictionary needs a codec with the same
+ * dictionary. The codec without arguments compresses nothing and decodes payloads compressed
+ * without dictionary.
+ */
+public class PayloadCodec {
+  public static final char MARKER = '\u0000';
+  private static final char DEFLATE = 'z';
+  private static final char DEFLATE_WITH_DICTIONARY = 'd';
+
+  private final int minSizeBytes;
+  private final byte[] dictionary;
+  private final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(Deflater::new);
+  private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+  private final LongAdder plainBytes = new LongAdder();
+  private final LongAdder encodedBytes = new LongAdder();
+  private final LongAdder compressNanos = new LongAdder();
+  private final LongAdder decompressNanos = new LongAdder();
+
+  public PayloadCodec() {
+    this.minSizeBytes = Integer.MAX_VALUE;
+    this.dictionary = null;
+  }
+
+  public PayloadCodec(int minSizeBytes) throws QueueServiceException {
+    this(minSizeBytes, null);
+  }
+
+  public PayloadCodec(int minSizeBytes, byte[] dictionary) throws QueueServiceException {
+    if (minSizeBytes < 0) {
+      throw new QueueServiceException("Min size of compressed payloads cannot be negative");
+    }
+    this.minSizeBytes = minSizeBytes;
+    this.dictionary = dictionary == null ? null : Arrays.copyOf(dictionary, dictionary.length);
+  }
+
+  /**
+   * Returns the compressed form of the payload, or the payload itself if it is below the
+   * threshold or does not compress.
+   */
+  public String encode(String payload) {
+    boolean reserved = isEncoded(payload);
+    if (payload.length() < minSizeBytes && !reserved) {
+      return payload;
+    }
+
+    long startNanos = System.nanoTime();
+    byte[] plain = payload.getBytes(StandardCharsets.UTF_8);
+    Deflater deflater = deflaters.get();
+    deflater.reset();
+    if (dictionary != null) {
+      deflater.setDictionary(dictionary);
+    }
+    deflater.setInput(plain);
+    deflater.finish();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream(plain.length / 2 + 16);
+    byte[] buffer = new byte[4096];
+    while (!deflater.finished()) {
+      out.write(buffer, 0, deflater.deflate(buffer));
+    }
+    String encoded = MARKER + String.valueOf(dictionary == null ? DEFLATE : DEFLATE_WITH_DICTIONARY)
+        + Base64.getEncoder().encodeToString(out.toByteArray());
+    compressNanos.add(System.nanoTime() - startNanos);
+
+    if (encoded.length() >= payload.length() && !reserved) {
+      plainBytes.add(payload.length());
+      encodedBytes.add(payload.length());
+      return payload;
+    }
+    plainBytes.add(payload.length());
+    encodedBytes.add(encoded.length());
+    return encoded;
+  }
+
+  /**
+   * Returns the payload of a value returned by {@link #encode(String)}.
+   *
+   * @throws IllegalStateException if the payload was compressed with a dictionary which this
+   *     codec does not have.
+   */
+  public String decode(String value) {
+    if (!isEncoded(value)) {
+      return value;
+    }
+
+    long startNanos = System.nanoTime();
+    Inflater inflater = inflaters.get();
+    inflater.reset();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream(value.length() * 2);
+    byte[] buffer = new byte[4096];
+    try {
+      inflater.setInput(Base64.getDecoder().decode(value.substring(2)));
+      while (!inflater.finished()) {
+        int inflated = inflater.inflate(buffer);
+        if (inflated == 0 && inflater.needsDictionary()) {
+          if (dictionary == null || value.charAt(1) != DEFLATE_WITH_DICTIONARY) {
+            throw new IllegalStateException("Payload is compressed with an unknown dictionary");
+          }
+          inflater.setDictionary(dictionary);
+        } else if (inflated == 0 && inflater.needsInput()) {
+          throw new IllegalStateException("Compressed payload is truncated");
+        }
+        out.write(buffer, 0, inflated);
+      }
+    } catch (DataFormatException | IllegalArgumentException e) {
+      throw new IllegalStateException("Compressed payload is corrupt", e);
+    }
+    decompressNanos.add(System.nanoTime() - startNanos);
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  public static boolean isEncoded(String value) {
+    return value != null && value.length() >= 2 && value.charAt(0) == MARKER
+        && (value.charAt(1) == DEFLATE || value.charAt(1) == DEFLATE_WITH_DICTIONARY);
+  }
+
+  /**
+   * Size of encoded payloads relative to their plain size, over all payloads at least
+   * minSizeBytes long; 1 if there were none.
+   */
+  public double getCompressionRatio() {
+    long plain = plainBytes.sum();
+    return plain == 0 ? 1 : (double) encodedBytes.sum() / plain;
+  }
+
+  public long getCompressNanos() {
+    return compressNanos.sum();
+  }
+
+  public long getDecompressNanos() {
+    return decompressNanos.sum();
+  }
+}
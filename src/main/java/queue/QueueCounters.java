@@ -0,0 +1,101 @@
+package queue;
+
+import queue.model.Message;
+import queue.model.QueueLimits;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * QueueCounters tracks the occupancy of one queue: number of messages, waiting or in flight, and
+ * their total payload size. Counters are striped LongAdders, so producers and consumers on many
+ * threads update them without contending; reads are approximate under concurrent updates.
+ */
+class QueueCounters {
+
+  private final LongAdder messages = new LongAdder();
+  private final LongAdder payloadBytes = new LongAdder();
+  private final AtomicInteger waitingProducers = new AtomicInteger();
+
+  public void add(Message message) {
+    messages.increment();
+    payloadBytes.add(sizeOf(message));
+  }
+
+  public void remove(Message message) {
+    messages.decrement();
+    payloadBytes.add(-sizeOf(message));
+
+    // Only wake producers blocked on capacity, removal is lock-free otherwise.
+    if (waitingProducers.get() > 0) {
+      synchronized (this) {
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Zeroes the counters when the queue is purged, updates racing with it may be lost.
+   */
+  public void reset() {
+    messages.reset();
+    payloadBytes.reset();
+    synchronized (this) {
+      notifyAll();
+    }
+  }
+
+  public long getMessages() {
+    return messages.sum();
+  }
+
+  public long getPayloadBytes() {
+    return payloadBytes.sum();
+  }
+
+  /**
+   * Checks whether a message of given size fits within the limits.
+   */
+  public boolean hasRoom(QueueLimits limits, long size) {
+    return hasRoom(limits, 1, size);
+  }
+
+  /**
+   * Checks whether the given number of messages of given total size fit within the limits.
+   */
+  public boolean hasRoom(QueueLimits limits, long messages, long size) {
+    return (limits.getMaxMessages() == 0 || getMessages() + messages <= limits.getMaxMessages())
+        && (limits.getMaxPayloadBytes() == 0
+        || getPayloadBytes() + size <= limits.getMaxPayloadBytes());
+  }
+
+  /**
+   * Waits until a message of given size fits within the limits.
+   *
+   * @return false if there was no room before the timeout.
+   */
+  public boolean awaitRoom(QueueLimits limits, long size, long timeoutMs)
+      throws InterruptedException {
+    waitingProducers.incrementAndGet();
+    try {
+      long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+      synchronized (this) {
+        while (!hasRoom(limits, size)) {
+          long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+          if (remainingMs <= 0) {
+            return false;
+          }
+          wait(remainingMs);
+        }
+        return true;
+      }
+    } finally {
+      waitingProducers.decrementAndGet();
+    }
+  }
+
+  public static long sizeOf(Message message) {
+    return message.getContent() == null ? 0 : message.getContent().length();
+  }
+}
@@ -0,0 +1,31 @@
+package queue;
+
+import queue.model.Message;
+
+/**
+ * Listener for changes which InMemoryQueueService decides on its own while serving a request,
+ * like moving a message to its dead-letter queue. FileQueueService uses it to log such changes,
+ * so that replay does not depend on the configuration of the reading instance.
+ */
+interface QueueOperationListener {
+
+  QueueOperationListener NONE = new QueueOperationListener() {
+    @Override
+    public void onMove(Message message, String targetUri) {
+    }
+
+    @Override
+    public void onExpire(Message message) {
+    }
+  };
+
+  /**
+   * Called before message is moved to the main queue of targetUri.
+   */
+  void onMove(Message message, String targetUri);
+
+  /**
+   * Called before message is dropped because its retention period is over.
+   */
+  void onExpire(Message message);
+}
@@ -3,9 +3,12 @@ package queue;
 import queue.exception.QueueServiceException;
 
 import queue.model.Message;
+import queue.model.MessageChangeVisibilityRequest;
 import queue.model.MessageDeleteRequest;
 import queue.model.MessagePullRequest;
 import queue.model.MessagePushRequest;
+import queue.model.QueueAttributes;
+import queue.model.RedrivePolicy;
 
 
 public interface QueueService {
@@ -20,6 +23,20 @@ public interface QueueService {
    */
   void push(MessagePushRequest messagePushRequest) throws QueueServiceException;
 
+  /**
+   * Pushes like {@link #push(MessagePushRequest)} and tells whether the message was enqueued. A
+   * push with a deduplication id is dropped when it duplicates an earlier push. Implementations
+   * which do not deduplicate enqueue every message.
+   *
+   * @param messagePushRequest Request object containing push configurations and data.
+   * @return false if the message was dropped as a duplicate.
+   * @throws QueueServiceException if the push is unsuccessful.
+   */
+  default boolean tryPush(MessagePushRequest messagePushRequest) throws QueueServiceException {
+    push(messagePushRequest);
+    return true;
+  }
+
   /**
    * This function pulls a visible message from a given queue. Pulled message may be in FIFO order,
    * but that depends on implementation. The message contains a unique handle per queue,
@@ -39,4 +56,91 @@ public interface QueueService {
    */
   void delete(MessageDeleteRequest messageDeleteRequest) throws QueueServiceException;
 
+  /**
+   * Changes the visibility timeout of a message which is still in flight, counted from now. A
+   * consumer which needs more time than the pull visibility timeout can extend it, and a timeout
+   * of zero makes the message visible again immediately.
+   *
+   * @param changeVisibilityRequest Request object containing the pulled message and new timeout.
+   * @throws QueueServiceException if the message is not in flight or the change is unsuccessful.
+   */
+  void changeVisibility(MessageChangeVisibilityRequest changeVisibilityRequest)
+      throws QueueServiceException;
+
+  /**
+   * Sets the redrive policy of a queue. Once a message of the queue has been received
+   * maxReceiveCount times without being deleted, it is moved to the dead-letter queue instead of
+   * being delivered again.
+   *
+   * @param uri Queue to which the policy applies.
+   * @param redrivePolicy Dead-letter queue and max receive count.
+   * @throws QueueServiceException if the policy is invalid or cannot be set.
+   */
+  void setRedrivePolicy(String uri, RedrivePolicy redrivePolicy) throws QueueServiceException;
+
+  /**
+   * Moves all the visible messages of a dead-letter queue back to a target queue, with their
+   * receive count reset.
+   *
+   * @param deadLetterUri Dead-letter queue to drain.
+   * @param targetUri Queue to which messages are moved.
+   * @return number of messages moved.
+   * @throws QueueServiceException if the redrive is unsuccessful.
+   */
+  int redrive(String deadLetterUri, String targetUri) throws QueueServiceException;
+
+  /**
+   * Sets the retention period of a queue. Messages which are not deleted within the retention
+   * period after being pushed are dropped.
+   *
+   * @param uri Queue to which the retention period applies.
+   * @param retentionPeriodSec Retention period in seconds.
+   * @throws QueueServiceException if the retention period is invalid or cannot be set.
+   */
+  void setRetentionPeriod(String uri, int retentionPeriodSec) throws QueueServiceException;
+
+  /**
+   * Returns approximate attributes of a queue, e.g. its depth, cheaply enough to be polled by
+   * consumer autoscaling.
+   *
+   * @param uri Queue whose attributes are returned.
+   * @return Attributes of the queue.
+   * @throws QueueServiceException if the queue does not exist or the attributes cannot be read.
+   */
+  QueueAttributes getQueueAttributes(String uri) throws QueueServiceException;
+
+  /**
+   * Creates an empty queue, if it does not exist. Pushing to a queue also creates it.
+   *
+   * @param uri Queue to create.
+   * @throws QueueServiceException if the queue cannot be created.
+   */
+  void createQueue(String uri) throws QueueServiceException;
+
+  /**
+   * Drops all the messages of a queue, waiting or in flight, and keeps the queue.
+   *
+   * @param uri Queue to purge.
+   * @throws QueueServiceException if the queue does not exist or cannot be purged.
+   */
+  void purgeQueue(String uri) throws QueueServiceException;
+
+  /**
+   * Drops a queue with all its messages.
+   *
+   * @param uri Queue to delete.
+   * @throws QueueServiceException if the queue does not exist or cannot be deleted.
+   */
+  void deleteQueue(String uri) throws QueueServiceException;
+
+  /**
+   * Sets the delivery delay of a queue: pushed messages become visible only after the delay,
+   * unless the push specifies its own delay.
+   *
+   * @param uri Queue to which the delay applies.
+   * @param delaySec Delay in seconds.
+   * @throws QueueServiceException if the delay is invalid or cannot be set.
+   */
+  void setDeliveryDelay(String uri, int delaySec) throws QueueServiceException;
+
 }
@@ -0,0 +1,151 @@
+package queue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * QueueSignal is a write sequence counter in a small memory-mapped control file, shared by all
+ * processes using the same QUEUE file. Writers increment it after appending to the QUEUE file, so
+ * a reader which remembers the sequence it has replayed up to knows without touching the QUEUE
+ * file whether anything was appended since. Waiters in the same JVM are woken by the writer
+ * directly, waiters in other processes spin briefly and then poll the mapped counter with a
+ * backoff capped at {@link #MAX_PARK_NANOS}. Next to the sequence, a generation counts the
+ * truncations of the QUEUE file, so readers know to replay it from the start. There is one
+ * instance per control file in a JVM, see {@link #forFile(File)}, closed once every user has
+ * released it.
+ */
+class QueueSignal {
+  public static final String SIGNAL_FILE_NAME = "QUEUE.signal";
+  private static final int SPIN_ITERATIONS = 100;
+  private static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+  private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final Map<String, QueueSignal> SIGNALS = new ConcurrentHashMap<>();
+  private static final int SEQUENCE_OFFSET = 0;
+  private static final int GENERATION_OFFSET = Long.BYTES;
+
+  // Kept open for the lifetime of the instance, the channel is needed to lock the counter.
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final MappedByteBuffer counters;
+  private final String path;
+  // Guarded by SIGNALS.
+  private int references;
+
+  private QueueSignal(File file, String path) throws IOException {
+    this.path = path;
+    this.file = new RandomAccessFile(file, "rw");
+    this.channel = this.file.getChannel();
+    // Control files written before the generation was added are extended with a zero one.
+    this.counters = channel.map(FileChannel.MapMode.READ_WRITE, 0, 2 * Long.BYTES);
+  }
+
+  /**
+   * Returns the instance of the control file shared within this JVM, so that waiters of every
+   * FileQueueService on the same file are woken directly. Every call must be matched by a
+   * {@link #release()}.
+   */
+  public static QueueSignal forFile(File file) throws IOException {
+    String path = file.getCanonicalPath();
+    synchronized (SIGNALS) {
+      QueueSignal signal = SIGNALS.get(path);
+      if (signal == null) {
+        signal = new QueueSignal(file, path);
+        SIGNALS.put(path, signal);
+      }
+      signal.references++;
+      return signal;
+    }
+  }
+
+  /**
+   * Drops a reference to the instance, which closes the control file with its last reference.
+   * The mapping is unmapped once the instance is garbage collected.
+   */
+  public void release() throws IOException {
+    synchronized (SIGNALS) {
+      if (--references > 0) {
+        return;
+      }
+      SIGNALS.remove(path, this);
+    }
+    file.close();
+  }
+
+  public long getSequence() {
+    return counters.getLong(SEQUENCE_OFFSET);
+  }
+
+  public long getGeneration() {
+    return counters.getLong(GENERATION_OFFSET);
+  }
+
+  /**
+   * Increments the sequence, to be called after an append to the QUEUE file is flushed.
+   *
+   * @return the new sequence.
+   */
+  public synchronized long increment() throws IOException {
+    // Writers in other processes may increment concurrently, e.g. pulls under a shared lock.
+    try (FileLock fileLock = channel.lock()) {
+      long next = getSequence() + 1;
+      counters.putLong(SEQUENCE_OFFSET, next);
+      notifyAll();
+      return next;
+    }
+  }
+
+  /**
+   * Increments the generation and then the sequence, to be called after the QUEUE file is
+   * truncated.
+   *
+   * @return the new sequence.
+   */
+  public synchronized long incrementGeneration() throws IOException {
+    try (FileLock fileLock = channel.lock()) {
+      counters.putLong(GENERATION_OFFSET, getGeneration() + 1);
+    }
+    return increment();
+  }
+
+  /**
+   * Waits until the sequence differs from knownSequence or the timeout is over.
+   *
+   * @return the current sequence.
+   */
+  public long await(long knownSequence, long timeoutMs) throws InterruptedException {
+    long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+
+    for (int i = 0; i < SPIN_ITERATIONS; i++) {
+      long current = getSequence();
+      if (current != knownSequence) {
+        return current;
+      }
+      Thread.yield();
+    }
+
+    long parkNanos = MIN_PARK_NANOS;
+    long current = getSequence();
+    while (current == knownSequence) {
+      long remainingNanos = deadlineNanos - System.nanoTime();
+      if (remainingNanos <= 0) {
+        break;
+      }
+      long waitNanos = Math.min(parkNanos, remainingNanos);
+      synchronized (this) {
+        if (getSequence() == knownSequence) {
+          TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+        }
+      }
+      parkNanos = Math.min(parkNanos * 2, MAX_PARK_NANOS);
+      current = getSequence();
+    }
+    return current;
+  }
+}
@@ -0,0 +1,229 @@
+package queue;
+
+import queue.exception.QueueServiceException;
+import queue.model.Message;
+import queue.model.MessageChangeVisibilityRequest;
+import queue.model.MessageDeleteRequest;
+import queue.model.MessagePullRequest;
+import queue.model.MessagePushRequest;
+import queue.model.QueueAttributes;
+import queue.model.RateLimit;
+import queue.model.RedrivePolicy;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RateLimitedQueueService wraps any QueueService and limits the rate of each {@link Operation}
+ * per queue uri with a {@link TokenBucket}, so a tenant flooding one queue cannot starve the
+ * others sharing the wrapped queue service. A default limit applies to every queue without its
+ * own limit, each queue getting its own bucket. Limits can be changed at any time; a new limit
+ * starts with a full bucket. Operations which are not rate limited are passed through.
+ */
+public class RateLimitedQueueService implements QueueService {
+  private static final String KEY_SEP = "\u0000";
+
+  private final QueueService queueService;
+  private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+  private final Map<Operation, RateLimit> defaultRateLimits = new ConcurrentHashMap<>();
+  private final LongAdder delayedCount = new LongAdder();
+  private final LongAdder rejectedCount = new LongAdder();
+
+  public RateLimitedQueueService(QueueService queueService) throws QueueServiceException {
+    if (queueService == null) {
+      throw new QueueServiceException("Queue service is null");
+    }
+    this.queueService = queueService;
+  }
+
+  /**
+   * Sets the rate limit of an operation on a queue, replacing the default limit for it.
+   */
+  public void setRateLimit(String uri, Operation operation, RateLimit rateLimit)
+      throws QueueServiceException {
+    if (uri == null || uri.isEmpty()) {
+      throw new QueueServiceException("Queue name is null or empty");
+    }
+    if (operation == null) {
+      throw new QueueServiceException("Operation is null");
+    }
+    RateLimit.validate(rateLimit);
+
+    buckets.put(bucketKey(uri, operation), new TokenBucket(rateLimit, System.nanoTime()));
+  }
+
+  /**
+   * Sets the rate limit of an operation on every queue without its own limit. Buckets of queues
+   * already using the previous default are reset.
+   */
+  public void setDefaultRateLimit(Operation operation, RateLimit rateLimit)
+      throws QueueServiceException {
+    if (operation == null) {
+      throw new QueueServiceException("Operation is null");
+    }
+    RateLimit.validate(rateLimit);
+
+    RateLimit previous = defaultRateLimits.put(operation, rateLimit);
+    if (previous != null) {
+      buckets.values().removeIf(bucket -> bucket.getRateLimit() == previous);
+    }
+  }
+
+  /**
+   * Removes the limit of an operation on a queue, after which the default limit applies, if set.
+   */
+  public void removeRateLimit(String uri, Operation operation) {
+    buckets.remove(bucketKey(uri, operation));
+  }
+
+  /**
+   * Number of calls of an operation on a queue which waited for a permit, since its limit was
+   * set.
+   */
+  public long getDelayedCount(String uri, Operation operation) {
+    TokenBucket bucket = buckets.get(bucketKey(uri, operation));
+    return bucket == null ? 0 : bucket.getDelayedCount();
+  }
+
+  /**
+   * Number of calls of an operation on a queue which failed for lack of a permit, since its limit
+   * was set.
+   */
+  public long getRejectedCount(String uri, Operation operation) {
+    TokenBucket bucket = buckets.get(bucketKey(uri, operation));
+    return bucket == null ? 0 : bucket.getRejectedCount();
+  }
+
+  public long getDelayedCount() {
+    return delayedCount.sum();
+  }
+
+  public long getRejectedCount() {
+    return rejectedCount.sum();
+  }
+
+  @Override
+  public void push(MessagePushRequest request) throws QueueServiceException {
+    MessagePushRequest.validate(request);
+    acquire(request.getUri(), Operation.PUSH);
+    queueService.push(request);
+  }
+
+  @Override
+  public boolean tryPush(MessagePushRequest request) throws QueueServiceException {
+    MessagePushRequest.validate(request);
+    acquire(request.getUri(), Operation.PUSH);
+    return queueService.tryPush(request);
+  }
+
+  @Override
+  public Message pull(MessagePullRequest request) throws QueueServiceException {
+    MessagePullRequest.validate(request);
+    acquire(request.getUri(), Operation.PULL);
+    return queueService.pull(request);
+  }
+
+  @Override
+  public void delete(MessageDeleteRequest request) throws QueueServiceException {
+    MessageDeleteRequest.validate(request);
+    acquire(request.getMessage().getUri(), Operation.DELETE);
+    queueService.delete(request);
+  }
+
+  @Override
+  public void changeVisibility(MessageChangeVisibilityRequest request)
+      throws QueueServiceException {
+    MessageChangeVisibilityRequest.validate(request);
+    acquire(request.getMessage().getUri(), Operation.CHANGE_VISIBILITY);
+    queueService.changeVisibility(request);
+  }
+
+  @Override
+  public void setRedrivePolicy(String uri, RedrivePolicy redrivePolicy)
+      throws QueueServiceException {
+    queueService.setRedrivePolicy(uri, redrivePolicy);
+  }
+
+  @Override
+  public int redrive(String deadLetterUri, String targetUri) throws QueueServiceException {
+    return queueService.redrive(deadLetterUri, targetUri);
+  }
+
+  @Override
+  public void setRetentionPeriod(String uri, int retentionPeriodSec)
+      throws QueueServiceException {
+    queueService.setRetentionPeriod(uri, retentionPeriodSec);
+  }
+
+  @Override
+  public QueueAttributes getQueueAttributes(String uri) throws QueueServiceException {
+    return queueService.getQueueAttributes(uri);
+  }
+
+  @Override
+  public void createQueue(String uri) throws QueueServiceException {
+    queueService.createQueue(uri);
+  }
+
+  @Override
+  public void purgeQueue(String uri) throws QueueServiceException {
+    queueService.purgeQueue(uri);
+  }
+
+  @Override
+  public void deleteQueue(String uri) throws QueueServiceException {
+    queueService.deleteQueue(uri);
+  }
+
+  @Override
+  public void setDeliveryDelay(String uri, int delaySec) throws QueueServiceException {
+    queueService.setDeliveryDelay(uri, delaySec);
+  }
+
+  private void acquire(String uri, Operation operation) throws QueueServiceException {
+    TokenBucket bucket = bucketOf(uri, operation);
+    if (bucket == null) {
+      return;
+    }
+
+    long waitNanos = bucket.acquire(System.nanoTime());
+    if (waitNanos < 0) {
+      rejectedCount.increment();
+      throw new QueueServiceException("Rate limit of " + operation + " on queue " + uri
+          + " exceeded");
+    }
+    if (waitNanos > 0) {
+      delayedCount.increment();
+      try {
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new QueueServiceException("Interrupted while waiting for rate limit", e);
+      }
+    }
+  }
+
+  private TokenBucket bucketOf(String uri, Operation operation) {
+    String key = bucketKey(uri, operation);
+    TokenBucket bucket = buckets.get(key);
+    if (bucket != null) {
+      return bucket;
+    }
+    RateLimit defaultRateLimit = defaultRateLimits.get(operation);
+    return defaultRateLimit == null ? null : buckets.computeIfAbsent(key,
+        k -> new TokenBucket(defaultRateLimit, System.nanoTime()));
+  }
+
+  private static String bucketKey(String uri, Operation operation) {
+    return operation.name() + KEY_SEP + uri;
+  }
+
+  /**
+   * Operations which are rate limited.
+   */
+  public enum Operation {
+    PUSH, PULL, DELETE, CHANGE_VISIBILITY
+  }
+}
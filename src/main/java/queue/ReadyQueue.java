@@ -0,0 +1,183 @@
+package queue;
+
+import queue.model.Message;
+import queue.model.MessagePushRequest;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Consumer;
+
+/**
+ * ReadyQueue is the main queue of one queue uri. It keeps a queue per priority level, each sorted
+ * in the order of visibilityTimestamp, and an index of all its messages by handle so that a
+ * message is removed in O(log n). Levels are drained by smooth weighted round-robin with weight
+ * 2^priority: when several levels have visible messages, each gets a share of pulls in proportion
+ * to its weight, so urgent messages overtake a backlog without starving lower priorities.
+ */
+class ReadyQueue {
+  private static final int LEVELS = MessagePushRequest.MAX_PRIORITY + 1;
+
+  private final List<ConcurrentSkipListSet<Message>> levels = new ArrayList<>(LEVELS);
+  private final Map<String, Message> messagesByHandle = new ConcurrentHashMap<>();
+  private final long[] credits = new long[LEVELS];
+
+  public ReadyQueue() {
+    for (int i = 0; i < LEVELS; i++) {
+      levels.add(new ConcurrentSkipListSet<>(messagePriorityComparator()));
+    }
+  }
+
+  public synchronized void add(Message message) {
+    Message previous = messagesByHandle.put(message.getHandle(), message);
+    if (previous != null) {
+      levels.get(levelOf(previous)).remove(previous);
+    }
+    levels.get(levelOf(message)).add(message);
+  }
+
+  /**
+   * Returns the message which the next {@link #poll(long)} would return, without removing it.
+   */
+  public synchronized Message peek(long currentTs) {
+    int level = selectLevel(currentTs, false);
+    return level < 0 ? null : levels.get(level).first();
+  }
+
+  /**
+   * Removes and returns a visible message from the level selected by weighted round-robin, or
+   * null if no level has a visible message.
+   */
+  public synchronized Message poll(long currentTs) {
+    int level = selectLevel(currentTs, true);
+    if (level < 0) {
+      return null;
+    }
+    Message message = levels.get(level).pollFirst();
+    messagesByHandle.remove(message.getHandle());
+    return message;
+  }
+
+  /**
+   * Removes and returns the message with least visibilityTimestamp over all levels, visible or
+   * not, or null if the queue is empty.
+   */
+  public synchronized Message pollOldest() {
+    int oldest = oldestLevel();
+    if (oldest < 0) {
+      return null;
+    }
+    Message message = levels.get(oldest).pollFirst();
+    messagesByHandle.remove(message.getHandle());
+    return message;
+  }
+
+  /**
+   * Returns the message which {@link #pollOldest()} would return, without removing it.
+   */
+  public synchronized Message peekOldest() {
+    int oldest = oldestLevel();
+    return oldest < 0 ? null : levels.get(oldest).first();
+  }
+
+  /**
+   * Removes the message with given handle.
+   *
+   * @return removed message, or null if not present.
+   */
+  public synchronized Message remove(String handle) {
+    Message message = messagesByHandle.remove(handle);
+    if (message != null) {
+      levels.get(levelOf(message)).remove(message);
+    }
+    return message;
+  }
+
+  public Message get(String handle) {
+    return messagesByHandle.get(handle);
+  }
+
+  /**
+   * Weakly consistent iteration over all messages, which does not block other operations.
+   */
+  public void forEach(Consumer<Message> action) {
+    messagesByHandle.values().forEach(action);
+  }
+
+  /**
+   * Weakly consistent iterator over all messages, which does not block other operations.
+   */
+  public Iterator<Message> iterator() {
+    return messagesByHandle.values().iterator();
+  }
+
+  public boolean isEmpty() {
+    return messagesByHandle.isEmpty();
+  }
+
+  public int size() {
+    return messagesByHandle.size();
+  }
+
+  private int selectLevel(long currentTs, boolean commit) {
+    int selected = -1;
+    long selectedCredit = Long.MIN_VALUE;
+    long totalWeight = 0;
+
+    for (int i = 0; i < LEVELS; i++) {
+      if (!isVisible(i, currentTs)) {
+        continue;
+      }
+      long weight = 1L << i;
+      long credit = credits[i] + weight;
+      totalWeight += weight;
+      if (credit > selectedCredit) {
+        selected = i;
+        selectedCredit = credit;
+      }
+    }
+
+    if (commit && selected >= 0) {
+      for (int i = 0; i < LEVELS; i++) {
+        if (isVisible(i, currentTs)) {
+          credits[i] += 1L << i;
+        } else {
+          // idle levels do not bank credit.
+          credits[i] = 0;
+        }
+      }
+      credits[selected] -= totalWeight;
+    }
+    return selected;
+  }
+
+  private int oldestLevel() {
+    int oldest = -1;
+    for (int i = 0; i < LEVELS; i++) {
+      if (!levels.get(i).isEmpty() && (oldest < 0 || levels.get(oldest).comparator()
+          .compare(levels.get(i).first(), levels.get(oldest).first()) < 0)) {
+        oldest = i;
+      }
+    }
+    return oldest;
+  }
+
+  private boolean isVisible(int level, long currentTs) {
+    ConcurrentSkipListSet<Message> messages = levels.get(level);
+    return !messages.isEmpty() && messages.first().getVisibilityTimestamp() <= currentTs;
+  }
+
+  private static int levelOf(Message message) {
+    return Math.max(0, Math.min(message.getPriority(), LEVELS - 1));
+  }
+
+  private static Comparator<Message> messagePriorityComparator() {
+    // Handles are unique within a queue, they only break ties between equal timestamps.
+    return Comparator.comparingLong(Message::getVisibilityTimestamp)
+        .thenComparing(Message::getHandle);
+  }
+}
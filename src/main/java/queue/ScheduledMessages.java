@@ -0,0 +1,103 @@
+package queue;
+
+import queue.model.Message;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * ScheduledMessages holds the messages of one queue which are not visible before a future
+ * timestamp, e.g. delayed pushes, apart from the main queue so that they do not slow it down.
+ * Messages are kept in buckets of {@link #BUCKET_MS} by visibilityTimestamp: adding a message
+ * costs a lookup among buckets rather than among messages, and due buckets are handed over to
+ * the main queue whole. Removal by handle only drops the message from the index, and the bucket
+ * skips it when it comes due.
+ */
+class ScheduledMessages {
+  private static final long BUCKET_MS = 1000;
+
+  private final TreeMap<Long, List<Message>> buckets = new TreeMap<>();
+  private final Map<String, Message> messagesByHandle = new HashMap<>();
+  private volatile long nextDueTs = Long.MAX_VALUE;
+
+  public synchronized void add(Message message) {
+    // A replaced message stays in its bucket until it comes due and is skipped then.
+    messagesByHandle.put(message.getHandle(), message);
+    buckets.computeIfAbsent(message.getVisibilityTimestamp() / BUCKET_MS, k -> new ArrayList<>())
+        .add(message);
+    nextDueTs = Math.min(nextDueTs, message.getVisibilityTimestamp());
+  }
+
+  /**
+   * Removes the message with given handle.
+   *
+   * @return removed message, or null if not present.
+   */
+  public synchronized Message remove(String handle) {
+    return messagesByHandle.remove(handle);
+  }
+
+  /**
+   * Removes and returns all the messages visible at currentTs. Cheap when nothing is due.
+   */
+  public List<Message> pollDue(long currentTs) {
+    List<Message> due = new ArrayList<>();
+    if (nextDueTs > currentTs) {
+      return due;
+    }
+
+    synchronized (this) {
+      long currentBucket = currentTs / BUCKET_MS;
+      Iterator<Map.Entry<Long, List<Message>>> iterator =
+          buckets.headMap(currentBucket, true).entrySet().iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<Long, List<Message>> bucket = iterator.next();
+        if (bucket.getKey() < currentBucket) {
+          // whole bucket is due.
+          bucket.getValue().forEach(message -> takeIfPresent(message, due));
+          iterator.remove();
+          continue;
+        }
+
+        List<Message> later = new ArrayList<>();
+        for (Message message : bucket.getValue()) {
+          if (message.getVisibilityTimestamp() <= currentTs) {
+            takeIfPresent(message, due);
+          } else {
+            later.add(message);
+          }
+        }
+        if (later.isEmpty()) {
+          iterator.remove();
+        } else {
+          bucket.setValue(later);
+        }
+      }
+
+      nextDueTs = buckets.isEmpty() ? Long.MAX_VALUE : earliestIn(buckets.firstEntry().getValue());
+    }
+    return due;
+  }
+
+  public synchronized int size() {
+    return messagesByHandle.size();
+  }
+
+  private void takeIfPresent(Message message, List<Message> due) {
+    if (messagesByHandle.remove(message.getHandle(), message)) {
+      due.add(message);
+    }
+  }
+
+  private static long earliestIn(List<Message> bucket) {
+    long earliest = Long.MAX_VALUE;
+    for (Message message : bucket) {
+      earliest = Math.min(earliest, message.getVisibilityTimestamp());
+    }
+    return earliest;
+  }
+}
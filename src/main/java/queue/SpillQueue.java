@@ -0,0 +1,167 @@
+package queue;
+
+import queue.model.Message;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * SpillQueue keeps the tail of a queue on disk in a sequence of segment files. Messages are
+ * appended to the newest segment, which is sealed once it is full or once the reader catches up
+ * with it, and read back in FIFO order from the oldest sealed segment. Segments are written and
+ * read sequentially through large buffers, and deleted as soon as they are fully read.
+ */
+class SpillQueue {
+  private static final int IO_BUFFER_SIZE = 1 << 20;
+  private static final long MAX_SEGMENT_BYTES = 64L << 20;
+  private static final String SEGMENT_FILE_PREFIX = "segment-";
+
+  private final File directory;
+  private final Deque<Segment> sealedSegments = new ArrayDeque<>();
+  private Segment writeSegment;
+  private DataOutputStream writer;
+  private DataInputStream reader;
+  private long nextSegmentId = 0;
+  private long size = 0;
+
+  public SpillQueue(File directory) {
+    this.directory = directory;
+  }
+
+  public synchronized void append(Message message) throws IOException {
+    if (writer == null) {
+      directory.mkdirs();
+      writeSegment = new Segment(new File(directory, SEGMENT_FILE_PREFIX + nextSegmentId++));
+      writer = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(writeSegment.file), IO_BUFFER_SIZE));
+    }
+
+    writeMessage(writer, message);
+    writeSegment.messages++;
+    size++;
+
+    if (writer.size() >= MAX_SEGMENT_BYTES) {
+      sealWriteSegment();
+    }
+  }
+
+  /**
+   * Removes and returns up to maxMessages of the oldest messages.
+   */
+  public synchronized List<Message> poll(String uri, int maxMessages) throws IOException {
+    List<Message> messages = new ArrayList<>(Math.min(maxMessages, (int) Math.min(size, 4096)));
+    while (messages.size() < maxMessages && size > 0) {
+      if (sealedSegments.isEmpty()) {
+        sealWriteSegment();
+      }
+
+      Segment segment = sealedSegments.peekFirst();
+      if (reader == null) {
+        reader = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(segment.file), IO_BUFFER_SIZE));
+      }
+      while (messages.size() < maxMessages && segment.messages > 0) {
+        messages.add(readMessage(reader, uri));
+        segment.messages--;
+        size--;
+      }
+
+      if (segment.messages == 0) {
+        reader.close();
+        reader = null;
+        sealedSegments.pollFirst();
+        segment.file.delete();
+      }
+    }
+    return messages;
+  }
+
+  /**
+   * Drops all spilled messages and deletes their segment files.
+   */
+  public synchronized void clear() {
+    try {
+      if (reader != null) {
+        reader.close();
+      }
+      if (writer != null) {
+        writer.close();
+        sealedSegments.addLast(writeSegment);
+      }
+    } catch (IOException e) {
+      // files are deleted below anyway.
+    }
+    reader = null;
+    writer = null;
+    writeSegment = null;
+    for (Segment segment : sealedSegments) {
+      segment.file.delete();
+    }
+    sealedSegments.clear();
+    size = 0;
+  }
+
+  public synchronized long size() {
+    return size;
+  }
+
+  private void sealWriteSegment() throws IOException {
+    if (writer == null) {
+      return;
+    }
+    writer.close();
+    writer = null;
+    sealedSegments.addLast(writeSegment);
+    writeSegment = null;
+  }
+
+  private static void writeMessage(DataOutputStream out, Message message) throws IOException {
+    out.writeUTF(message.getHandle());
+    byte[] content = message.getContent().getBytes(StandardCharsets.UTF_8);
+    out.writeInt(content.length);
+    out.write(content);
+    out.writeLong(message.getVisibilityTimestamp());
+    out.writeLong(message.getSentTimestamp());
+    out.writeInt(message.getReceiveCount());
+    out.writeInt(message.getPriority());
+    out.writeBoolean(message.getDeduplicationId() != null);
+    if (message.getDeduplicationId() != null) {
+      out.writeUTF(message.getDeduplicationId());
+    }
+  }
+
+  private static Message readMessage(DataInputStream in, String uri) throws IOException {
+    String handle = in.readUTF();
+    byte[] content = new byte[in.readInt()];
+    in.readFully(content);
+    Message message = new Message(uri, handle, new String(content, StandardCharsets.UTF_8),
+        in.readLong())
+        .withSentTimestamp(in.readLong())
+        .withReceiveCount(in.readInt())
+        .withPriority(in.readInt());
+    if (in.readBoolean()) {
+      message.withDeduplicationId(in.readUTF());
+    }
+    return message;
+  }
+
+  private static class Segment {
+    private final File file;
+    private long messages = 0;
+
+    private Segment(File file) {
+      this.file = file;
+    }
+  }
+}
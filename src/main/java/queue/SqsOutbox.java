@@ -0,0 +1,317 @@
+package queue;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import queue.exception.QueueServiceException;
+import queue.model.Message;
+import queue.model.MessageChangeVisibilityRequest;
+import queue.model.MessageDeleteRequest;
+import queue.model.MessageFileDto;
+import queue.model.MessagePullRequest;
+import queue.model.MessagePushRequest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SqsOutbox decouples pushes to SQS from SQS latency. A push is appended to a local
+ * {@link FileQueueService}, one outbox queue per SQS queue url, and a drainer thread forwards the
+ * messages of every url in batches. A url is sent one batch at a time, in push order: entries
+ * which failed are retried with exponential backoff before any message of a later batch, and
+ * stay in flight in the outbox meanwhile. Entries of a batch which SQS rejects one by one land
+ * after the rest of their batch. Messages are deleted from the outbox once SQS accepted
+ * them, so delivery is at least once: a message in flight when the process stops is sent again
+ * after restart, possibly after later messages of its url. Pushes are forced to disk before they
+ * return. Entries which SQS rejects as the sender's fault, e.g. malformed or too large, would
+ * fail again, so they are dropped instead of being retried and counted, see
+ * {@link #getDroppedCount()}. The drainer thread keeps going after a failed drain, which it
+ * exposes through {@link #getLastDrainFailure()}.
+ *
+ * <p>The outbox log is truncated whenever a drain leaves it empty, so its size follows the
+ * backlog rather than the age of the outbox.
+ */
+class SqsOutbox implements Closeable {
+  private static final int MAX_SEND_BATCH_SIZE = 10;
+  // SQS limit of the total size of the bodies of a batch.
+  private static final int MAX_SEND_BATCH_BYTES = 256 * 1024;
+  private static final int OUTBOX_VISIBILITY_TIMEOUT_SEC = 60;
+  private static final long IDLE_WAIT_MS = 100;
+  private static final long MIN_BACKOFF_MS = 100;
+  private static final long MAX_BACKOFF_MS = 30 * 1000;
+  // Pending messages are renewed only when they would not stay in flight past the longest backoff.
+  private static final long VISIBILITY_RENEWAL_MS = MAX_BACKOFF_MS + 10 * 1000;
+  private static final char DELAY_SEP = ':';
+  private static final int RECOVERY_BATCH_SIZE = 1024;
+
+  private final AmazonSQS sqsClient;
+  private final FileQueueService outbox;
+  private final Set<String> queueUrls = ConcurrentHashMap.newKeySet();
+  private final Map<String, PendingBatch> pendingBatches = new ConcurrentHashMap<>();
+  // Handles order messages pushed within the same millisecond, see ReadyQueue.
+  private final AtomicLong handleSequence = new AtomicLong(System.currentTimeMillis() * 1000);
+  private final String handleSuffix = "-" + CommonHelperUtil.getRandomHandle();
+  private final LongAdder droppedCount = new LongAdder();
+  private volatile QueueServiceException lastDrainFailure;
+  private final Thread drainer;
+  private volatile boolean running = true;
+
+  public SqsOutbox(AmazonSQS sqsClient, String directory) throws QueueServiceException {
+    this(sqsClient, directory, true);
+  }
+
+  /**
+   * @param startDrainer false to leave sending to explicit {@link #drain()} calls.
+   */
+  SqsOutbox(AmazonSQS sqsClient, String directory, boolean startDrainer)
+      throws QueueServiceException {
+    this.sqsClient = sqsClient;
+    this.outbox = new FileQueueService(directory);
+    this.outbox.setSyncWrites(true);
+    recoverQueueUrls();
+
+    this.drainer = new Thread(this::drainUntilClosed, "sqs-outbox-drainer");
+    this.drainer.setDaemon(true);
+    if (startDrainer) {
+      this.drainer.start();
+    } else {
+      running = false;
+    }
+  }
+
+  /**
+   * Appends the push to the outbox, from which it is sent to SQS later.
+   */
+  public void push(MessagePushRequest request) throws QueueServiceException {
+    MessagePushRequest.validate(request);
+    String delay = request.getDelaySeconds() == null ? "" : request.getDelaySeconds().toString();
+    outbox.push(new MessagePushRequest(delay + DELAY_SEP + request.getMessage(), request.getUri())
+        .withHandle(String.format("%020d", handleSequence.incrementAndGet()) + handleSuffix));
+    queueUrls.add(request.getUri());
+  }
+
+  /**
+   * Sends at most one batch per queue url which is not backing off.
+   *
+   * @return number of messages accepted by SQS.
+   */
+  public int drain() throws QueueServiceException {
+    int sent = 0;
+    boolean attempted = false;
+    long now = System.currentTimeMillis();
+    for (String queueUrl : queueUrls) {
+      PendingBatch batch = pendingBatches.computeIfAbsent(queueUrl, k -> new PendingBatch());
+      if (now < batch.nextAttemptMs) {
+        continue;
+      }
+
+      MessagePullRequest pullRequest = new MessagePullRequest()
+          .withUri(queueUrl)
+          .withVisibilityTimeout(OUTBOX_VISIBILITY_TIMEOUT_SEC);
+      while (batch.messages.size() < MAX_SEND_BATCH_SIZE) {
+        Message message = outbox.pull(pullRequest);
+        if (message == null) {
+          break;
+        }
+        batch.add(message);
+      }
+      if (!batch.messages.isEmpty()) {
+        sent += send(queueUrl, batch, now);
+        attempted = true;
+      }
+    }
+
+    // Truncating checks the whole outbox under an exclusive lock, only worth it once all is sent.
+    if (attempted && isSettled()) {
+      outbox.truncateIfDrained();
+    }
+    return sent;
+  }
+
+  /**
+   * Number of messages dropped because SQS rejected them as the sender's fault.
+   */
+  public long getDroppedCount() {
+    return droppedCount.sum();
+  }
+
+  /**
+   * Last failure of a drain by the drainer thread, or null if none has failed.
+   */
+  public QueueServiceException getLastDrainFailure() {
+    return lastDrainFailure;
+  }
+
+  /**
+   * Stops the drainer. Messages not sent yet stay in the outbox for the next outbox on the same
+   * directory.
+   */
+  @Override
+  public void close() {
+    // Not interrupted, interrupting file channel operations would close shared channels.
+    running = false;
+    try {
+      if (drainer.isAlive()) {
+        drainer.join(MAX_BACKOFF_MS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      outbox.close();
+    }
+  }
+
+  private int send(String queueUrl, PendingBatch batch, long now) throws QueueServiceException {
+    // Messages which do not fit in the size limit of this batch wait for the next one.
+    List<SendMessageBatchRequestEntry> entries = new ArrayList<>(batch.messages.size());
+    int batchBytes = 0;
+    for (int i = 0; i < batch.messages.size(); i++) {
+      String content = batch.messages.get(i).getContent();
+      int sep = content.indexOf(DELAY_SEP);
+      String body = content.substring(sep + 1);
+      batchBytes += body.getBytes(StandardCharsets.UTF_8).length;
+      if (i > 0 && batchBytes > MAX_SEND_BATCH_BYTES) {
+        break;
+      }
+      SendMessageBatchRequestEntry entry = new SendMessageBatchRequestEntry(Integer.toString(i),
+          body);
+      if (sep > 0) {
+        entry.withDelaySeconds(Integer.valueOf(content.substring(0, sep)));
+      }
+      entries.add(entry);
+    }
+
+    Set<Integer> failed = new HashSet<>();
+    int dropped = 0;
+    try {
+      SendMessageBatchResult result = sqsClient.sendMessageBatch(
+          new SendMessageBatchRequest(queueUrl, entries));
+      for (BatchResultErrorEntry error : result.getFailed()) {
+        if (Boolean.TRUE.equals(error.isSenderFault())) {
+          dropped++;
+        } else {
+          failed.add(Integer.valueOf(error.getId()));
+        }
+      }
+    } catch (Exception e) {
+      for (int i = 0; i < entries.size(); i++) {
+        failed.add(i);
+      }
+    }
+
+    List<Message> retries = new ArrayList<>(failed.size());
+    for (int i = 0; i < entries.size(); i++) {
+      Message message = batch.messages.get(i);
+      if (failed.contains(i)) {
+        retries.add(message);
+      } else {
+        outbox.delete(new MessageDeleteRequest(message));
+      }
+    }
+    droppedCount.add(dropped);
+    int sent = entries.size() - retries.size() - dropped;
+    List<Message> pending = new ArrayList<>(retries);
+    pending.addAll(batch.messages.subList(entries.size(), batch.messages.size()));
+    batch.messages = pending;
+
+    if (retries.isEmpty()) {
+      batch.backoffMs = 0;
+      batch.nextAttemptMs = 0;
+    } else {
+      batch.backoffMs = Math.min(MAX_BACKOFF_MS, Math.max(MIN_BACKOFF_MS, batch.backoffMs * 2));
+      batch.nextAttemptMs = now + batch.backoffMs;
+    }
+    // Keep the pending messages in flight, so they are not pulled again behind later messages.
+    Iterator<Message> iterator = pending.iterator();
+    while (iterator.hasNext()) {
+      Message message = iterator.next();
+      if (message.getVisibilityTimestamp() - now >= VISIBILITY_RENEWAL_MS) {
+        continue;
+      }
+      try {
+        outbox.changeVisibility(
+            new MessageChangeVisibilityRequest(message, OUTBOX_VISIBILITY_TIMEOUT_SEC));
+      } catch (QueueServiceException e) {
+        // No longer in flight, e.g. after a long backoff: it is sent once pulled again.
+        iterator.remove();
+      }
+    }
+    return sent;
+  }
+
+  private boolean isSettled() {
+    for (PendingBatch batch : pendingBatches.values()) {
+      if (!batch.messages.isEmpty()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+    private void drainUntilClosed() {
+    while (running) {
+      try {
+        if (drain() == 0) {
+          outbox.awaitMessages(IDLE_WAIT_MS);
+        }
+      } catch (QueueServiceException e) {
+        lastDrainFailure = e;
+        try {
+          TimeUnit.MILLISECONDS.sleep(MIN_BACKOFF_MS);
+        } catch (InterruptedException ie) {
+          return;
+        }
+      }
+    }
+  }
+
+  private void recoverQueueUrls() throws QueueServiceException {
+    // Urls of messages pushed to the outbox before a restart.
+    try (LogTailer tailer = outbox.tail(0)) {
+      List<MessageFileDto> records = tailer.poll(RECOVERY_BATCH_SIZE, 0);
+      while (!records.isEmpty()) {
+        for (MessageFileDto record : records) {
+          if (record.getOperation().equals(FileQueueService.Operation.PUSH.name())) {
+            queueUrls.add(record.getMessage().getUri());
+          }
+        }
+        records = tailer.poll(RECOVERY_BATCH_SIZE, 0);
+      }
+    } catch (IOException e) {
+      throw new QueueServiceException("Outbox could not be read due to IO error, ", e);
+    }
+  }
+
+  private static class PendingBatch {
+    // Pulled from the outbox, not accepted by SQS yet, in push order.
+    private List<Message> messages = new ArrayList<>();
+    private long backoffMs;
+    private volatile long nextAttemptMs;
+
+    /**
+     * Adds a pulled message, in place of a stale copy of it whose visibility ran out meanwhile.
+     */
+    private void add(Message message) {
+      for (int i = 0; i < messages.size(); i++) {
+        if (messages.get(i).getHandle().equals(message.getHandle())) {
+          messages.set(i, message);
+          return;
+        }
+      }
+      messages.add(message);
+    }
+  }
+}
@@ -1,27 +1,79 @@
 package queue;
 
 import com.amazonaws.services.sqs.AmazonSQS;
-import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
 import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.DeleteQueueRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.PurgeQueueRequest;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
 import com.amazonaws.services.sqs.model.ReceiveMessageResult;
 import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SetQueueAttributesRequest;
 import queue.exception.QueueServiceException;
 import queue.model.Message;
+import queue.model.MessageChangeVisibilityRequest;
 import queue.model.MessageDeleteRequest;
 import queue.model.MessagePullRequest;
 import queue.model.MessagePushRequest;
+import queue.model.QueueAttributes;
+import queue.model.RedrivePolicy;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class SqsQueueService implements QueueService {
+  private static final String RECEIVE_COUNT_ATTRIBUTE = "ApproximateReceiveCount";
+  private static final int MAX_RECEIVE_BATCH_SIZE = 10;
+  private static final String VISIBLE_MESSAGES_ATTRIBUTE = "ApproximateNumberOfMessages";
+  private static final String IN_FLIGHT_MESSAGES_ATTRIBUTE =
+      "ApproximateNumberOfMessagesNotVisible";
+  private static final String DELAYED_MESSAGES_ATTRIBUTE = "ApproximateNumberOfMessagesDelayed";
+  private static final int MAX_SQS_DELAY_SECONDS = 900;
+  // SQS attributes are approximate and lag by about a minute, hence they are cached briefly.
+  private static final long ATTRIBUTES_CACHE_MS = 1000;
 
   private final AmazonSQS sqsClient;
+  private final Map<String, CachedAttributes> attributesCache = new ConcurrentHashMap<>();
+  private volatile SqsOutbox outbox;
 
-  public SqsQueueService(AmazonSQSClient sqsClient) {
+  public SqsQueueService(AmazonSQS sqsClient) {
     this.sqsClient = sqsClient;
   }
 
+  /**
+   * Makes push return once the message is appended to a durable outbox in given directory, from
+   * which a background thread sends it to SQS, see {@link SqsOutbox}. Messages left in the outbox
+   * by an earlier run are sent too.
+   */
+  public synchronized void enableOutbox(String directory) throws QueueServiceException {
+    if (outbox != null) {
+      throw new QueueServiceException("Outbox is already enabled");
+    }
+    outbox = new SqsOutbox(sqsClient, directory);
+  }
+
+  /**
+   * Stops sending from the outbox, later pushes are sent directly. Messages not sent yet stay in
+   * the outbox until it is enabled again.
+   */
+  public synchronized void disableOutbox() {
+    if (outbox != null) {
+      outbox.close();
+      outbox = null;
+    }
+  }
+
   @Override
   public void push(MessagePushRequest request) throws QueueServiceException {
+    validateSqsDelay(request.getDelaySeconds());
+    SqsOutbox currentOutbox = outbox;
+    if (currentOutbox != null) {
+      currentOutbox.push(request);
+      return;
+    }
     try {
       sqsClient.sendMessage(toSQSSendMessageRequest(request));
     } catch (Exception e) {
@@ -41,10 +93,13 @@ public class SqsQueueService implements QueueService {
         return null;
       }
 
+      String receiveCount = sqsMessage.getAttributes().get(RECEIVE_COUNT_ATTRIBUTE);
+
       return new Message()
           .withContent(sqsMessage.getBody())
           .withUri(request.getUri())
-          .withHandle(sqsMessage.getReceiptHandle());
+          .withHandle(sqsMessage.getReceiptHandle())
+          .withReceiveCount(receiveCount == null ? 0 : Integer.parseInt(receiveCount));
 
     } catch (Exception e) {
       throw new QueueServiceException("pull from SQS failed.", e);
@@ -60,16 +115,187 @@ public class SqsQueueService implements QueueService {
     }
   }
 
+  @Override
+  public void changeVisibility(MessageChangeVisibilityRequest request)
+      throws QueueServiceException {
+    try {
+      sqsClient.changeMessageVisibility(toSQSChangeVisibilityRequest(request));
+    } catch (Exception e) {
+      throw new QueueServiceException("Failed to change visibility of message in SQS : "
+          + request, e);
+    }
+  }
+
+  @Override
+  public void setRedrivePolicy(String uri, RedrivePolicy redrivePolicy)
+      throws QueueServiceException {
+    RedrivePolicy.validate(redrivePolicy);
+
+    try {
+      String deadLetterArn = sqsClient.getQueueAttributes(new GetQueueAttributesRequest()
+          .withQueueUrl(redrivePolicy.getDeadLetterUri())
+          .withAttributeNames("QueueArn"))
+          .getAttributes().get("QueueArn");
+
+      String policy = "{\"maxReceiveCount\":\"" + redrivePolicy.getMaxReceiveCount()
+          + "\",\"deadLetterTargetArn\":\"" + deadLetterArn + "\"}";
+
+      sqsClient.setQueueAttributes(new SetQueueAttributesRequest()
+          .withQueueUrl(uri)
+          .addAttributesEntry("RedrivePolicy", policy));
+    } catch (Exception e) {
+      throw new QueueServiceException("Failed to set redrive policy of SQS queue " + uri, e);
+    }
+  }
+
+  @Override
+  public int redrive(String deadLetterUri, String targetUri) throws QueueServiceException {
+    try {
+      int moved = 0;
+      ReceiveMessageRequest receiveRequest = new ReceiveMessageRequest()
+          .withQueueUrl(deadLetterUri)
+          .withMaxNumberOfMessages(MAX_RECEIVE_BATCH_SIZE);
+
+      // Send every message to target queue before deleting it from dead-letter queue.
+      List<com.amazonaws.services.sqs.model.Message> sqsMessages =
+          sqsClient.receiveMessage(receiveRequest).getMessages();
+      while (!sqsMessages.isEmpty()) {
+        for (com.amazonaws.services.sqs.model.Message sqsMessage : sqsMessages) {
+          sqsClient.sendMessage(new SendMessageRequest()
+              .withQueueUrl(targetUri)
+              .withMessageBody(sqsMessage.getBody()));
+          sqsClient.deleteMessage(new DeleteMessageRequest()
+              .withQueueUrl(deadLetterUri)
+              .withReceiptHandle(sqsMessage.getReceiptHandle()));
+          moved++;
+        }
+        sqsMessages = sqsClient.receiveMessage(receiveRequest).getMessages();
+      }
+      return moved;
+    } catch (Exception e) {
+      throw new QueueServiceException("Failed to redrive SQS queue " + deadLetterUri, e);
+    }
+  }
+
+  @Override
+  public void setRetentionPeriod(String uri, int retentionPeriodSec)
+      throws QueueServiceException {
+    try {
+      sqsClient.setQueueAttributes(new SetQueueAttributesRequest()
+          .withQueueUrl(uri)
+          .addAttributesEntry("MessageRetentionPeriod", Integer.toString(retentionPeriodSec)));
+    } catch (Exception e) {
+      throw new QueueServiceException("Failed to set retention period of SQS queue " + uri, e);
+    }
+  }
+
+  /**
+   * Visible and in-flight counts from SQS GetQueueAttributes, cached for a second per queue. SQS
+   * does not report payload size or message age as queue attributes, hence they are -1.
+   */
+  @Override
+  public QueueAttributes getQueueAttributes(String uri) throws QueueServiceException {
+    long now = System.currentTimeMillis();
+    CachedAttributes cached = attributesCache.get(uri);
+    if (cached != null && now - cached.fetchedAtMs < ATTRIBUTES_CACHE_MS) {
+      return cached.attributes;
+    }
+
+    try {
+      Map<String, String> sqsAttributes = sqsClient.getQueueAttributes(
+          new GetQueueAttributesRequest()
+              .withQueueUrl(uri)
+              .withAttributeNames(VISIBLE_MESSAGES_ATTRIBUTE, IN_FLIGHT_MESSAGES_ATTRIBUTE,
+                  DELAYED_MESSAGES_ATTRIBUTE))
+          .getAttributes();
+
+      QueueAttributes attributes = new QueueAttributes()
+          .withVisibleMessages(Long.parseLong(sqsAttributes.get(VISIBLE_MESSAGES_ATTRIBUTE)))
+          .withInFlightMessages(Long.parseLong(sqsAttributes.get(IN_FLIGHT_MESSAGES_ATTRIBUTE)))
+          .withDelayedMessages(Long.parseLong(sqsAttributes.get(DELAYED_MESSAGES_ATTRIBUTE)));
+      attributesCache.put(uri, new CachedAttributes(attributes, now));
+      return attributes;
+    } catch (Exception e) {
+      throw new QueueServiceException("Failed to get attributes of SQS queue " + uri, e);
+    }
+  }
+
+  /**
+   * Creates the SQS queue named by the last path segment of the queue url.
+   */
+  @Override
+  public void createQueue(String uri) throws QueueServiceException {
+    try {
+      sqsClient.createQueue(new CreateQueueRequest()
+          .withQueueName(uri.substring(uri.lastIndexOf('/') + 1)));
+    } catch (Exception e) {
+      throw new QueueServiceException("Failed to create SQS queue " + uri, e);
+    }
+  }
+
+  /**
+   * SQS purges asynchronously within a minute, and allows one purge per queue in that time.
+   */
+  @Override
+  public void purgeQueue(String uri) throws QueueServiceException {
+    try {
+      sqsClient.purgeQueue(new PurgeQueueRequest().withQueueUrl(uri));
+      attributesCache.remove(uri);
+    } catch (Exception e) {
+      throw new QueueServiceException("Failed to purge SQS queue " + uri, e);
+    }
+  }
+
+  @Override
+  public void deleteQueue(String uri) throws QueueServiceException {
+    try {
+      sqsClient.deleteQueue(new DeleteQueueRequest().withQueueUrl(uri));
+      attributesCache.remove(uri);
+    } catch (Exception e) {
+      throw new QueueServiceException("Failed to delete SQS queue " + uri, e);
+    }
+  }
+
+  @Override
+  public void setDeliveryDelay(String uri, int delaySec) throws QueueServiceException {
+    validateSqsDelay(delaySec);
+    try {
+      sqsClient.setQueueAttributes(new SetQueueAttributesRequest()
+          .withQueueUrl(uri)
+          .addAttributesEntry("DelaySeconds", Integer.toString(delaySec)));
+    } catch (Exception e) {
+      throw new QueueServiceException("Failed to set delivery delay of SQS queue " + uri, e);
+    }
+  }
+
+  private void validateSqsDelay(Integer delaySec) throws QueueServiceException {
+    if (delaySec != null && delaySec > MAX_SQS_DELAY_SECONDS) {
+      throw new QueueServiceException("SQS supports delays up to " + MAX_SQS_DELAY_SECONDS
+          + " seconds");
+    }
+  }
+
   private SendMessageRequest toSQSSendMessageRequest(MessagePushRequest request) {
+    // Without a delay of its own, the message gets the delivery delay of the queue.
     return new SendMessageRequest()
         .withQueueUrl(request.getUri())
-        .withMessageBody(request.getMessage());
+        .withMessageBody(request.getMessage())
+        .withDelaySeconds(request.getDelaySeconds());
   }
 
   private ReceiveMessageRequest toSQSReceiveRequest(MessagePullRequest request) {
     return new ReceiveMessageRequest()
         .withQueueUrl(request.getUri())
         .withMaxNumberOfMessages(1)
+        .withAttributeNames(RECEIVE_COUNT_ATTRIBUTE)
+        .withVisibilityTimeout(request.getVisibilityTimeout());
+  }
+
+  private ChangeMessageVisibilityRequest toSQSChangeVisibilityRequest(
+      MessageChangeVisibilityRequest request) {
+    return new ChangeMessageVisibilityRequest()
+        .withQueueUrl(request.getMessage().getUri())
+        .withReceiptHandle(request.getMessage().getHandle())
         .withVisibilityTimeout(request.getVisibilityTimeout());
   }
 
@@ -81,4 +307,13 @@ public class SqsQueueService implements QueueService {
             .withReceiptHandle(request.getMessage().getHandle());
   }
 
+  private static class CachedAttributes {
+    private final QueueAttributes attributes;
+    private final long fetchedAtMs;
+
+    private CachedAttributes(QueueAttributes attributes, long fetchedAtMs) {
+      this.attributes = attributes;
+      this.fetchedAtMs = fetchedAtMs;
+    }
+  }
 }
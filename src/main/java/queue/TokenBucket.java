@@ -0,0 +1,69 @@
+package queue;
+
+import queue.model.RateLimit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * TokenBucket enforces a {@link RateLimit} without locks. It is kept as the time at which the
+ * bucket would be full again, the theoretical arrival time of the generic cell rate algorithm:
+ * every permit pushes it one interval further, and a call may proceed once that time is at most
+ * burst - 1 intervals ahead of now. Taking a permit is a single compare-and-set.
+ */
+class TokenBucket {
+  private final RateLimit rateLimit;
+  private final long intervalNanos;
+  private final long toleranceNanos;
+  private final long maxDelayNanos;
+  private final AtomicLong theoreticalArrivalNanos;
+  private final LongAdder delayedCount = new LongAdder();
+  private final LongAdder rejectedCount = new LongAdder();
+
+  public TokenBucket(RateLimit rateLimit, long nowNanos) {
+    this.rateLimit = rateLimit;
+    this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1)
+        / rateLimit.getPermitsPerSecond()));
+    this.toleranceNanos = (rateLimit.getBurst() - 1) * intervalNanos;
+    this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(rateLimit.getMaxDelayMs());
+    this.theoreticalArrivalNanos = new AtomicLong(nowNanos);
+  }
+
+  /**
+   * Takes a permit, which may only be used after the returned wait.
+   *
+   * @return nanos to wait before proceeding, or -1 if the wait would exceed the max delay and
+   *     no permit is taken.
+   */
+  public long acquire(long nowNanos) {
+    while (true) {
+      long arrival = theoreticalArrivalNanos.get();
+      long start = arrival - nowNanos > 0 ? arrival : nowNanos;
+      long waitNanos = start - nowNanos - toleranceNanos;
+      if (waitNanos > maxDelayNanos) {
+        rejectedCount.increment();
+        return -1;
+      }
+      if (theoreticalArrivalNanos.compareAndSet(arrival, start + intervalNanos)) {
+        if (waitNanos > 0) {
+          delayedCount.increment();
+          return waitNanos;
+        }
+        return 0;
+      }
+    }
+  }
+
+  public RateLimit getRateLimit() {
+    return rateLimit;
+  }
+
+  public long getDelayedCount() {
+    return delayedCount.sum();
+  }
+
+  public long getRejectedCount() {
+    return rejectedCount.sum();
+  }
+}
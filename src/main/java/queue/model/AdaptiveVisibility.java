@@ -0,0 +1,87 @@
+package queue.model;
+
+import queue.exception.QueueServiceException;
+
+/**
+ * Adaptive visibility timeout of a queue. Once minSamples messages of the queue have been
+ * deleted, a pulled message gets the given quantile of the observed pull-to-delete times times
+ * multiplier as visibility timeout, between minTimeoutSec and maxTimeoutSec, instead of the
+ * timeout of the pull request. A message which is not deleted within its visibility timeout
+ * counts as processed in that timeout.
+ */
+public class AdaptiveVisibility {
+  private double quantile = 0.99;
+  private double multiplier = 2;
+  private int minTimeoutSec = 1;
+  private int maxTimeoutSec = 12 * 60 * 60;
+  private int minSamples = 20;
+
+  public AdaptiveVisibility withQuantile(double quantile) {
+    this.quantile = quantile;
+    return this;
+  }
+
+  public AdaptiveVisibility withMultiplier(double multiplier) {
+    this.multiplier = multiplier;
+    return this;
+  }
+
+  public AdaptiveVisibility withMinTimeoutSec(int minTimeoutSec) {
+    this.minTimeoutSec = minTimeoutSec;
+    return this;
+  }
+
+  public AdaptiveVisibility withMaxTimeoutSec(int maxTimeoutSec) {
+    this.maxTimeoutSec = maxTimeoutSec;
+    return this;
+  }
+
+  public AdaptiveVisibility withMinSamples(int minSamples) {
+    this.minSamples = minSamples;
+    return this;
+  }
+
+  public double getQuantile() {
+    return quantile;
+  }
+
+  public double getMultiplier() {
+    return multiplier;
+  }
+
+  public int getMinTimeoutSec() {
+    return minTimeoutSec;
+  }
+
+  public int getMaxTimeoutSec() {
+    return maxTimeoutSec;
+  }
+
+  public int getMinSamples() {
+    return minSamples;
+  }
+
+  public static void validate(AdaptiveVisibility adaptiveVisibility)
+      throws QueueServiceException {
+    if (adaptiveVisibility == null) {
+      throw new QueueServiceException("Adaptive visibility is null");
+    }
+
+    if (!(adaptiveVisibility.getQuantile() > 0 && adaptiveVisibility.getQuantile() <= 1)) {
+      throw new QueueServiceException("Quantile must be in (0, 1]");
+    }
+
+    if (!(adaptiveVisibility.getMultiplier() >= 1)) {
+      throw new QueueServiceException("Multiplier cannot be less than 1");
+    }
+
+    if (adaptiveVisibility.getMinTimeoutSec() < 1
+        || adaptiveVisibility.getMaxTimeoutSec() < adaptiveVisibility.getMinTimeoutSec()) {
+      throw new QueueServiceException("Timeouts must satisfy 1 <= min timeout <= max timeout");
+    }
+
+    if (adaptiveVisibility.getMinSamples() < 1) {
+      throw new QueueServiceException("Min samples must be at least 1");
+    }
+  }
+}
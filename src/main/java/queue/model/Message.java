@@ -6,6 +6,13 @@ public class Message {
   private String handle;
   private String uri;
   private long visibilityTimestamp;
+  private int receiveCount;
+  private String deduplicationId;
+  private String groupId;
+  private int priority;
+  private long sentTimestamp;
+  private long receivedTimestamp = -1;
+  private String storedContent;
 
   public Message() {
   }
@@ -38,6 +45,36 @@ public class Message {
     return this;
   }
 
+  public Message withReceiveCount(int receiveCount) {
+    this.receiveCount = receiveCount;
+    return this;
+  }
+
+  public Message withDeduplicationId(String deduplicationId) {
+    this.deduplicationId = deduplicationId;
+    return this;
+  }
+
+  public Message withGroupId(String groupId) {
+    this.groupId = groupId;
+    return this;
+  }
+
+  public Message withPriority(int priority) {
+    this.priority = priority;
+    return this;
+  }
+
+  public Message withSentTimestamp(long sentTimestamp) {
+    this.sentTimestamp = sentTimestamp;
+    return this;
+  }
+
+  public Message withStoredContent(String storedContent) {
+    this.storedContent = storedContent;
+    return this;
+  }
+
   public String getContent() {
     return content;
   }
@@ -58,6 +95,56 @@ public class Message {
     this.visibilityTimestamp = visibilityTimestamp;
   }
 
+  /**
+   * Number of times this message has been pulled without being deleted.
+   */
+  public int getReceiveCount() {
+    return receiveCount;
+  }
+
+  public void setReceiveCount(int receiveCount) {
+    this.receiveCount = receiveCount;
+  }
+
+  public String getDeduplicationId() {
+    return deduplicationId;
+  }
+
+  public String getGroupId() {
+    return groupId;
+  }
+
+  public int getPriority() {
+    return priority;
+  }
+
+  /**
+   * Timestamp at which the message was pushed, from which its retention period is counted.
+   */
+  public long getSentTimestamp() {
+    return sentTimestamp;
+  }
+
+  /**
+   * Timestamp at which the message was last pulled, kept by the queue service only while the
+   * message is in flight, or -1.
+   */
+  public long getReceivedTimestamp() {
+    return receivedTimestamp;
+  }
+
+  public void setReceivedTimestamp(long receivedTimestamp) {
+    this.receivedTimestamp = receivedTimestamp;
+  }
+
+  /**
+   * Content of the message as stored in the queue, if pull delivered other content, e.g. the
+   * payload of a claim check reference, or null.
+   */
+  public String getStoredContent() {
+    return storedContent;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) {
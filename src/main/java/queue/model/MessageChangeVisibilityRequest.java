@@ -0,0 +1,64 @@
+package queue.model;
+
+import queue.exception.QueueServiceException;
+
+public class MessageChangeVisibilityRequest {
+  private static final int MAX_VISIBILITY_TIMEOUT_SEC = 12 * 60 * 60;
+
+  private Message message;
+  private int visibilityTimeout;
+
+  public MessageChangeVisibilityRequest() {
+    this.message = null;
+  }
+
+  public MessageChangeVisibilityRequest(Message message, int visibilityTimeout) {
+    this.message = message;
+    this.visibilityTimeout = visibilityTimeout;
+  }
+
+  public MessageChangeVisibilityRequest withMessage(Message message) {
+    this.message = message;
+    return this;
+  }
+
+  public MessageChangeVisibilityRequest withVisibilityTimeout(int timeoutInSec) {
+    this.visibilityTimeout = timeoutInSec;
+    return this;
+  }
+
+  public Message getMessage() {
+    return message;
+  }
+
+  public int getVisibilityTimeout() {
+    return visibilityTimeout;
+  }
+
+  public static void validate(MessageChangeVisibilityRequest changeVisibilityRequest)
+      throws QueueServiceException {
+
+    if (changeVisibilityRequest == null) {
+      throw new QueueServiceException("Request param is null");
+    }
+
+    Message message = changeVisibilityRequest.getMessage();
+    if (message == null) {
+      throw new QueueServiceException("Message is null");
+    }
+
+    if (message.getHandle() == null || message.getHandle().isEmpty()) {
+      throw new QueueServiceException("Message handle is null");
+    }
+
+    if (message.getUri() == null || message.getUri().isEmpty()) {
+      throw new QueueServiceException("Queue name is null or empty");
+    }
+
+    if (changeVisibilityRequest.getVisibilityTimeout() < 0
+        || changeVisibilityRequest.getVisibilityTimeout() > MAX_VISIBILITY_TIMEOUT_SEC) {
+      throw new QueueServiceException("Visibility timeout must be between 0 and "
+          + MAX_VISIBILITY_TIMEOUT_SEC + " seconds");
+    }
+  }
+}
@@ -4,11 +4,25 @@ public class MessageFileDto {
   private final String operation;
   private final long currentTimestamp;
   private final Message message;
+  private final String targetUri;
+  private final String transactionId;
 
   public MessageFileDto(String operation, long currentTimestamp, Message message) {
+    this(operation, currentTimestamp, message, null);
+  }
+
+  public MessageFileDto(String operation, long currentTimestamp, Message message,
+                        String targetUri) {
+    this(operation, currentTimestamp, message, targetUri, null);
+  }
+
+  public MessageFileDto(String operation, long currentTimestamp, Message message,
+                        String targetUri, String transactionId) {
     this.operation = operation;
     this.currentTimestamp = currentTimestamp;
     this.message = message;
+    this.targetUri = targetUri;
+    this.transactionId = transactionId;
   }
 
   public String getOperation() {
@@ -22,4 +36,19 @@ public class MessageFileDto {
   public Message getMessage() {
     return message;
   }
+
+  /**
+   * Queue to which the message is moved, only present for move operations.
+   */
+  public String getTargetUri() {
+    return targetUri;
+  }
+
+  /**
+   * Transaction of the record, which only takes effect once followed by the COMMIT record of the
+   * same transaction, or null.
+   */
+  public String getTransactionId() {
+    return transactionId;
+  }
 }
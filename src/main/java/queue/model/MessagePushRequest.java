@@ -4,10 +4,17 @@ package queue.model;
 import queue.exception.QueueServiceException;
 
 public class MessagePushRequest {
+  public static final int MIN_PRIORITY = 0;
+  public static final int MAX_PRIORITY = 9;
+  public static final int MAX_DELAY_SECONDS = 14 * 24 * 60 * 60;
 
   private String message;
   private String uri;
   private String handle;
+  private String deduplicationId;
+  private String groupId;
+  private int priority = MIN_PRIORITY;
+  private Integer delaySeconds;
 
   public MessagePushRequest() {
     this.message = null;
@@ -34,6 +41,42 @@ public class MessagePushRequest {
     return this;
   }
 
+  /**
+   * Pushes with the same deduplication id to the same queue within the deduplication window of the
+   * queue service are accepted but not enqueued again. Ignored by SqsQueueService.
+   */
+  public MessagePushRequest withDeduplicationId(String deduplicationId) {
+    this.deduplicationId = deduplicationId;
+    return this;
+  }
+
+  /**
+   * Messages with the same group id are delivered in push order, one at a time: the next message
+   * of a group is not handed out while an earlier one is in flight. Ignored by SqsQueueService.
+   */
+  public MessagePushRequest withGroupId(String groupId) {
+    this.groupId = groupId;
+    return this;
+  }
+
+  /**
+   * Priority between MIN_PRIORITY and MAX_PRIORITY, higher is more urgent. Higher priorities get a
+   * larger share of pulls, lower priorities are not starved. Ignored by SqsQueueService.
+   */
+  public MessagePushRequest withPriority(int priority) {
+    this.priority = priority;
+    return this;
+  }
+
+  /**
+   * Delays the delivery of the message by up to MAX_DELAY_SECONDS, overriding the delivery delay
+   * of the queue. SqsQueueService supports up to 900 seconds.
+   */
+  public MessagePushRequest withDelaySeconds(int delaySeconds) {
+    this.delaySeconds = delaySeconds;
+    return this;
+  }
+
   public String getMessage() {
     return message;
   }
@@ -46,6 +89,25 @@ public class MessagePushRequest {
     return handle;
   }
 
+  public String getDeduplicationId() {
+    return deduplicationId;
+  }
+
+  public String getGroupId() {
+    return groupId;
+  }
+
+  public int getPriority() {
+    return priority;
+  }
+
+  /**
+   * Delay of the message, or null if the delivery delay of the queue applies.
+   */
+  public Integer getDelaySeconds() {
+    return delaySeconds;
+  }
+
   public static void validate(MessagePushRequest pushRequest)
       throws QueueServiceException {
 
@@ -60,6 +122,28 @@ public class MessagePushRequest {
     if (pushRequest.getMessage() == null || pushRequest.getMessage().isEmpty()) {
       throw new QueueServiceException("Message content is either null or empty");
     }
+
+    if (pushRequest.getDeduplicationId() != null && pushRequest.getDeduplicationId().isEmpty()) {
+      throw new QueueServiceException("Deduplication id is empty");
+    }
+
+    if (pushRequest.getGroupId() != null && pushRequest.getGroupId().isEmpty()) {
+      throw new QueueServiceException("Group id is empty");
+    }
+
+    if (pushRequest.getPriority() < MIN_PRIORITY || pushRequest.getPriority() > MAX_PRIORITY) {
+      throw new QueueServiceException("Priority must be between " + MIN_PRIORITY + " and "
+          + MAX_PRIORITY);
+    }
+
+    validateDelaySeconds(pushRequest.getDelaySeconds());
+  }
+
+  public static void validateDelaySeconds(Integer delaySeconds) throws QueueServiceException {
+    if (delaySeconds != null && (delaySeconds < 0 || delaySeconds > MAX_DELAY_SECONDS)) {
+      throw new QueueServiceException("Delay must be between 0 and " + MAX_DELAY_SECONDS
+          + " seconds");
+    }
   }
 
 }
@@ -0,0 +1,13 @@
+package queue.model;
+
+/**
+ * What a push does when the queue is at its capacity limit.
+ */
+public enum OverflowPolicy {
+  // Fail the push with QueueServiceException.
+  REJECT,
+  // Wait for space up to the block timeout, then fail the push.
+  BLOCK,
+  // Drop the oldest message waiting in the main queue to make space.
+  DROP_OLDEST
+}
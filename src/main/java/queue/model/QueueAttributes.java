@@ -0,0 +1,70 @@
+package queue.model;
+
+/**
+ * Approximate attributes of a queue. An attribute which the backend does not provide is -1.
+ */
+public class QueueAttributes {
+  private long visibleMessages = -1;
+  private long inFlightMessages = -1;
+  private long delayedMessages = -1;
+  private long payloadBytes = -1;
+  private long oldestMessageAgeMs = -1;
+
+  public QueueAttributes withVisibleMessages(long visibleMessages) {
+    this.visibleMessages = visibleMessages;
+    return this;
+  }
+
+  public QueueAttributes withInFlightMessages(long inFlightMessages) {
+    this.inFlightMessages = inFlightMessages;
+    return this;
+  }
+
+  public QueueAttributes withDelayedMessages(long delayedMessages) {
+    this.delayedMessages = delayedMessages;
+    return this;
+  }
+
+  public QueueAttributes withPayloadBytes(long payloadBytes) {
+    this.payloadBytes = payloadBytes;
+    return this;
+  }
+
+  public QueueAttributes withOldestMessageAgeMs(long oldestMessageAgeMs) {
+    this.oldestMessageAgeMs = oldestMessageAgeMs;
+    return this;
+  }
+
+  /**
+   * Number of messages waiting in the queue, which are neither in flight nor delayed.
+   */
+  public long getVisibleMessages() {
+    return visibleMessages;
+  }
+
+  public long getInFlightMessages() {
+    return inFlightMessages;
+  }
+
+  /**
+   * Number of messages pushed with a delay which is not over yet.
+   */
+  public long getDelayedMessages() {
+    return delayedMessages;
+  }
+
+  /**
+   * Total payload size of waiting and in-flight messages.
+   */
+  public long getPayloadBytes() {
+    return payloadBytes;
+  }
+
+  /**
+   * Time since the oldest waiting message was pushed, zero if there is none.
+   */
+  public long getOldestMessageAgeMs() {
+    return oldestMessageAgeMs;
+  }
+
+}
@@ -0,0 +1,69 @@
+package queue.model;
+
+import queue.exception.QueueServiceException;
+
+/**
+ * Capacity limits of a queue, counting both waiting and in-flight messages. Payload size is
+ * measured in characters of message content, which equals bytes for ASCII payloads. A limit of
+ * zero means unlimited.
+ */
+public class QueueLimits {
+  private long maxMessages;
+  private long maxPayloadBytes;
+  private OverflowPolicy overflowPolicy = OverflowPolicy.REJECT;
+  private long blockTimeoutMs;
+
+  public QueueLimits withMaxMessages(long maxMessages) {
+    this.maxMessages = maxMessages;
+    return this;
+  }
+
+  public QueueLimits withMaxPayloadBytes(long maxPayloadBytes) {
+    this.maxPayloadBytes = maxPayloadBytes;
+    return this;
+  }
+
+  public QueueLimits withOverflowPolicy(OverflowPolicy overflowPolicy) {
+    this.overflowPolicy = overflowPolicy;
+    return this;
+  }
+
+  public QueueLimits withBlockTimeoutMs(long blockTimeoutMs) {
+    this.blockTimeoutMs = blockTimeoutMs;
+    return this;
+  }
+
+  public long getMaxMessages() {
+    return maxMessages;
+  }
+
+  public long getMaxPayloadBytes() {
+    return maxPayloadBytes;
+  }
+
+  public OverflowPolicy getOverflowPolicy() {
+    return overflowPolicy;
+  }
+
+  public long getBlockTimeoutMs() {
+    return blockTimeoutMs;
+  }
+
+  public static void validate(QueueLimits queueLimits) throws QueueServiceException {
+    if (queueLimits == null) {
+      throw new QueueServiceException("Queue limits are null");
+    }
+
+    if (queueLimits.getMaxMessages() < 0 || queueLimits.getMaxPayloadBytes() < 0) {
+      throw new QueueServiceException("Queue limits cannot be negative");
+    }
+
+    if (queueLimits.getOverflowPolicy() == null) {
+      throw new QueueServiceException("Overflow policy is null");
+    }
+
+    if (queueLimits.getBlockTimeoutMs() < 0) {
+      throw new QueueServiceException("Block timeout cannot be negative");
+    }
+  }
+}
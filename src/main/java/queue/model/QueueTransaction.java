@@ -0,0 +1,53 @@
+package queue.model;
+
+import queue.exception.QueueServiceException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pushes and deletes across queues which are applied all together or not at all, e.g. the push
+ * of a result and the delete of the message it was computed from. A delete applies only to the
+ * message as pulled: if its visibility timeout is over, or it has been pulled again since, the
+ * whole transaction fails.
+ */
+public class QueueTransaction {
+  private final List<MessagePushRequest> pushes = new ArrayList<>();
+  private final List<Message> deletes = new ArrayList<>();
+
+  public QueueTransaction withPush(MessagePushRequest pushRequest) {
+    this.pushes.add(pushRequest);
+    return this;
+  }
+
+  public QueueTransaction withDelete(Message message) {
+    this.deletes.add(message);
+    return this;
+  }
+
+  public List<MessagePushRequest> getPushes() {
+    return pushes;
+  }
+
+  public List<Message> getDeletes() {
+    return deletes;
+  }
+
+  public static void validate(QueueTransaction transaction) throws QueueServiceException {
+    if (transaction == null) {
+      throw new QueueServiceException("Request param is null");
+    }
+
+    if (transaction.getPushes().isEmpty() && transaction.getDeletes().isEmpty()) {
+      throw new QueueServiceException("Transaction is empty");
+    }
+
+    for (MessagePushRequest pushRequest : transaction.getPushes()) {
+      MessagePushRequest.validate(pushRequest);
+    }
+
+    for (Message message : transaction.getDeletes()) {
+      MessageDeleteRequest.validate(new MessageDeleteRequest(message));
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package queue.model;
+
+import queue.exception.QueueServiceException;
+
+/**
+ * Token bucket rate limit of an operation on a queue: permitsPerSecond calls on average, with
+ * bursts of up to burst calls. A call over the limit waits for a permit if it would wait no longer
+ * than maxDelayMs, otherwise it fails; with the default maxDelayMs of zero it fails at once.
+ */
+public class RateLimit {
+  private double permitsPerSecond;
+  private int burst = 1;
+  private long maxDelayMs;
+
+  public RateLimit withPermitsPerSecond(double permitsPerSecond) {
+    this.permitsPerSecond = permitsPerSecond;
+    return this;
+  }
+
+  public RateLimit withBurst(int burst) {
+    this.burst = burst;
+    return this;
+  }
+
+  public RateLimit withMaxDelayMs(long maxDelayMs) {
+    this.maxDelayMs = maxDelayMs;
+    return this;
+  }
+
+  public double getPermitsPerSecond() {
+    return permitsPerSecond;
+  }
+
+  public int getBurst() {
+    return burst;
+  }
+
+  public long getMaxDelayMs() {
+    return maxDelayMs;
+  }
+
+  public static void validate(RateLimit rateLimit) throws QueueServiceException {
+    if (rateLimit == null) {
+      throw new QueueServiceException("Rate limit is null");
+    }
+
+    if (!(rateLimit.getPermitsPerSecond() > 0)) {
+      throw new QueueServiceException("Permits per second must be positive");
+    }
+
+    if (rateLimit.getBurst() < 1) {
+      throw new QueueServiceException("Burst must be at least 1");
+    }
+
+    if (rateLimit.getMaxDelayMs() < 0) {
+      throw new QueueServiceException("Max delay cannot be negative");
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package queue.model;
+
+import queue.exception.QueueServiceException;
+
+/**
+ * Redrive policy of a queue. A message which has been received maxReceiveCount times without being
+ * deleted is moved to the dead-letter queue instead of being delivered again.
+ */
+public class RedrivePolicy {
+  private String deadLetterUri;
+  private int maxReceiveCount;
+
+  public RedrivePolicy() {
+  }
+
+  public RedrivePolicy(String deadLetterUri, int maxReceiveCount) {
+    this.deadLetterUri = deadLetterUri;
+    this.maxReceiveCount = maxReceiveCount;
+  }
+
+  public RedrivePolicy withDeadLetterUri(String deadLetterUri) {
+    this.deadLetterUri = deadLetterUri;
+    return this;
+  }
+
+  public RedrivePolicy withMaxReceiveCount(int maxReceiveCount) {
+    this.maxReceiveCount = maxReceiveCount;
+    return this;
+  }
+
+  public String getDeadLetterUri() {
+    return deadLetterUri;
+  }
+
+  public int getMaxReceiveCount() {
+    return maxReceiveCount;
+  }
+
+  public static void validate(RedrivePolicy redrivePolicy) throws QueueServiceException {
+    if (redrivePolicy == null) {
+      throw new QueueServiceException("Redrive policy is null");
+    }
+
+    if (redrivePolicy.getDeadLetterUri() == null || redrivePolicy.getDeadLetterUri().isEmpty()) {
+      throw new QueueServiceException("Dead-letter queue name is null or empty");
+    }
+
+    if (redrivePolicy.getMaxReceiveCount() < 1) {
+      throw new QueueServiceException("Max receive count cannot be less than 1");
+    }
+  }
+}
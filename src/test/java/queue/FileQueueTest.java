@@ -3,19 +3,31 @@ package queue;
 import queue.clock.IClock;
 import queue.clock.PseudoClock;
 import queue.exception.QueueServiceException;
+import queue.model.AdaptiveVisibility;
 import queue.model.Message;
+import queue.model.MessageChangeVisibilityRequest;
 import queue.model.MessageDeleteRequest;
+import queue.model.MessageFileDto;
 import queue.model.MessagePullRequest;
 import queue.model.MessagePushRequest;
+import queue.model.QueueAttributes;
+import queue.model.QueueTransaction;
+import queue.model.RedrivePolicy;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 
 public class FileQueueTest {
 
@@ -23,6 +35,7 @@ public class FileQueueTest {
   private IClock clock;
   private final String baseFilePath = ".";
   private final String queue1 = "Queue1";
+  private final List<FileQueueService> otherQueueServices = new ArrayList<>();
 
   @Before
   public void before() {
@@ -109,10 +122,600 @@ public class FileQueueTest {
     Assert.assertEquals("Message is not deleted", expectedMessage, message.getContent());
   }
 
+  @Test
+  public void changeVisibilityExtendsTimeoutTest() throws QueueServiceException {
+
+    fileQueueService.push(new MessagePushRequest("Message 1", queue1));
+
+    MessagePullRequest pullRequest = new MessagePullRequest()
+        .withUri(queue1)
+        .withVisibilityTimeout(60); // 60 seconds
+    Message message = fileQueueService.pull(pullRequest);
+
+    // Extend the visibility by 60 seconds from 50 seconds onwards.
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 50 * 1000);
+    fileQueueService.changeVisibility(new MessageChangeVisibilityRequest(message, 60));
+
+    // A fresh instance replaying the file should see the message still in flight.
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 15 * 1000);
+    FileQueueService otherQueueService = otherProcessQueueService();
+    Assert.assertEquals("Message should be in flight", null, otherQueueService.pull(pullRequest));
+
+    fileQueueService.delete(new MessageDeleteRequest(message));
+
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 60 * 1000);
+    Assert.assertEquals("Message is not deleted", null, fileQueueService.pull(pullRequest));
+  }
+
+  @Test
+  public void deadLetterAfterMaxReceiveCountTest() throws QueueServiceException {
+    String deadLetterQueue = "DeadLetterQueue1";
+
+    fileQueueService.setRedrivePolicy(queue1, new RedrivePolicy(deadLetterQueue, 1));
+    fileQueueService.push(new MessagePushRequest("Message 1", queue1));
+
+    MessagePullRequest pullRequest = new MessagePullRequest()
+        .withUri(queue1)
+        .withVisibilityTimeout(60); // 60 seconds
+    fileQueueService.pull(pullRequest);
+
+    // Message is moved to dead-letter queue on next pull after visibility timeout.
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 65 * 1000);
+    Assert.assertEquals("Message should be dead-lettered", null,
+        fileQueueService.pull(pullRequest));
+
+    // A fresh instance without redrive policy should replay the move from the file.
+    FileQueueService otherQueueService = otherProcessQueueService();
+    Message message = otherQueueService.pull(new MessagePullRequest().withUri(deadLetterQueue));
+    Assert.assertTrue("Message should not be null", message != null);
+    Assert.assertEquals("Message content does not match", "Message 1", message.getContent());
+    Assert.assertEquals("Message should not be in main queue", null,
+        otherQueueService.pull(pullRequest));
+  }
+
+  @Test
+  public void pushDeduplicationAcrossInstancesTest() throws QueueServiceException {
+
+    MessagePushRequest pushRequest = new MessagePushRequest("Message 1", queue1)
+        .withDeduplicationId("dedup-1");
+
+    // The retry comes from another instance, which has to learn the id from the file.
+    fileQueueService.push(pushRequest);
+    otherProcessQueueService().push(pushRequest);
+
+    MessagePullRequest pullRequest = new MessagePullRequest()
+        .withUri(queue1);
+    Assert.assertTrue("Message should not be null", fileQueueService.pull(pullRequest) != null);
+    Assert.assertEquals("Duplicate message was pushed", null, fileQueueService.pull(pullRequest));
+  }
+
+  @Test
+  public void messageGroupOrderingTest() throws QueueServiceException {
+
+    fileQueueService.push(new MessagePushRequest("A1", queue1).withGroupId("A"));
+    fileQueueService.push(new MessagePushRequest("A2", queue1).withGroupId("A"));
+
+    MessagePullRequest pullRequest = new MessagePullRequest()
+        .withUri(queue1)
+        .withVisibilityTimeout(60); // 60 seconds
+    Message message = fileQueueService.pull(pullRequest);
+    Assert.assertEquals("Message content does not match", "A1", message.getContent());
+
+    // Another instance must not hand out A2 while A1 is in flight.
+    FileQueueService otherQueueService = otherProcessQueueService();
+    Assert.assertEquals("Group should be blocked", null, otherQueueService.pull(pullRequest));
+
+    fileQueueService.delete(new MessageDeleteRequest(message));
+    message = otherQueueService.pull(pullRequest);
+    Assert.assertEquals("Message content does not match", "A2", message.getContent());
+  }
+
+  @Test
+  public void messagePriorityReplayTest() throws QueueServiceException {
+
+    fileQueueService.push(new MessagePushRequest("Low", queue1));
+    fileQueueService.push(new MessagePushRequest("High", queue1).withPriority(9));
+
+    MessagePullRequest pullRequest = new MessagePullRequest()
+        .withUri(queue1);
+    Message message = fileQueueService.pull(pullRequest);
+    Assert.assertEquals("Message content does not match", "High", message.getContent());
+    Assert.assertEquals("Priority does not match", 9, message.getPriority());
+  }
+
+  @Test
+  public void messageRetentionExpiryTest() throws QueueServiceException {
+
+    fileQueueService.setRetentionPeriod(queue1, 60);
+    fileQueueService.push(new MessagePushRequest("Message 1", queue1));
+
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 65 * 1000);
+    Assert.assertEquals("Expired count does not match", 1,
+        fileQueueService.sweepExpiredMessages());
+
+    // A fresh instance without retention period should replay the expiry from the file.
+    FileQueueService otherQueueService = otherProcessQueueService();
+    Assert.assertEquals("Message should be expired", null,
+        otherQueueService.pull(new MessagePullRequest().withUri(queue1)));
+  }
+
+  @Test
+  public void awaitMessagesAcrossInstancesTest() throws QueueServiceException {
+    FileQueueService consumer = otherProcessQueueService();
+    MessagePullRequest pullRequest = new MessagePullRequest()
+        .withUri(queue1);
+
+    fileQueueService.push(new MessagePushRequest("Message 1", queue1));
+    Assert.assertTrue("Push should be signalled", consumer.awaitMessages(10));
+    Assert.assertEquals("Message content does not match", "Message 1",
+        consumer.pull(pullRequest).getContent());
+
+    // own pull has already been applied, so there is nothing new until the next push.
+    Assert.assertFalse("Nothing should be signalled", consumer.awaitMessages(10));
+    fileQueueService.push(new MessagePushRequest("Message 2", queue1));
+    Assert.assertTrue("Push should be signalled", consumer.awaitMessages(1000));
+  }
+
+  @Test
+  public void sharedStateAcrossInstancesTest() throws QueueServiceException {
+    String deadLetterQueue = "DeadLetterQueue1";
+    FileQueueService otherQueueService = new FileQueueService(baseFilePath, clock);
+
+    // Instances in the same JVM share replayed state, including the redrive policy.
+    fileQueueService.setRedrivePolicy(queue1, new RedrivePolicy(deadLetterQueue, 1));
+    otherQueueService.push(new MessagePushRequest("Message 1", queue1));
+
+    MessagePullRequest pullRequest = new MessagePullRequest()
+        .withUri(queue1)
+        .withVisibilityTimeout(60);
+    Assert.assertTrue("Message should not be null", otherQueueService.pull(pullRequest) != null);
+    Assert.assertEquals("Message is in flight", null, fileQueueService.pull(pullRequest));
+
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 65 * 1000);
+    Assert.assertEquals("Message should be dead-lettered", null,
+        otherQueueService.pull(pullRequest));
+    Assert.assertEquals("Message content does not match", "Message 1",
+        fileQueueService.pull(new MessagePullRequest().withUri(deadLetterQueue)).getContent());
+    otherQueueService.close();
+  }
+
+  @Test
+  public void sharedStateReleaseTest() throws QueueServiceException, IOException {
+    // An instance with another clock still shares the state, and the clock, of the directory.
+    FileQueueService otherQueueService = new FileQueueService(baseFilePath, new PseudoClock(0));
+    PayloadCodec payloadCodec = new PayloadCodec(64);
+    otherQueueService.setPayloadCodec(payloadCodec);
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 1000);
+    otherQueueService.push(new MessagePushRequest("Message 1", queue1));
+    Assert.assertEquals("Sent timestamp does not match", clock.getCurrentTimestampMs(),
+        fileQueueService.pull(new MessagePullRequest().withUri(queue1)).getSentTimestamp());
+    File signalFile = Paths.get(baseFilePath, QueueSignal.SIGNAL_FILE_NAME).toFile();
+    QueueSignal signal = QueueSignal.forFile(signalFile);
+    signal.release();
+
+    // The state is held until the last instance on the directory is closed.
+    fileQueueService.close();
+    fileQueueService = new FileQueueService(baseFilePath, clock);
+    Assert.assertSame("Codec should be shared", payloadCodec, fileQueueService.getPayloadCodec());
+    fileQueueService.close();
+    otherQueueService.close();
+    fileQueueService = new FileQueueService(baseFilePath, clock);
+    Assert.assertNotSame("State should be fresh", payloadCodec,
+        fileQueueService.getPayloadCodec());
+
+    // The signal of the directory has been released with its state.
+    fileQueueService.awaitMessages(0);
+    QueueSignal freshSignal = QueueSignal.forFile(signalFile);
+    freshSignal.release();
+    Assert.assertNotSame("Signal should be fresh", signal, freshSignal);
+  }
+
+  @Test
+  public void parallelColdStartReplayTest() throws QueueServiceException {
+    // Enough pushes of 4KB for the file to be decoded in parallel on cold start.
+    String content = new String(new char[4096]).replace('\0', 'x');
+    int pushed = (int) (FileQueueService.PARALLEL_REPLAY_MIN_BYTES / content.length()) + 100;
+    for (int i = 0; i < pushed; i++) {
+      fileQueueService.push(new MessagePushRequest(content + i, queue1));
+      clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 1);
+    }
+    MessagePullRequest pullRequest = new MessagePullRequest()
+        .withUri(queue1);
+    for (int i = 0; i < 100; i++) {
+      fileQueueService.delete(new MessageDeleteRequest(fileQueueService.pull(pullRequest)));
+    }
+
+    FileQueueService otherQueueService = otherProcessQueueService();
+    for (int i = 100; i < pushed; i++) {
+      Assert.assertEquals("Message content does not match", content + i,
+          otherQueueService.pull(pullRequest).getContent());
+    }
+    Assert.assertEquals("Queue should be empty", null, otherQueueService.pull(pullRequest));
+  }
+
+  @Test
+  public void parallelColdStartTombstoneReplayTest() throws QueueServiceException {
+    String queue2 = "Queue2";
+    String queue3 = "Queue3";
+    fileQueueService.createQueue(queue2);
+    fileQueueService.push(new MessagePushRequest("Message 1", queue2));
+    fileQueueService.push(new MessagePushRequest("Message 1", queue3));
+    String content = new String(new char[4096]).replace('\0', 'x');
+    int pushed = (int) (FileQueueService.PARALLEL_REPLAY_MIN_BYTES / content.length()) + 100;
+    for (int i = 0; i < pushed; i++) {
+      fileQueueService.push(new MessagePushRequest(content + i, queue1));
+      clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 1);
+    }
+    fileQueueService.purgeQueue(queue2);
+    fileQueueService.deleteQueue(queue3);
+
+    // Records before the tombstones are skipped on cold start, the tombstones still apply.
+    FileQueueService otherQueueService = otherProcessQueueService();
+    Assert.assertNull("Purged queue should be empty",
+        otherQueueService.pull(new MessagePullRequest().withUri(queue2)));
+    Assert.assertEquals("Message content does not match", content + 0,
+        otherQueueService.pull(new MessagePullRequest().withUri(queue1)).getContent());
+    otherQueueService.push(new MessagePushRequest("Message 2", queue3));
+    Assert.assertEquals("Message content does not match", "Message 2",
+        otherQueueService.pull(new MessagePullRequest().withUri(queue3)).getContent());
+  }
+
+  @Test
+  public void parallelColdStartDeduplicationTest() throws QueueServiceException {
+    String queue2 = "Queue2";
+    fileQueueService.push(new MessagePushRequest("Message 1", queue2).withDeduplicationId("1"));
+    String content = new String(new char[4096]).replace('\0', 'x');
+    int pushed = (int) (FileQueueService.PARALLEL_REPLAY_MIN_BYTES / content.length()) + 100;
+    for (int i = 0; i < pushed; i++) {
+      fileQueueService.push(new MessagePushRequest(content + i, queue1));
+      clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 1);
+    }
+    fileQueueService.purgeQueue(queue2);
+
+    // The deduplication id outlives the purge, as on a sequential replay.
+    FileQueueService otherQueueService = otherProcessQueueService();
+    otherQueueService.push(new MessagePushRequest("Message 1", queue2).withDeduplicationId("1"));
+    Assert.assertNull("Retried push should be dropped",
+        otherQueueService.pull(new MessagePullRequest().withUri(queue2)));
+  }
+
+  @Test
+  public void queueAttributesTest() throws QueueServiceException {
+    fileQueueService.push(new MessagePushRequest("Message 1", queue1));
+    fileQueueService.push(new MessagePushRequest("Message 2", queue1));
+    fileQueueService.pull(new MessagePullRequest().withUri(queue1));
+
+    // Another process sees the pushes and the pull through replay.
+    QueueAttributes attributes = otherProcessQueueService().getQueueAttributes(queue1);
+    Assert.assertEquals("Visible count does not match", 1, attributes.getVisibleMessages());
+    Assert.assertEquals("In-flight count does not match", 1, attributes.getInFlightMessages());
+    Assert.assertEquals("Payload size does not match", 18, attributes.getPayloadBytes());
+  }
+
+  @Test
+  public void purgeQueueTest() throws QueueServiceException, IOException {
+    MessagePullRequest pullRequest = new MessagePullRequest()
+        .withUri(queue1);
+    fileQueueService.push(new MessagePushRequest("Message 1", queue1));
+    fileQueueService.push(new MessagePushRequest("Message 2", queue1));
+    fileQueueService.pull(pullRequest);
+
+    // Purge is a single record, however many messages the queue holds.
+    Path path = Paths.get(baseFilePath, FileQueueService.QUEUE_FILE_NAME);
+    int records = Files.readAllLines(path).size();
+    fileQueueService.purgeQueue(queue1);
+    Assert.assertEquals("Purge should write one record", records + 1,
+        Files.readAllLines(path).size());
+
+    fileQueueService.push(new MessagePushRequest("Message 3", queue1));
+    FileQueueService otherQueueService = otherProcessQueueService();
+    Assert.assertEquals("Message content does not match", "Message 3",
+        otherQueueService.pull(pullRequest).getContent());
+    Assert.assertEquals("Purged messages should be dropped", null,
+        otherQueueService.pull(pullRequest));
+  }
+
+  @Test
+  public void purgeMissingQueueTest() throws QueueServiceException, IOException {
+    fileQueueService.push(new MessagePushRequest("Message 1", queue1));
+    Path path = Paths.get(baseFilePath, FileQueueService.QUEUE_FILE_NAME);
+    int records = Files.readAllLines(path).size();
+
+    try {
+      fileQueueService.purgeQueue("Queue2");
+      Assert.fail("Purge of a missing queue should fail");
+    } catch (QueueServiceException e) {
+      // expected.
+    }
+    try {
+      fileQueueService.deleteQueue("Queue2");
+      Assert.fail("Delete of a missing queue should fail");
+    } catch (QueueServiceException e) {
+      // expected.
+    }
+    Assert.assertEquals("No tombstone should be written", records,
+        Files.readAllLines(path).size());
+  }
+
+  @Test
+  public void delayedDeliveryReplayTest() throws QueueServiceException {
+    fileQueueService.push(new MessagePushRequest("Message 1", queue1).withDelaySeconds(3600));
+
+    // Another process replays the push with its future visibility timestamp.
+    FileQueueService otherQueueService = otherProcessQueueService();
+    MessagePullRequest pullRequest = new MessagePullRequest()
+        .withUri(queue1);
+    Assert.assertEquals("Delayed message should not be visible", null,
+        otherQueueService.pull(pullRequest));
+
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 3600 * 1000);
+    Assert.assertEquals("Message content does not match", "Message 1",
+        otherQueueService.pull(pullRequest).getContent());
+  }
+
+  @Test
+  public void payloadCompressionReplayTest() throws QueueServiceException, IOException {
+    byte[] dictionary = "{\"orderId\":,\"status\":\"SHIPPED\"}".getBytes("UTF-8");
+    fileQueueService.setPayloadCodec(new PayloadCodec(16, dictionary));
+    String content = "{\"orderId\":42,\"status\":\"SHIPPED\"}";
+    fileQueueService.push(new MessagePushRequest(content, queue1));
+
+    String record = Files.readAllLines(Paths.get(baseFilePath, FileQueueService.QUEUE_FILE_NAME))
+        .get(0);
+    Assert.assertFalse("Content should be compressed in the log", record.contains(content));
+    Assert.assertTrue("Compressed content should be smaller",
+        fileQueueService.getPayloadCodec().getCompressionRatio() < 1);
+
+    // Another process decodes the content with the same dictionary.
+    FileQueueService otherQueueService = otherProcessQueueService();
+    otherQueueService.setPayloadCodec(new PayloadCodec(16, dictionary));
+    Message message = otherQueueService.pull(new MessagePullRequest().withUri(queue1));
+    Assert.assertEquals("Message content does not match", content, message.getContent());
+
+    // Deleting the decoded message matches the compressed record.
+    otherQueueService.delete(new MessageDeleteRequest().withMessage(message));
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 65 * 1000);
+    Assert.assertEquals("Message is not deleted", null,
+        fileQueueService.pull(new MessagePullRequest().withUri(queue1)));
+  }
+
+  @Test
+  public void claimCheckReplayTest() throws QueueServiceException, IOException {
+    Path directory = Files.createTempDirectory("blobs");
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      content.append("Message ").append(i);
+    }
+    new ClaimCheckQueueService(fileQueueService, directory.toString(), 64, clock)
+        .push(new MessagePushRequest(content.toString(), queue1));
+    String record = Files.readAllLines(Paths.get(baseFilePath, FileQueueService.QUEUE_FILE_NAME))
+        .get(0);
+    Assert.assertTrue("Log should carry a reference only", record.length() < content.length());
+
+    // Another process fetches the payload from the shared blob store and deletes the message.
+    QueueService otherQueueService = new ClaimCheckQueueService(otherProcessQueueService(),
+        directory.toString(), 64, clock);
+    Message message = otherQueueService.pull(new MessagePullRequest().withUri(queue1));
+    Assert.assertEquals("Message content does not match", content.toString(),
+        message.getContent());
+    otherQueueService.delete(new MessageDeleteRequest().withMessage(message));
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 65 * 1000);
+    Assert.assertEquals("Message is not deleted", null,
+        fileQueueService.pull(new MessagePullRequest().withUri(queue1)));
+    Assert.assertEquals("Blob should be deleted", 1, directory.toFile().list().length);
+  }
+
+  @Test
+  public void claimCheckDeleteAfterRestartTest() throws QueueServiceException, IOException {
+    Path directory = Files.createTempDirectory("blobs");
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      content.append("Message ").append(i);
+    }
+    QueueService claimCheckQueueService = new ClaimCheckQueueService(fileQueueService,
+        directory.toString(), 64, clock);
+    claimCheckQueueService.push(new MessagePushRequest(content.toString(), queue1));
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 1);
+    claimCheckQueueService.push(new MessagePushRequest(content.toString(), queue1));
+    Message message = claimCheckQueueService.pull(new MessagePullRequest().withUri(queue1));
+
+    // A new instance, e.g. after a restart, deletes the message pulled by the old one.
+    QueueService restartedQueueService = new ClaimCheckQueueService(otherProcessQueueService(),
+        directory.toString(), 64, clock);
+    restartedQueueService.delete(new MessageDeleteRequest(message));
+    restartedQueueService.delete(new MessageDeleteRequest(message));
+    Assert.assertEquals("Blob should be kept for the other message", 3,
+        directory.toFile().list().length);
+
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 65 * 1000);
+    message = claimCheckQueueService.pull(new MessagePullRequest().withUri(queue1));
+    Assert.assertEquals("Message content does not match", content.toString(),
+        message.getContent());
+    Assert.assertEquals("Message is not deleted", null,
+        claimCheckQueueService.pull(new MessagePullRequest().withUri(queue1)));
+    restartedQueueService.delete(new MessageDeleteRequest(message));
+    Assert.assertEquals("Blob should be deleted", 1, directory.toFile().list().length);
+  }
+
+  @Test
+  public void browseLogTest() throws QueueServiceException {
+    for (int i = 1; i <= 3; i++) {
+      fileQueueService.push(new MessagePushRequest("Message " + i, queue1));
+      clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 1000);
+    }
+    fileQueueService.push(new MessagePushRequest("Other Message", "Queue2"));
+    MessagePullRequest pullRequest = new MessagePullRequest().withUri(queue1);
+    fileQueueService.delete(new MessageDeleteRequest().withMessage(
+        fileQueueService.pull(pullRequest)));
+    Message inFlight = fileQueueService.pull(pullRequest);
+
+    // Another process browses the log without replaying it.
+    Iterator<Message> messages = otherProcessQueueService().browse(queue1);
+    Assert.assertEquals("Message content does not match", "Message 2",
+        messages.next().getContent());
+    Message message = messages.next();
+    Assert.assertEquals("Message content does not match", "Message 3", message.getContent());
+    Assert.assertFalse("Browsed messages do not match", messages.hasNext());
+    Assert.assertEquals("In-flight message should keep its visibility",
+        inFlight.getVisibilityTimestamp(),
+        otherProcessQueueService().browse(queue1).next().getVisibilityTimestamp());
+  }
+
+  @Test
+  public void logShippingFailoverTest() throws QueueServiceException, IOException {
+    Path standbyDirectory = Files.createTempDirectory("standby");
+    LogShipper logShipper = new LogShipper(baseFilePath, standbyDirectory.toString(), clock);
+
+    fileQueueService.push(new MessagePushRequest("Message 1", queue1));
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 1000);
+    fileQueueService.push(new MessagePushRequest("Message 2", queue1));
+    Message inFlight = fileQueueService.pull(new MessagePullRequest().withUri(queue1));
+    Assert.assertTrue("Records should be shipped", logShipper.ship() > 0);
+    Assert.assertEquals("Nothing new to ship", 0, logShipper.ship());
+
+    Path primaryFile = Paths.get(baseFilePath, FileQueueService.QUEUE_FILE_NAME);
+    Path standbyFile = standbyDirectory.resolve(FileQueueService.QUEUE_FILE_NAME);
+    Assert.assertEquals("Standby file does not match", Files.readAllLines(primaryFile),
+        Files.readAllLines(standbyFile));
+    QueueAttributes attributes = logShipper.getStandby().getQueueAttributes(queue1);
+    Assert.assertEquals("Visible count does not match", 1, attributes.getVisibleMessages());
+    Assert.assertEquals("In-flight count does not match", 1, attributes.getInFlightMessages());
+
+    fileQueueService.delete(new MessageDeleteRequest().withMessage(inFlight));
+    Assert.assertTrue("Delete should be shipped", logShipper.awaitAndShip(1000) > 0);
+
+    FileQueueService standby = logShipper.failover();
+    Assert.assertEquals("Message content does not match", "Message 2",
+        standby.pull(new MessagePullRequest().withUri(queue1)).getContent());
+    Assert.assertEquals("Message is not deleted", null,
+        standby.pull(new MessagePullRequest().withUri(queue1)));
+    standby.close();
+  }
+
+  @Test
+  public void logShipperCloseTest() throws QueueServiceException, IOException {
+    Path standbyDirectory = Files.createTempDirectory("standby");
+    LogShipper logShipper = new LogShipper(baseFilePath, standbyDirectory.toString(), clock);
+    PayloadCodec payloadCodec = new PayloadCodec(64);
+    logShipper.getStandby().setPayloadCodec(payloadCodec);
+
+    // Closing the shipper releases the replayed state of its standby.
+    logShipper.close();
+    try (FileQueueService standby = new FileQueueService(standbyDirectory.toString(), clock)) {
+      Assert.assertNotSame("State should be fresh", payloadCodec, standby.getPayloadCodec());
+    }
+  }
+
+  @Test
+  public void tailLogTest() throws QueueServiceException, IOException {
+    fileQueueService.push(new MessagePushRequest("Message 1", queue1));
+    fileQueueService.push(new MessagePushRequest("Message 2", queue1));
+    Message message = fileQueueService.pull(new MessagePullRequest().withUri(queue1));
+
+    long offset;
+    try (LogTailer tailer = fileQueueService.tail(0)) {
+      List<MessageFileDto> records = tailer.poll(2, 0);
+      Assert.assertEquals("Batch size does not match", 2, records.size());
+      Assert.assertEquals("Operation does not match", "PUSH", records.get(0).getOperation());
+      Assert.assertEquals("Message content does not match", "Message 2",
+          records.get(1).getMessage().getContent());
+      offset = tailer.getOffset();
+    }
+
+    // A new tailer resumes from the offset and waits for new records.
+    try (LogTailer tailer = fileQueueService.tail(offset)) {
+      List<MessageFileDto> records = tailer.poll(10, 0);
+      Assert.assertEquals("Operation does not match", "PULL", records.get(0).getOperation());
+      Assert.assertEquals("No records should be left", 0, tailer.poll(10, 10).size());
+      fileQueueService.delete(new MessageDeleteRequest().withMessage(message));
+      records = tailer.poll(10, 1000);
+      Assert.assertEquals("Operation does not match", "DELETE", records.get(0).getOperation());
+      Assert.assertEquals("Offset should be at the end of the file",
+          Files.size(Paths.get(baseFilePath, FileQueueService.QUEUE_FILE_NAME)),
+          tailer.getOffset());
+    }
+  }
+
+  @Test
+  public void adaptiveVisibilityReplayTest() throws QueueServiceException {
+    fileQueueService.setAdaptiveVisibility(queue1, new AdaptiveVisibility().withMinSamples(1));
+    MessagePullRequest pullRequest = new MessagePullRequest().withUri(queue1);
+    fileQueueService.push(new MessagePushRequest("Message 1", queue1));
+    Message message = fileQueueService.pull(pullRequest);
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 2000);
+    fileQueueService.delete(new MessageDeleteRequest().withMessage(message));
+
+    // The processing time is measured from the replayed PULL and DELETE records.
+    fileQueueService.push(new MessagePushRequest("Message 2", queue1));
+    message = fileQueueService.pull(pullRequest);
+    Assert.assertEquals("Visibility timeout does not match", 5 * 1000,
+        message.getVisibilityTimestamp() - clock.getCurrentTimestampMs());
+  }
+
+  @Test
+  public void transactionReplayTest() throws QueueServiceException, IOException {
+    String queue2 = "Queue2";
+    fileQueueService.push(new MessagePushRequest("Message 1", queue1));
+    Message message = fileQueueService.pull(new MessagePullRequest().withUri(queue1));
+    fileQueueService.commit(new QueueTransaction()
+        .withPush(new MessagePushRequest("Result 1", queue2))
+        .withDelete(message));
+
+    // A transaction torn by a crash, without COMMIT record, is not replayed.
+    Path path = Paths.get(baseFilePath, FileQueueService.QUEUE_FILE_NAME);
+    Files.write(path, Collections.singletonList(
+        "PUSH#$0#$" + queue2 + "#$torn#$Result 2#$0#$0#$#$#$#$#$0#$tx"),
+        StandardOpenOption.APPEND);
+    fileQueueService.push(new MessagePushRequest("Message 2", queue1));
+
+    FileQueueService otherQueueService = otherProcessQueueService();
+    MessagePullRequest pullRequest = new MessagePullRequest().withUri(queue2);
+    Assert.assertEquals("Message content does not match", "Result 1",
+        otherQueueService.pull(pullRequest).getContent());
+    Assert.assertNull("Torn transaction was replayed", otherQueueService.pull(pullRequest));
+    Assert.assertEquals("Message content does not match", "Message 2",
+        otherQueueService.pull(new MessagePullRequest().withUri(queue1)).getContent());
+  }
+
+  @Test
+  public void truncateIfDrainedTest() throws QueueServiceException, IOException {
+    MessagePullRequest pullRequest = new MessagePullRequest().withUri(queue1);
+    fileQueueService.push(new MessagePushRequest("Message 1", queue1));
+    FileQueueService otherQueueService = otherProcessQueueService();
+    Message message = otherQueueService.pull(pullRequest);
+    Assert.assertFalse("Log with a message should be kept", fileQueueService.truncateIfDrained());
+
+    // The other instance has not replayed the delete before the truncation.
+    fileQueueService.delete(new MessageDeleteRequest(message));
+    Assert.assertTrue("Drained log should be truncated", fileQueueService.truncateIfDrained());
+    Path path = Paths.get(baseFilePath, FileQueueService.QUEUE_FILE_NAME);
+    Assert.assertEquals("Log should be empty", 0, Files.size(path));
+
+    fileQueueService.push(new MessagePushRequest("Message 2", queue1));
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 65 * 1000);
+    Assert.assertEquals("Message content does not match", "Message 2",
+        otherQueueService.pull(pullRequest).getContent());
+    Assert.assertNull("Deleted message should not come back", otherQueueService.pull(pullRequest));
+  }
+
+  /**
+   * Instance with its own replayed state, like one in another process, on the same clock.
+   */
+  private FileQueueService otherProcessQueueService() {
+    FileQueueService otherQueueService = new FileQueueService(baseFilePath, clock, false);
+    otherQueueServices.add(otherQueueService);
+    return otherQueueService;
+  }
+
   @After
   public void clean() throws IOException {
+    fileQueueService.close();
+    for (FileQueueService otherQueueService : otherQueueServices) {
+      otherQueueService.close();
+    }
     // delete all created files here.
     Path path = Paths.get(baseFilePath, FileQueueService.QUEUE_FILE_NAME);
     Files.deleteIfExists(path);
+    Files.deleteIfExists(Paths.get(baseFilePath, QueueSignal.SIGNAL_FILE_NAME));
   }
 }
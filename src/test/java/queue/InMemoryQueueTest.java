@@ -4,14 +4,31 @@ package queue;
 import queue.clock.IClock;
 import queue.clock.PseudoClock;
 import queue.exception.QueueServiceException;
+import queue.model.AdaptiveVisibility;
 import queue.model.Message;
+import queue.model.MessageChangeVisibilityRequest;
 import queue.model.MessageDeleteRequest;
 import queue.model.MessagePullRequest;
 import queue.model.MessagePushRequest;
+import queue.model.OverflowPolicy;
+import queue.model.QueueAttributes;
+import queue.model.QueueLimits;
+import queue.model.QueueTransaction;
+import queue.model.RedrivePolicy;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class InMemoryQueueTest {
 
   private QueueService queueService;
@@ -179,4 +196,694 @@ public class InMemoryQueueTest {
     Assert.assertTrue("null message was expected", message == null);
   }
 
+  @Test
+  public void changeVisibilityExtendsTimeoutTest() throws QueueServiceException {
+    String expectedMessage = "Push Message 1";
+    String queueName = "Queue1";
+
+    queueService.push(new MessagePushRequest(expectedMessage, queueName));
+
+    MessagePullRequest pullRequest = new MessagePullRequest()
+        .withUri(queueName)
+        .withVisibilityTimeout(60); // 60 seconds
+
+    Message message = queueService.pull(pullRequest);
+
+    // extend the visibility by 60 seconds from 50 seconds onwards.
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 50 * 1000);
+    queueService.changeVisibility(new MessageChangeVisibilityRequest(message, 60));
+
+    // original visibility timeout is over, but message should still be in flight.
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 15 * 1000);
+    Assert.assertTrue("null message was expected", queueService.pull(pullRequest) == null);
+
+    queueService.delete(new MessageDeleteRequest(message));
+
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 60 * 1000);
+    Assert.assertTrue("Message is not deleted", queueService.pull(pullRequest) == null);
+  }
+
+  @Test(expected = QueueServiceException.class)
+  public void changeVisibilityAfterTimeoutTest() throws QueueServiceException {
+    String queueName = "Queue1";
+
+    queueService.push(new MessagePushRequest("Push Message 1", queueName));
+
+    MessagePullRequest pullRequest = new MessagePullRequest()
+        .withUri(queueName)
+        .withVisibilityTimeout(60); // 60 seconds
+
+    Message message = queueService.pull(pullRequest);
+
+    // message is not in flight anymore once visibility timeout is over.
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 65 * 1000);
+    queueService.changeVisibility(new MessageChangeVisibilityRequest(message, 60));
+  }
+
+  @Test
+  public void deadLetterAfterMaxReceiveCountTest() throws QueueServiceException {
+    String expectedMessage = "Push Message 1";
+    String queueName = "Queue1";
+    String deadLetterQueueName = "DeadLetterQueue1";
+
+    queueService.setRedrivePolicy(queueName, new RedrivePolicy(deadLetterQueueName, 2));
+    queueService.push(new MessagePushRequest(expectedMessage, queueName));
+
+    MessagePullRequest pullRequest = new MessagePullRequest()
+        .withUri(queueName)
+        .withVisibilityTimeout(60); // 60 seconds
+
+    // receive the message twice without deleting it.
+    for (int i = 1; i <= 2; i++) {
+      Message message = queueService.pull(pullRequest);
+      Assert.assertEquals("Receive count does not match", i, message.getReceiveCount());
+      clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 65 * 1000);
+    }
+
+    Assert.assertTrue("null message was expected", queueService.pull(pullRequest) == null);
+
+    Message message = queueService.pull(new MessagePullRequest().withUri(deadLetterQueueName));
+    Assert.assertEquals("Message content does not match", expectedMessage, message.getContent());
+
+    // redrive the dead-letter queue back to main queue.
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 65 * 1000);
+    Assert.assertEquals("Redrive count does not match", 1,
+        queueService.redrive(deadLetterQueueName, queueName));
+
+    message = queueService.pull(pullRequest);
+    Assert.assertEquals("Message content does not match", expectedMessage, message.getContent());
+    Assert.assertEquals("Receive count was not reset", 1, message.getReceiveCount());
+  }
+
+  @Test
+  public void deadLetterCountersTest() throws QueueServiceException {
+    String queueName = "Queue1";
+    String deadLetterQueueName = "DeadLetterQueue1";
+    InMemoryQueueService inMemoryQueueService = (InMemoryQueueService) queueService;
+    inMemoryQueueService.setQueueLimits(queueName, new QueueLimits().withMaxMessages(1));
+    inMemoryQueueService.setQueueLimits(deadLetterQueueName,
+        new QueueLimits().withMaxMessages(1));
+    queueService.setRedrivePolicy(queueName, new RedrivePolicy(deadLetterQueueName, 1));
+    queueService.createQueue(deadLetterQueueName);
+    MessagePullRequest pullRequest = new MessagePullRequest().withUri(queueName);
+
+    queueService.push(new MessagePushRequest("Push Message 1", queueName));
+    queueService.pull(pullRequest);
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 31 * 1000);
+    Assert.assertNull("null message was expected", queueService.pull(pullRequest));
+
+    // The moved message no longer counts against its source queue.
+    Assert.assertEquals("Visible count does not match", 0,
+        queueService.getQueueAttributes(queueName).getVisibleMessages());
+    Assert.assertEquals("Visible count does not match", 1,
+        queueService.getQueueAttributes(deadLetterQueueName).getVisibleMessages());
+    queueService.push(new MessagePushRequest("Push Message 2", queueName));
+
+    Assert.assertEquals("Redrive count does not match", 1,
+        queueService.redrive(deadLetterQueueName, queueName + "Redrive"));
+    Assert.assertEquals("Visible count does not match", 0,
+        queueService.getQueueAttributes(deadLetterQueueName).getVisibleMessages());
+    Assert.assertEquals("Payload size does not match", 0,
+        queueService.getQueueAttributes(deadLetterQueueName).getPayloadBytes());
+  }
+
+  @Test
+  public void pushDeduplicationWindowTest() throws QueueServiceException {
+    String queueName = "Queue1";
+
+    MessagePushRequest pushRequest = new MessagePushRequest("Push Message 1", queueName)
+        .withDeduplicationId("dedup-1");
+
+    // retried push within deduplication window is dropped.
+    queueService.push(pushRequest);
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 10 * 1000);
+    queueService.push(pushRequest);
+
+    MessagePullRequest pullRequest = new MessagePullRequest()
+        .withUri(queueName);
+
+    Assert.assertTrue("Message should not be null", queueService.pull(pullRequest) != null);
+    Assert.assertTrue("null message was expected", queueService.pull(pullRequest) == null);
+
+    // same deduplication id is accepted again once the window is over.
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs()
+        + 2 * InMemoryQueueService.DEFAULT_DEDUPLICATION_WINDOW_MS);
+    queueService.push(pushRequest);
+
+    Message message = queueService.pull(pullRequest);
+    Assert.assertTrue("Message should not be null", message != null);
+    Assert.assertEquals("Message content does not match", "Push Message 1", message.getContent());
+  }
+
+  @Test
+  public void messageGroupOrderingTest() throws QueueServiceException {
+    String queueName = "Queue1";
+
+    queueService.push(new MessagePushRequest("A1", queueName).withGroupId("A"));
+    queueService.push(new MessagePushRequest("A2", queueName).withGroupId("A"));
+    queueService.push(new MessagePushRequest("B1", queueName).withGroupId("B"));
+
+    MessagePullRequest pullRequest = new MessagePullRequest()
+        .withUri(queueName)
+        .withVisibilityTimeout(60); // 60 seconds
+
+    // one message per group is in flight, different groups are consumed in parallel.
+    Message a1 = queueService.pull(pullRequest);
+    Message b1 = queueService.pull(pullRequest);
+    Assert.assertEquals("Message content does not match", "A1", a1.getContent());
+    Assert.assertEquals("Message content does not match", "B1", b1.getContent());
+    Assert.assertTrue("null message was expected", queueService.pull(pullRequest) == null);
+
+    // A1 is redelivered before A2 once its visibility timeout is over.
+    queueService.delete(new MessageDeleteRequest(b1));
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 65 * 1000);
+    a1 = queueService.pull(pullRequest);
+    Assert.assertEquals("Message content does not match", "A1", a1.getContent());
+
+    queueService.delete(new MessageDeleteRequest(a1));
+    Message a2 = queueService.pull(pullRequest);
+    Assert.assertEquals("Message content does not match", "A2", a2.getContent());
+  }
+
+  @Test
+  public void messagePriorityWithoutStarvationTest() throws QueueServiceException {
+    String queueName = "Queue1";
+
+    // a backlog of low priority messages is pushed before urgent ones.
+    for (int i = 0; i < 10; i++) {
+      queueService.push(new MessagePushRequest("Low " + i, queueName));
+    }
+    for (int i = 0; i < 10; i++) {
+      queueService.push(new MessagePushRequest("High " + i, queueName).withPriority(3));
+    }
+
+    MessagePullRequest pullRequest = new MessagePullRequest()
+        .withUri(queueName);
+
+    Message message = queueService.pull(pullRequest);
+    Assert.assertEquals("Urgent message was expected", 3, message.getPriority());
+
+    // low priority messages still get a share while urgent ones are pending.
+    boolean lowPulled = false;
+    for (int i = 0; i < 9; i++) {
+      lowPulled |= queueService.pull(pullRequest).getPriority() == 0;
+    }
+    Assert.assertTrue("Low priority message was starved", lowPulled);
+  }
+
+  @Test
+  public void messageRetentionExpiryTest() throws QueueServiceException {
+    String queueName = "Queue1";
+
+    queueService.setRetentionPeriod(queueName, 60);
+    queueService.push(new MessagePushRequest("Push Message 1", queueName));
+
+    MessagePullRequest pullRequest = new MessagePullRequest()
+        .withUri(queueName);
+
+    // message in flight is also dropped once retention period is over.
+    Assert.assertTrue("Message should not be null", queueService.pull(pullRequest) != null);
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 30 * 1000);
+    queueService.push(new MessagePushRequest("Push Message 2", queueName));
+
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 35 * 1000);
+    Message message = queueService.pull(pullRequest);
+    Assert.assertEquals("Message content does not match", "Push Message 2", message.getContent());
+    Assert.assertEquals("Expired count does not match", 1,
+        ((InMemoryQueueService) queueService).getExpiredMessageCount());
+  }
+
+  @Test
+  public void queueLimitsOverflowTest() throws QueueServiceException {
+    String queueName = "Queue1";
+    InMemoryQueueService inMemoryQueueService = (InMemoryQueueService) queueService;
+
+    inMemoryQueueService.setQueueLimits(queueName, new QueueLimits().withMaxMessages(2));
+    queueService.push(new MessagePushRequest("Push Message 1", queueName));
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 1000);
+    queueService.push(new MessagePushRequest("Push Message 2", queueName));
+    try {
+      queueService.push(new MessagePushRequest("Push Message 3", queueName));
+      Assert.fail("Push to a full queue should be rejected");
+    } catch (QueueServiceException e) {
+      Assert.assertTrue(e.getMessage().contains("is full"));
+    }
+
+    // in-flight message still counts, deleting it makes space.
+    MessagePullRequest pullRequest = new MessagePullRequest()
+        .withUri(queueName);
+    Message message = queueService.pull(pullRequest);
+    queueService.delete(new MessageDeleteRequest(message));
+    Assert.assertEquals("Message count does not match", 1,
+        inMemoryQueueService.getMessageCount(queueName));
+
+    inMemoryQueueService.setQueueLimits(queueName, new QueueLimits().withMaxMessages(2)
+        .withOverflowPolicy(OverflowPolicy.DROP_OLDEST));
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 1000);
+    queueService.push(new MessagePushRequest("Push Message 3", queueName));
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 1000);
+    queueService.push(new MessagePushRequest("Push Message 4", queueName));
+    Assert.assertEquals("Dropped count does not match", 1,
+        inMemoryQueueService.getDroppedMessageCount());
+    Assert.assertEquals("Message content does not match", "Push Message 3",
+        queueService.pull(pullRequest).getContent());
+    Assert.assertEquals("Payload size does not match", 28,
+        inMemoryQueueService.getPayloadBytes(queueName));
+  }
+
+  @Test
+  public void rejectedPushDeduplicationTest() throws QueueServiceException {
+    String queueName = "Queue1";
+    InMemoryQueueService inMemoryQueueService = (InMemoryQueueService) queueService;
+    inMemoryQueueService.setQueueLimits(queueName, new QueueLimits().withMaxMessages(1));
+    queueService.push(new MessagePushRequest("Push Message 1", queueName));
+    MessagePushRequest pushRequest = new MessagePushRequest("Push Message 2", queueName)
+        .withDeduplicationId("id-2");
+    try {
+      queueService.push(pushRequest);
+      Assert.fail("Push to a full queue was accepted");
+    } catch (QueueServiceException e) {
+      // expected.
+    }
+
+    // The retry once there is room is not dropped as a duplicate of the rejected push.
+    MessagePullRequest pullRequest = new MessagePullRequest().withUri(queueName);
+    queueService.delete(new MessageDeleteRequest(queueService.pull(pullRequest)));
+    queueService.push(pushRequest);
+    Assert.assertEquals("Message content does not match", "Push Message 2",
+        queueService.pull(pullRequest).getContent());
+  }
+
+  @Test
+  public void messageTieringTest() throws QueueServiceException, IOException {
+    String queueName = "Queue1";
+    InMemoryQueueService inMemoryQueueService = (InMemoryQueueService) queueService;
+    File directory = Files.createTempDirectory("spill").toFile();
+
+    inMemoryQueueService.enableTiering(queueName, directory, 2);
+    for (int i = 1; i <= 5; i++) {
+      queueService.push(new MessagePushRequest("Push Message " + i, queueName));
+      clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 1000);
+    }
+    Assert.assertEquals("Spilled count does not match", 3,
+        inMemoryQueueService.getSpilledMessageCount(queueName));
+    Assert.assertEquals("Message count does not match", 5,
+        inMemoryQueueService.getMessageCount(queueName));
+
+    // spilled messages are read back in push order as the head drains.
+    MessagePullRequest pullRequest = new MessagePullRequest()
+        .withUri(queueName);
+    for (int i = 1; i <= 5; i++) {
+      Assert.assertEquals("Message content does not match", "Push Message " + i,
+          queueService.pull(pullRequest).getContent());
+    }
+    Assert.assertEquals("Spilled count does not match", 0,
+        inMemoryQueueService.getSpilledMessageCount(queueName));
+    Assert.assertEquals("Segment files were not deleted", 0, directory.list().length);
+    directory.delete();
+  }
+
+  @Test
+  public void queueAttributesTest() throws QueueServiceException {
+    String queueName = "Queue1";
+
+    queueService.push(new MessagePushRequest("Push Message 1", queueName));
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 1000);
+    queueService.push(new MessagePushRequest("Push Message 2", queueName));
+    queueService.push(new MessagePushRequest("Push Message 3", queueName).withGroupId("A"));
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 1000);
+
+    MessagePullRequest pullRequest = new MessagePullRequest()
+        .withUri(queueName);
+    queueService.pull(pullRequest);
+
+    QueueAttributes attributes = queueService.getQueueAttributes(queueName);
+    Assert.assertEquals("Visible count does not match", 2, attributes.getVisibleMessages());
+    Assert.assertEquals("In-flight count does not match", 1, attributes.getInFlightMessages());
+    Assert.assertEquals("Payload size does not match", 42, attributes.getPayloadBytes());
+    Assert.assertEquals("Oldest message age does not match", 1000,
+        attributes.getOldestMessageAgeMs());
+  }
+
+  @Test
+  public void queueLifecycleTest() throws QueueServiceException {
+    String queueName = "Queue1";
+    MessagePullRequest pullRequest = new MessagePullRequest()
+        .withUri(queueName);
+
+    queueService.createQueue(queueName);
+    Assert.assertEquals("Created queue should be empty", null, queueService.pull(pullRequest));
+
+    queueService.push(new MessagePushRequest("Push Message 1", queueName));
+    queueService.push(new MessagePushRequest("Push Message 2", queueName));
+    queueService.pull(pullRequest);
+    queueService.purgeQueue(queueName);
+    Assert.assertEquals("Purged queue should be empty", null, queueService.pull(pullRequest));
+    Assert.assertEquals("Message count does not match", 0,
+        ((InMemoryQueueService) queueService).getMessageCount(queueName));
+
+    queueService.deleteQueue(queueName);
+    try {
+      queueService.pull(pullRequest);
+      Assert.fail("Pull from a deleted queue should fail");
+    } catch (QueueServiceException e) {
+      Assert.assertTrue(e.getMessage().contains("does not exist"));
+    }
+  }
+
+  @Test
+  public void delayedDeliveryTest() throws QueueServiceException {
+    String queueName = "Queue1";
+    MessagePullRequest pullRequest = new MessagePullRequest()
+        .withUri(queueName);
+
+    queueService.push(new MessagePushRequest("Push Message 1", queueName)
+        .withDelaySeconds(2 * 24 * 60 * 60));
+    queueService.push(new MessagePushRequest("Push Message 2", queueName));
+    Message message = queueService.pull(pullRequest);
+    Assert.assertEquals("Message content does not match", "Push Message 2",
+        message.getContent());
+    queueService.delete(new MessageDeleteRequest(message));
+    Assert.assertEquals("Delayed message should not be visible", null,
+        queueService.pull(pullRequest));
+    Assert.assertEquals("Delayed count does not match", 1,
+        queueService.getQueueAttributes(queueName).getDelayedMessages());
+
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 2 * 24 * 60 * 60 * 1000L);
+    message = queueService.pull(pullRequest);
+    Assert.assertEquals("Message content does not match", "Push Message 1",
+        message.getContent());
+    queueService.delete(new MessageDeleteRequest(message));
+
+    // Delivery delay of the queue applies to pushes without their own delay.
+    queueService.setDeliveryDelay(queueName, 60);
+    queueService.push(new MessagePushRequest("Push Message 3", queueName));
+    queueService.push(new MessagePushRequest("Push Message 4", queueName).withDelaySeconds(0));
+    message = queueService.pull(pullRequest);
+    Assert.assertEquals("Message content does not match", "Push Message 4",
+        message.getContent());
+    queueService.delete(new MessageDeleteRequest(message));
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 60 * 1000);
+    Assert.assertEquals("Message content does not match", "Push Message 3",
+        queueService.pull(pullRequest).getContent());
+  }
+
+  @Test
+  public void delayedGroupDeliveryTest() throws QueueServiceException {
+    String queueName = "Queue1";
+    MessagePullRequest pullRequest = new MessagePullRequest()
+        .withUri(queueName);
+
+    // A delayed message of one group does not hold back the other ready groups.
+    queueService.push(new MessagePushRequest("Push Message 1", queueName).withGroupId("A")
+        .withDelaySeconds(60));
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 1);
+    queueService.push(new MessagePushRequest("Push Message 2", queueName).withGroupId("B"));
+    Message message = queueService.pull(pullRequest);
+    Assert.assertEquals("Message content does not match", "Push Message 2",
+        message.getContent());
+    queueService.delete(new MessageDeleteRequest(message));
+    Assert.assertNull("Delayed message should not be visible", queueService.pull(pullRequest));
+    Assert.assertEquals("Delayed count does not match", 1,
+        queueService.getQueueAttributes(queueName).getDelayedMessages());
+
+    // Once due, the message joins its group.
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 60 * 1000);
+    queueService.push(new MessagePushRequest("Push Message 3", queueName).withGroupId("A"));
+    message = queueService.pull(pullRequest);
+    Assert.assertEquals("Message content does not match", "Push Message 1",
+        message.getContent());
+    Assert.assertNull("Group should be blocked by its in-flight message",
+        queueService.pull(pullRequest));
+  }
+
+  @Test
+  public void payloadCompressionTest() throws QueueServiceException {
+    String queueName = "Queue1";
+    InMemoryQueueService inMemoryQueueService = (InMemoryQueueService) queueService;
+    PayloadCodec codec = new PayloadCodec(64);
+    inMemoryQueueService.setPayloadCodec(codec);
+
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      content.append("{\"key\":\"value\"}");
+    }
+    queueService.push(new MessagePushRequest(content.toString(), queueName));
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 1);
+    queueService.push(new MessagePushRequest("small", queueName));
+
+    // Only the large message is held compressed.
+    Assert.assertTrue("Large payload should be held compressed",
+        inMemoryQueueService.getPayloadBytes(queueName) < content.length() / 4);
+    Assert.assertTrue("Compression ratio should be reported", codec.getCompressionRatio() < 0.25);
+    Assert.assertTrue("Compression time should be reported", codec.getCompressNanos() > 0);
+
+    MessagePullRequest pullRequest = new MessagePullRequest().withUri(queueName);
+    Message message = queueService.pull(pullRequest);
+    Assert.assertEquals("Message content does not match", content.toString(),
+        message.getContent());
+    queueService.delete(new MessageDeleteRequest(message));
+    Assert.assertEquals("Message content does not match", "small",
+        queueService.pull(pullRequest).getContent());
+    Assert.assertEquals("Message count does not match", 1,
+        inMemoryQueueService.getMessageCount(queueName));
+  }
+
+  @Test
+  public void claimCheckTest() throws QueueServiceException, IOException {
+    String queueName = "Queue1";
+    File directory = Files.createTempDirectory("blobs").toFile();
+    QueueService claimCheckQueueService = new ClaimCheckQueueService(queueService,
+        directory.getPath(), 64, clock);
+
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      content.append("Push Message ").append(i);
+    }
+    // Equal payloads share one blob.
+    claimCheckQueueService.push(new MessagePushRequest(content.toString(), queueName));
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 1);
+    claimCheckQueueService.push(new MessagePushRequest(content.toString(), queueName));
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 1);
+    claimCheckQueueService.push(new MessagePushRequest("small", queueName));
+    Assert.assertTrue("Queue should carry references only",
+        ((InMemoryQueueService) queueService).getPayloadBytes(queueName) < content.length());
+
+    MessagePullRequest pullRequest = new MessagePullRequest().withUri(queueName);
+    Message message = claimCheckQueueService.pull(pullRequest);
+    Assert.assertEquals("Message content does not match", content.toString(),
+        message.getContent());
+    claimCheckQueueService.delete(new MessageDeleteRequest(message));
+    Assert.assertEquals("Blob should be kept for the other message", 3,
+        directory.list().length);
+
+    message = claimCheckQueueService.pull(pullRequest);
+    Assert.assertEquals("Message content does not match", content.toString(),
+        message.getContent());
+    claimCheckQueueService.delete(new MessageDeleteRequest(message));
+    Assert.assertEquals("Blob should be deleted with its last reference", 1,
+        directory.list().length);
+
+    Assert.assertEquals("Message content does not match", "small",
+        claimCheckQueueService.pull(pullRequest).getContent());
+    Assert.assertEquals("Message count does not match", 1,
+        ((InMemoryQueueService) queueService).getMessageCount(queueName));
+  }
+
+  @Test
+  public void claimCheckDuplicateTest() throws QueueServiceException, IOException {
+    String queueName = "Queue1";
+    File directory = Files.createTempDirectory("blobs").toFile();
+    QueueService claimCheckQueueService = new ClaimCheckQueueService(queueService,
+        directory.getPath(), 64, clock);
+
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      content.append("Push Message ").append(i);
+    }
+    Assert.assertTrue("Push should be enqueued", claimCheckQueueService.tryPush(
+        new MessagePushRequest(content.toString(), queueName).withDeduplicationId("id")));
+    Assert.assertFalse("Duplicate should be dropped", claimCheckQueueService.tryPush(
+        new MessagePushRequest(content.toString(), queueName).withDeduplicationId("id")));
+
+    Message message = claimCheckQueueService.pull(new MessagePullRequest().withUri(queueName));
+    claimCheckQueueService.delete(new MessageDeleteRequest(message));
+    Assert.assertEquals("Blob should not be referenced by the duplicate", 1,
+        directory.list().length);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void malformedPayloadTest() {
+    new PayloadCodec().decode(PayloadCodec.MARKER + "z%%");
+  }
+
+  @Test
+  public void browseTest() throws QueueServiceException {
+    String queueName = "Queue1";
+    InMemoryQueueService inMemoryQueueService = (InMemoryQueueService) queueService;
+    for (int i = 1; i <= 3; i++) {
+      queueService.push(new MessagePushRequest("Push Message " + i, queueName));
+      clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 1000);
+    }
+    MessagePullRequest pullRequest = new MessagePullRequest().withUri(queueName);
+    Message pulled = queueService.pull(pullRequest);
+
+    // Browsing sees waiting and in-flight messages without changing their visibility.
+    Set<String> contents = new HashSet<>();
+    Iterator<Message> messages = inMemoryQueueService.browse(queueName);
+    while (messages.hasNext()) {
+      Message message = messages.next();
+      message.setVisibilityTimestamp(0);
+      contents.add(message.getContent());
+    }
+    Assert.assertEquals("Browsed messages do not match", new HashSet<>(Arrays.asList(
+        "Push Message 1", "Push Message 2", "Push Message 3")), contents);
+    Assert.assertEquals("Message content does not match", "Push Message 2",
+        queueService.pull(pullRequest).getContent());
+    queueService.delete(new MessageDeleteRequest(pulled));
+  }
+
+  @Test
+  public void adaptiveVisibilityTest() throws QueueServiceException {
+    String queueName = "Queue1";
+    InMemoryQueueService inMemoryQueueService = (InMemoryQueueService) queueService;
+    inMemoryQueueService.setAdaptiveVisibility(queueName,
+        new AdaptiveVisibility().withQuantile(1).withMultiplier(2).withMinSamples(3));
+    MessagePullRequest pullRequest = new MessagePullRequest().withUri(queueName);
+
+    // The timeout of the pull request applies until enough messages have been processed.
+    for (int i = 1; i <= 3; i++) {
+      queueService.push(new MessagePushRequest("Push Message " + i, queueName));
+      Message message = queueService.pull(pullRequest);
+      Assert.assertEquals("Visibility timeout does not match", 30 * 1000,
+          message.getVisibilityTimestamp() - clock.getCurrentTimestampMs());
+      clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 2000);
+      queueService.delete(new MessageDeleteRequest(message));
+    }
+
+    // Processing takes 2 seconds, which the histogram rounds up to 2047 ms.
+    queueService.push(new MessagePushRequest("Push Message 4", queueName));
+    Message message = queueService.pull(pullRequest);
+    Assert.assertEquals("Visibility timeout does not match", 5 * 1000,
+        message.getVisibilityTimestamp() - clock.getCurrentTimestampMs());
+
+    // A timed out message took at least its 5 seconds, which raises the timeout of its retry.
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 6000);
+    message = queueService.pull(pullRequest);
+    Assert.assertEquals("Message content does not match", "Push Message 4", message.getContent());
+    Assert.assertEquals("Visibility timeout does not match", 11 * 1000,
+        message.getVisibilityTimestamp() - clock.getCurrentTimestampMs());
+  }
+
+  @Test
+  public void transactionTest() throws QueueServiceException {
+    String queueName = "Queue1";
+    String resultQueueName = "Queue2";
+    InMemoryQueueService inMemoryQueueService = (InMemoryQueueService) queueService;
+    MessagePullRequest pullRequest = new MessagePullRequest().withUri(queueName);
+    queueService.push(new MessagePushRequest("Push Message 1", queueName));
+    Message message = queueService.pull(pullRequest);
+
+    inMemoryQueueService.commit(new QueueTransaction()
+        .withPush(new MessagePushRequest("Result 1", resultQueueName))
+        .withDelete(message));
+    Message result = queueService.pull(new MessagePullRequest().withUri(resultQueueName));
+    Assert.assertEquals("Message content does not match", "Result 1", result.getContent());
+    queueService.delete(new MessageDeleteRequest(result));
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 31 * 1000);
+    Assert.assertNull("Deleted message was delivered again", queueService.pull(pullRequest));
+
+    // A message whose visibility timeout is over fails the whole transaction.
+    queueService.push(new MessagePushRequest("Push Message 2", queueName));
+    message = queueService.pull(pullRequest);
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 31 * 1000);
+    try {
+      inMemoryQueueService.commit(new QueueTransaction()
+          .withPush(new MessagePushRequest("Result 2", resultQueueName))
+          .withDelete(message));
+      Assert.fail("Transaction with expired message was committed");
+    } catch (QueueServiceException e) {
+      // expected.
+    }
+    Assert.assertNull("Push of failed transaction was applied",
+        queueService.pull(new MessagePullRequest().withUri(resultQueueName)));
+    Assert.assertEquals("Message content does not match", "Push Message 2",
+        queueService.pull(pullRequest).getContent());
+  }
+
+  @Test
+  public void transactionRollbackDeduplicationTest() throws QueueServiceException {
+    String queueName = "Queue1";
+    String resultQueueName = "Queue2";
+    InMemoryQueueService inMemoryQueueService = (InMemoryQueueService) queueService;
+    inMemoryQueueService.setQueueLimits(resultQueueName, new QueueLimits().withMaxMessages(1));
+    queueService.createQueue(resultQueueName);
+    MessagePullRequest pullRequest = new MessagePullRequest().withUri(queueName);
+    queueService.push(new MessagePushRequest("Push Message 1", queueName));
+    Message message = queueService.pull(pullRequest);
+
+    // The second push does not fit, so neither push nor the delete is applied.
+    QueueTransaction transaction = new QueueTransaction()
+        .withPush(new MessagePushRequest("Result 1", resultQueueName).withDeduplicationId("id-1"))
+        .withPush(new MessagePushRequest("Result 2", resultQueueName))
+        .withDelete(message);
+    try {
+      inMemoryQueueService.commit(transaction);
+      Assert.fail("Transaction over the queue limit was committed");
+    } catch (QueueServiceException e) {
+      // expected.
+    }
+    Assert.assertNull("Push of failed transaction was applied",
+        queueService.pull(new MessagePullRequest().withUri(resultQueueName)));
+
+    // The retry is not dropped as a duplicate of the failed transaction.
+    inMemoryQueueService.commit(new QueueTransaction()
+        .withPush(new MessagePushRequest("Result 1", resultQueueName).withDeduplicationId("id-1"))
+        .withDelete(message));
+    Assert.assertEquals("Message content does not match", "Result 1",
+        queueService.pull(new MessagePullRequest().withUri(resultQueueName)).getContent());
+    clock.setCurrentTimestampMs(clock.getCurrentTimestampMs() + 31 * 1000);
+    Assert.assertNull("Deleted message was delivered again", queueService.pull(pullRequest));
+  }
+
+  @Test
+  public void transactionRollbackConcurrentPullTest()
+      throws QueueServiceException, InterruptedException {
+    String resultQueueName = "Queue1";
+    String fullQueueName = "Queue2";
+    InMemoryQueueService inMemoryQueueService = (InMemoryQueueService) queueService;
+    inMemoryQueueService.setQueueLimits(fullQueueName, new QueueLimits().withMaxMessages(1));
+    queueService.push(new MessagePushRequest("Push Message 1", fullQueueName));
+    queueService.createQueue(resultQueueName);
+
+    // A consumer never sees a push of a transaction which fails.
+    AtomicInteger pulled = new AtomicInteger();
+    AtomicBoolean running = new AtomicBoolean(true);
+    Thread consumer = new Thread(() -> {
+      MessagePullRequest pullRequest = new MessagePullRequest().withUri(resultQueueName);
+      while (running.get()) {
+        try {
+          if (queueService.pull(pullRequest) != null) {
+            pulled.incrementAndGet();
+          }
+        } catch (QueueServiceException e) {
+          running.set(false);
+        }
+      }
+    });
+    consumer.start();
+    for (int i = 0; i < 1000; i++) {
+      try {
+        inMemoryQueueService.commit(new QueueTransaction()
+            .withPush(new MessagePushRequest("Result " + i, resultQueueName))
+            .withPush(new MessagePushRequest("Push Message 2", fullQueueName)));
+        Assert.fail("Transaction over the queue limit was committed");
+      } catch (QueueServiceException e) {
+        // expected.
+      }
+    }
+    running.set(false);
+    consumer.join();
+    Assert.assertEquals("Push of failed transaction was pulled", 0, pulled.get());
+  }
 }
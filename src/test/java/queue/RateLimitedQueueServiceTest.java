@@ -0,0 +1,60 @@
+package queue;
+
+import queue.clock.PseudoClock;
+import queue.exception.QueueServiceException;
+import queue.model.MessagePushRequest;
+import queue.model.RateLimit;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class RateLimitedQueueServiceTest {
+
+  private InMemoryQueueService queueService;
+  private RateLimitedQueueService rateLimitedQueueService;
+
+  @Before
+  public void before() throws QueueServiceException {
+    this.queueService = new InMemoryQueueService(new PseudoClock(0));
+    this.rateLimitedQueueService = new RateLimitedQueueService(queueService);
+  }
+
+  @Test
+  public void rejectOverRateLimitTest() throws QueueServiceException {
+    rateLimitedQueueService.setDefaultRateLimit(RateLimitedQueueService.Operation.PUSH,
+        new RateLimit().withPermitsPerSecond(0.01).withBurst(2));
+
+    // Each queue has its own bucket, a noisy queue does not throttle the others.
+    rateLimitedQueueService.push(new MessagePushRequest("Push Message 1", "Queue1"));
+    rateLimitedQueueService.push(new MessagePushRequest("Push Message 2", "Queue1"));
+    try {
+      rateLimitedQueueService.push(new MessagePushRequest("Push Message 3", "Queue1"));
+      Assert.fail("Push over the rate limit should be rejected");
+    } catch (QueueServiceException e) {
+      // expected.
+    }
+    rateLimitedQueueService.push(new MessagePushRequest("Push Message 1", "Queue2"));
+    Assert.assertEquals("Rejected count does not match", 1,
+        rateLimitedQueueService.getRejectedCount("Queue1", RateLimitedQueueService.Operation.PUSH));
+    Assert.assertEquals("Rejected count does not match", 0,
+        rateLimitedQueueService.getRejectedCount("Queue2", RateLimitedQueueService.Operation.PUSH));
+    Assert.assertEquals("Message count does not match", 2, queueService.getMessageCount("Queue1"));
+  }
+
+  @Test
+  public void delayWithinMaxDelayTest() throws QueueServiceException {
+    // A call within the max delay waits for its permit instead.
+    rateLimitedQueueService.setRateLimit("Queue1", RateLimitedQueueService.Operation.PUSH,
+        new RateLimit().withPermitsPerSecond(20).withMaxDelayMs(1000));
+    long startNanos = System.nanoTime();
+    rateLimitedQueueService.push(new MessagePushRequest("Push Message 1", "Queue1"));
+    rateLimitedQueueService.push(new MessagePushRequest("Push Message 2", "Queue1"));
+    Assert.assertTrue("Push over the rate limit should be delayed",
+        System.nanoTime() - startNanos >= TimeUnit.MILLISECONDS.toNanos(40));
+    Assert.assertEquals("Delayed count does not match", 1,
+        rateLimitedQueueService.getDelayedCount("Queue1", RateLimitedQueueService.Operation.PUSH));
+    Assert.assertEquals("Message count does not match", 2, queueService.getMessageCount("Queue1"));
+  }
+}
@@ -0,0 +1,213 @@
+package queue;
+
+import com.amazonaws.services.sqs.AbstractAmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import queue.exception.QueueServiceException;
+import queue.model.Message;
+import queue.model.MessageChangeVisibilityRequest;
+import queue.model.MessagePushRequest;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+public class SqsOutboxTest {
+
+  private final String queueUrl = "https://sqs/Queue1";
+  private File directory;
+  private FakeSqs sqs;
+
+  @Before
+  public void before() throws IOException {
+    this.directory = Files.createTempDirectory("outbox").toFile();
+    this.sqs = new FakeSqs();
+  }
+
+  @Test
+  public void replayAfterCrashTest() throws QueueServiceException {
+    SqsOutbox crashed = new SqsOutbox(sqs, directory.getPath(), false);
+    crashed.push(new MessagePushRequest("Message 1", queueUrl));
+    crashed.push(new MessagePushRequest("Message 2", queueUrl + "2").withDelaySeconds(5));
+
+    // A new outbox on the directory finds the queue urls in the log and sends the messages.
+    SqsOutbox outbox = new SqsOutbox(sqs, directory.getPath(), false);
+    Assert.assertEquals("Sent count does not match", 2, outbox.drain());
+    Assert.assertEquals("Sent messages do not match", Arrays.asList("Message 1"),
+        sqs.sentBodies(queueUrl));
+    Assert.assertEquals("Sent messages do not match", Arrays.asList("Message 2"),
+        sqs.sentBodies(queueUrl + "2"));
+    Assert.assertEquals("Delay does not match", Integer.valueOf(5),
+        sqs.sent.get(sqs.sentUrls.indexOf(queueUrl + "2")).getDelaySeconds());
+    Assert.assertEquals("Outbox should be empty", 0, outbox.drain());
+  }
+
+  @Test
+  public void partialBatchFailureTest() throws QueueServiceException, InterruptedException {
+    SqsOutbox outbox = new SqsOutbox(sqs, directory.getPath(), false);
+    for (int i = 0; i < 3; i++) {
+      outbox.push(new MessagePushRequest("Message " + i, queueUrl));
+    }
+
+    // The failed entry is retried after backing off, before any later message.
+    sqs.failBodies.add("Message 1");
+    Assert.assertEquals("Sent count does not match", 2, outbox.drain());
+    sqs.failBodies.clear();
+    outbox.push(new MessagePushRequest("Message 3", queueUrl));
+    Assert.assertEquals("Retry should back off", 0, outbox.drain());
+    TimeUnit.MILLISECONDS.sleep(150);
+    Assert.assertEquals("Sent count does not match", 2, outbox.drain());
+    Assert.assertEquals("Sent messages do not match",
+        Arrays.asList("Message 0", "Message 2", "Message 1", "Message 3"),
+        sqs.sentBodies(queueUrl));
+  }
+
+  @Test
+  public void senderFaultTest() throws QueueServiceException {
+    SqsOutbox outbox = new SqsOutbox(sqs, directory.getPath(), false);
+    outbox.push(new MessagePushRequest("Message 1", queueUrl));
+    outbox.push(new MessagePushRequest("Message 2", queueUrl));
+
+    // An entry rejected as the sender's fault is dropped, not retried.
+    sqs.senderFaultBodies.add("Message 1");
+    Assert.assertEquals("Sent count does not match", 1, outbox.drain());
+    Assert.assertEquals("Dropped count does not match", 1, outbox.getDroppedCount());
+    Assert.assertEquals("Outbox should be empty", 0, outbox.drain());
+    Assert.assertEquals("Sent messages do not match", Arrays.asList("Message 2"),
+        sqs.sentBodies(queueUrl));
+  }
+
+  @Test
+  public void batchSizeLimitTest() throws QueueServiceException {
+    SqsOutbox outbox = new SqsOutbox(sqs, directory.getPath(), false);
+    String body = new String(new char[100 * 1024]).replace('\0', 'x');
+    for (int i = 0; i < 3; i++) {
+      outbox.push(new MessagePushRequest(body + i, queueUrl));
+    }
+
+    // Only two bodies of 100KB fit in a batch of 256KB.
+    Assert.assertEquals("Sent count does not match", 2, outbox.drain());
+    Assert.assertEquals("Sent count does not match", 1, outbox.drain());
+    Assert.assertEquals("Batch count does not match", 2, sqs.batchCount);
+  }
+
+  @Test
+  public void expiredPendingMessageTest() throws QueueServiceException, InterruptedException {
+    SqsOutbox outbox = new SqsOutbox(sqs, directory.getPath(), false);
+    outbox.push(new MessagePushRequest("Message 1", queueUrl));
+    outbox.push(new MessagePushRequest("Message 2", queueUrl));
+    sqs.failBodies.add("Message 1");
+    Assert.assertEquals("Sent count does not match", 1, outbox.drain());
+    sqs.failBodies.clear();
+
+    // The visibility of the pending message runs out, so the next drain pulls it again.
+    try (FileQueueService queueService = new FileQueueService(directory.getPath())) {
+      Iterator<Message> messages = queueService.browse(queueUrl);
+      queueService.changeVisibility(new MessageChangeVisibilityRequest(messages.next(), 0));
+    }
+    TimeUnit.MILLISECONDS.sleep(150);
+    Assert.assertEquals("Sent count does not match", 1, outbox.drain());
+    Assert.assertEquals("Sent messages do not match", Arrays.asList("Message 2", "Message 1"),
+        sqs.sentBodies(queueUrl));
+  }
+
+  @Test
+  public void truncateDrainedLogTest()
+      throws QueueServiceException, IOException, InterruptedException {
+    SqsOutbox outbox = new SqsOutbox(sqs, directory.getPath(), false);
+    outbox.push(new MessagePushRequest("Message 1", queueUrl));
+    outbox.push(new MessagePushRequest("Message 2", queueUrl));
+
+    // The log is kept while a message is pending, and renewing it is not logged on every retry.
+    sqs.failBodies.add("Message 2");
+    Assert.assertEquals("Sent count does not match", 1, outbox.drain());
+    Assert.assertTrue("Pending message should be kept", queueFile().length() > 0);
+    for (String record : Files.readAllLines(queueFile().toPath())) {
+      Assert.assertFalse("Visibility should not be renewed yet",
+          record.startsWith(FileQueueService.Operation.CHANGE_VISIBILITY.name()));
+    }
+
+    sqs.failBodies.clear();
+    TimeUnit.MILLISECONDS.sleep(150);
+    Assert.assertEquals("Sent count does not match", 1, outbox.drain());
+    Assert.assertEquals("Drained log should be truncated", 0, queueFile().length());
+
+    outbox.push(new MessagePushRequest("Message 3", queueUrl));
+    Assert.assertEquals("Sent count does not match", 1, outbox.drain());
+    Assert.assertEquals("Sent messages do not match",
+        Arrays.asList("Message 1", "Message 2", "Message 3"), sqs.sentBodies(queueUrl));
+  }
+
+  @Test(expected = QueueServiceException.class)
+  public void invalidPushTest() throws QueueServiceException {
+    new SqsOutbox(sqs, directory.getPath(), false).push(new MessagePushRequest(null, queueUrl));
+  }
+
+  private File queueFile() {
+    return new File(directory, FileQueueService.QUEUE_FILE_NAME);
+  }
+
+  @After
+  public void clean() {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  /**
+   * AmazonSQS which accepts batches in process, failing entries by body.
+   */
+  private static class FakeSqs extends AbstractAmazonSQS {
+    private final List<SendMessageBatchRequestEntry> sent = new ArrayList<>();
+    private final List<String> sentUrls = new ArrayList<>();
+    private final Set<String> failBodies = new HashSet<>();
+    private final Set<String> senderFaultBodies = new HashSet<>();
+    private int batchCount;
+
+    @Override
+    public synchronized SendMessageBatchResult sendMessageBatch(SendMessageBatchRequest request) {
+      batchCount++;
+      SendMessageBatchResult result = new SendMessageBatchResult();
+      for (SendMessageBatchRequestEntry entry : request.getEntries()) {
+        if (failBodies.contains(entry.getMessageBody())
+            || senderFaultBodies.contains(entry.getMessageBody())) {
+          result.withFailed(new BatchResultErrorEntry().withId(entry.getId())
+              .withSenderFault(senderFaultBodies.contains(entry.getMessageBody())));
+        } else {
+          sent.add(entry);
+          sentUrls.add(request.getQueueUrl());
+          result.withSuccessful(new SendMessageBatchResultEntry().withId(entry.getId()));
+        }
+      }
+      return result;
+    }
+
+    private synchronized List<String> sentBodies(String queueUrl) {
+      List<String> bodies = new ArrayList<>();
+      for (int i = 0; i < sent.size(); i++) {
+        if (sentUrls.get(i).equals(queueUrl)) {
+          bodies.add(sent.get(i).getMessageBody());
+        }
+      }
+      return bodies;
+    }
+  }
+}